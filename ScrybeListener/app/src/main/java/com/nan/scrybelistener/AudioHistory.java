@@ -0,0 +1,100 @@
+package com.nan.scrybelistener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size circular store of the most recent audio written to it. Used to replay the tail of
+ * one recognition stream into the next when a continuous session rolls over.
+ */
+public class AudioHistory {
+    private final byte[] mBuffer;
+    // Next write position in mBuffer
+    private int mPosition = 0;
+    // Number of valid bytes, up to mBuffer.length
+    private int mSize = 0;
+
+    /**
+     * @param capacity Maximum number of bytes to keep.
+     */
+    public AudioHistory(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Appends audio, overwriting the oldest bytes once full.
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (length >= mBuffer.length) {
+            // only the tail of the chunk will survive anyway
+            System.arraycopy(data, offset + length - mBuffer.length, mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            mSize = mBuffer.length;
+            return;
+        }
+
+        final int first = Math.min(length, mBuffer.length - mPosition);
+        System.arraycopy(data, offset, mBuffer, mPosition, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, length - first);
+        mPosition = (mPosition + length) % mBuffer.length;
+        mSize = Math.min(mSize + length, mBuffer.length);
+    }
+
+    /**
+     * Appends the bytes between the buffer's position and limit. The buffer's position is left
+     * unchanged.
+     */
+    public void write(ByteBuffer data) {
+        final int start = data.position();
+        int length = data.remaining();
+        if (length > mBuffer.length) {
+            data.position(start + length - mBuffer.length);
+            length = mBuffer.length;
+        }
+
+        final int first = Math.min(length, mBuffer.length - mPosition);
+        data.get(mBuffer, mPosition, first);
+        data.get(mBuffer, 0, length - first);
+        data.position(start);
+        mPosition = (mPosition + length) % mBuffer.length;
+        mSize = Math.min(mSize + length, mBuffer.length);
+    }
+
+    /**
+     * Copies the stored audio, oldest first.
+     * @param out Destination, at least {@link #size()} bytes long.
+     * @return Number of bytes copied.
+     */
+    public int read(byte[] out) {
+        final int start = (mPosition - mSize + mBuffer.length) % mBuffer.length;
+        final int first = Math.min(mSize, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, out, 0, first);
+        System.arraycopy(mBuffer, 0, out, first, mSize - first);
+        return mSize;
+    }
+
+    /**
+     * Copies the stored audio, oldest first, to the buffer's position, advancing it.
+     * @param out Destination, with at least {@link #size()} bytes remaining.
+     * @return Number of bytes copied.
+     */
+    public int read(ByteBuffer out) {
+        final int start = (mPosition - mSize + mBuffer.length) % mBuffer.length;
+        final int first = Math.min(mSize, mBuffer.length - start);
+        out.put(mBuffer, start, first);
+        out.put(mBuffer, 0, mSize - first);
+        return mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public void clear() {
+        mPosition = 0;
+        mSize = 0;
+    }
+}
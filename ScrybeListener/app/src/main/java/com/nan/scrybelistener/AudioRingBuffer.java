@@ -0,0 +1,182 @@
+package com.nan.scrybelistener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of preallocated PCM frames.
+ *
+ * The capture thread claims a frame, fills it and publishes it; the consumer thread peeks the
+ * oldest published frame and releases it once it's done. Neither side ever waits on the other:
+ * when the consumer falls behind, {@link #claim()} fails and the frame is counted as an overflow.
+ *
+ * Frames are reused for the life of the ring, so consumers may hand them to zero-copy APIs as
+ * long as nothing holds on to them after {@link #release()}.
+ */
+public class AudioRingBuffer {
+    private final ByteBuffer[] mFrames;
+    // 16-bit views of each frame, so consumers can read samples without allocating
+    private final ShortBuffer[] mSamples;
+    // When each frame was captured, for latency tracing
+    private final long[] mCapturedAt;
+    private final int mMask;
+
+    // Index of the next frame the producer will write. Only written by the producer.
+    private final AtomicLong mWriteIndex = new AtomicLong();
+    // Index of the next frame the consumer will read. Only written by the consumer.
+    private final AtomicLong mReadIndex = new AtomicLong();
+
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    /**
+     * @param capacity Number of frames, rounded up to the next power of two.
+     * @param frameSize Size of each frame in bytes.
+     * @param direct Whether to allocate frames outside the Java heap, so they can be filled by
+     *               {@link android.media.AudioRecord#read(ByteBuffer, int)} without a copy.
+     */
+    public AudioRingBuffer(int capacity, int frameSize, boolean direct) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 1));
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mFrames = new ByteBuffer[slots];
+        mSamples = new ShortBuffer[slots];
+        mCapturedAt = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            mFrames[i] = direct
+                    ? ByteBuffer.allocateDirect(frameSize)
+                    : ByteBuffer.allocate(frameSize);
+            // PCM from AudioRecord is 16-bit lil-endian
+            mFrames[i].order(ByteOrder.LITTLE_ENDIAN);
+            mSamples[i] = mFrames[i].asShortBuffer();
+        }
+        mMask = slots - 1;
+    }
+
+    /**
+     * Producer side. Gets the next free frame to write audio into, cleared to its full capacity.
+     * @return The frame, or null if the ring is full.
+     */
+    public ByteBuffer claim() {
+        final long write = mWriteIndex.get();
+        if (write - mReadIndex.get() >= mFrames.length) {
+            mOverflowCount.incrementAndGet();
+            return null;
+        }
+        final ByteBuffer frame = mFrames[(int) write & mMask];
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Producer side. Makes the frame returned by the last {@link #claim()} visible to the consumer.
+     * @param size Number of valid bytes in the frame.
+     */
+    public void publish(int size) {
+        publish(size, 0);
+    }
+
+    /**
+     * Producer side. Makes the frame returned by the last {@link #claim()} visible to the consumer.
+     * @param size Number of valid bytes in the frame.
+     * @param capturedAt When the frame was captured.
+     */
+    public void publish(int size, long capturedAt) {
+        final long write = mWriteIndex.get();
+        mFrames[(int) write & mMask].limit(size);
+        mCapturedAt[(int) write & mMask] = capturedAt;
+        mWriteIndex.lazySet(write + 1);
+
+        final int depth = (int) (write + 1 - mReadIndex.get());
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+    }
+
+    /**
+     * Consumer side. Gets the oldest published frame without removing it. The frame's limit is
+     * the number of valid bytes in it.
+     * @return The frame, or null if the ring is empty.
+     */
+    public ByteBuffer peek() {
+        final long read = mReadIndex.get();
+        if (read >= mWriteIndex.get()) {
+            return null;
+        }
+        return mFrames[(int) read & mMask];
+    }
+
+    /**
+     * Consumer side. Gets a 16-bit sample view of the frame returned by {@link #peek()}, with its
+     * limit set to the number of whole samples in the frame.
+     */
+    public ShortBuffer peekSamples() {
+        final int slot = (int) mReadIndex.get() & mMask;
+        final ShortBuffer samples = mSamples[slot];
+        samples.clear();
+        samples.limit(mFrames[slot].limit() / 2);
+        return samples;
+    }
+
+    /**
+     * Consumer side.
+     * @return Sequence number of the frame returned by {@link #peek()}, counting from 0 for the
+     * first frame the ring was given.
+     */
+    public long peekIndex() {
+        return mReadIndex.get();
+    }
+
+    /**
+     * Consumer side.
+     * @return When the frame returned by {@link #peek()} was captured, as given to
+     * {@link #publish(int, long)}.
+     */
+    public long peekCapturedAt() {
+        return mCapturedAt[(int) mReadIndex.get() & mMask];
+    }
+
+    /**
+     * Consumer side. Hands the frame returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        mReadIndex.lazySet(mReadIndex.get() + 1);
+    }
+
+    public int size() {
+        return (int) (mWriteIndex.get() - mReadIndex.get());
+    }
+
+    public int capacity() {
+        return mFrames.length;
+    }
+
+    public int getFrameSize() {
+        return mFrames[0].capacity();
+    }
+
+    /**
+     * @return Total number of frames published since the ring was created.
+     */
+    public long getFramesWritten() {
+        return mWriteIndex.get();
+    }
+
+    /**
+     * @return Number of frames the producer could not store because the ring was full.
+     */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /**
+     * @return The deepest the ring has been, in frames. Compare against {@link #capacity()} to
+     * see how close we've come to dropping audio.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+}
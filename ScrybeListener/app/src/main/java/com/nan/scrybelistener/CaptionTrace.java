@@ -0,0 +1,45 @@
+package com.nan.scrybelistener;
+
+/**
+ * When a recognition result reached each stage on its way from the mic, for tracing caption
+ * latency. Traced by the newest audio frame sent to the API before the result came back, and
+ * timed by {@link android.os.SystemClock#elapsedRealtime()}.
+ *
+ * Clients that ask for it are sent the trace ahead of the result, along with when it was queued
+ * for them and sent, and work out the rest of the way to the display themselves.
+ */
+public class CaptionTrace {
+    private final long mFrameId;
+    private final long mCapturedAt;
+    private final long mSentToApiAt;
+    private final long mRecognizedAt;
+
+    /**
+     * @param frameId Sequence number of the audio frame.
+     * @param capturedAt When the frame was read from the mic.
+     * @param sentToApiAt When the frame was handed to the recognition stream.
+     * @param recognizedAt When the result was received from the API.
+     */
+    public CaptionTrace(long frameId, long capturedAt, long sentToApiAt, long recognizedAt) {
+        mFrameId = frameId;
+        mCapturedAt = capturedAt;
+        mSentToApiAt = sentToApiAt;
+        mRecognizedAt = recognizedAt;
+    }
+
+    public long getFrameId() {
+        return mFrameId;
+    }
+
+    public long getCapturedAt() {
+        return mCapturedAt;
+    }
+
+    public long getSentToApiAt() {
+        return mSentToApiAt;
+    }
+
+    public long getRecognizedAt() {
+        return mRecognizedAt;
+    }
+}
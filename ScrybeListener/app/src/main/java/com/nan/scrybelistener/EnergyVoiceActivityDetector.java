@@ -0,0 +1,129 @@
+package com.nan.scrybelistener;
+
+/**
+ * A {@link VoiceActivityDetector} based on frame energy and zero-crossing rate.
+ *
+ * Each frame's mean-square energy is compared against an adaptive estimate of the background
+ * noise, so a noisy room doesn't read as constant speech. Speech only starts after a minimum run
+ * of loud audio, so a single click doesn't trigger it, and carries on for a hangover period after
+ * the last loud frame, so short gaps between words don't end it.
+ *
+ * The per-frame work is a single branch-free pass over the samples, which the JIT can unroll and
+ * vectorize, and nothing is allocated after construction.
+ */
+public class EnergyVoiceActivityDetector implements VoiceActivityDetector {
+    // Speech must be this many times louder than the noise floor (in energy, so ~4x amplitude)
+    private static final int SPEECH_TO_NOISE_RATIO = 16;
+    // Quieter fricatives ("s", "f") count as speech if they're this far above the noise...
+    private static final int FRICATIVE_TO_NOISE_RATIO = 4;
+    // ...and cross zero at least this often, as a fraction of samples (1/4)
+    private static final int FRICATIVE_CROSSING_SHIFT = 2;
+    // Never treat anything quieter than these as speech, whatever the noise floor (RMS ~300/150)
+    private static final long MIN_SPEECH_ENERGY = 300 * 300;
+    private static final long MIN_FRICATIVE_ENERGY = 150 * 150;
+    // Lowest the noise floor may fall, so digital silence doesn't make every sound speech
+    private static final long MIN_NOISE_FLOOR = 30 * 30;
+    // How quickly the noise floor follows quieter and louder backgrounds, as shifts
+    private static final int NOISE_FALL_SHIFT = 3;
+    private static final int NOISE_RISE_SHIFT = 7;
+    private static final int ONSET_MILLIS = 60;
+    private static final int HANGOVER_MILLIS = 300;
+
+    private final int mOnsetSamples;
+    private final int mHangoverSamples;
+
+    // Background noise estimate, or -1 until the first frame has been seen
+    private long mNoiseFloor = -1;
+    // Samples of consecutive loud audio heard so far
+    private int mLoudSamples = 0;
+    // Samples of hangover left before speech ends
+    private int mHangoverLeft = 0;
+    private boolean mSpeaking = false;
+
+    /**
+     * @param sampleRate Sample rate of the audio, used to convert onset and hangover times.
+     */
+    public EnergyVoiceActivityDetector(int sampleRate) {
+        mOnsetSamples = sampleRate * ONSET_MILLIS / 1000;
+        mHangoverSamples = sampleRate * HANGOVER_MILLIS / 1000;
+    }
+
+    @Override
+    public boolean isVoice(short[] samples, int count) {
+        if (count <= 0) {
+            return mSpeaking;
+        }
+
+        long sumSquares = 0;
+        int crossings = 0;
+        int previous = samples[0];
+        for (int i = 0; i < count; i++) {
+            final int sample = samples[i];
+            sumSquares += sample * sample;
+            // the sign bit of a ^ b is set exactly when a and b have different signs
+            crossings += (previous ^ sample) >>> 31;
+            previous = sample;
+        }
+        final long energy = sumSquares / count;
+        if (mNoiseFloor < 0) {
+            mNoiseFloor = Math.max(energy, MIN_NOISE_FLOOR);
+        }
+
+        final boolean loud = energy > Math.max(mNoiseFloor * SPEECH_TO_NOISE_RATIO,
+                MIN_SPEECH_ENERGY)
+                || (energy > Math.max(mNoiseFloor * FRICATIVE_TO_NOISE_RATIO, MIN_FRICATIVE_ENERGY)
+                        && crossings > count >> FRICATIVE_CROSSING_SHIFT);
+
+        if (loud) {
+            mLoudSamples += count;
+            if (mLoudSamples >= mOnsetSamples) {
+                mSpeaking = true;
+                mHangoverLeft = mHangoverSamples;
+            }
+        } else {
+            mLoudSamples = 0;
+            if (mSpeaking) {
+                mHangoverLeft -= count;
+                if (mHangoverLeft <= 0) {
+                    mSpeaking = false;
+                }
+            }
+        }
+
+        // while speaking, only let the floor fall, so speech isn't mistaken for background
+        if (!mSpeaking || energy < mNoiseFloor) {
+            updateNoiseFloor(energy);
+        }
+        return mSpeaking;
+    }
+
+    @Override
+    public void reset() {
+        mNoiseFloor = -1;
+        mLoudSamples = 0;
+        mHangoverLeft = 0;
+        mSpeaking = false;
+    }
+
+    /**
+     * @return The current background noise estimate, as mean-square energy.
+     */
+    public long getNoiseFloor() {
+        return mNoiseFloor;
+    }
+
+    /**
+     * Follows the background level, dropping quickly when it gets quieter but rising slowly, so
+     * the start of an utterance doesn't get absorbed into the noise estimate.
+     */
+    private void updateNoiseFloor(long energy) {
+        if (energy < mNoiseFloor) {
+            mNoiseFloor -= (mNoiseFloor - energy) >> NOISE_FALL_SHIFT;
+        } else {
+            mNoiseFloor += (energy - mNoiseFloor) >> NOISE_RISE_SHIFT;
+        }
+        if (mNoiseFloor < MIN_NOISE_FLOOR) {
+            mNoiseFloor = MIN_NOISE_FLOOR;
+        }
+    }
+}
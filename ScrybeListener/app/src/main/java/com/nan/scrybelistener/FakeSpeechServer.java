@@ -0,0 +1,346 @@
+package com.nan.scrybelistener;
+
+import android.util.Log;
+
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * An in-process stand-in for the Cloud Speech API, for testing offline.
+ *
+ * Each stream "recognizes" a script: every so many milliseconds of audio received adds a word to
+ * the current sentence, reported as an interim result, and the end of a sentence is reported as
+ * a final result. Responses are delayed by a configurable latency and jitter, and streams can be
+ * made to fail at random or when they hit the API's time limit, to exercise error handling.
+ */
+public class FakeSpeechServer extends SpeechGrpc.SpeechImplBase {
+    private static final String TAG = "FakeSpeechServer";
+    // How much audio it takes to "recognize" a word, roughly normal speaking pace
+    private static final int DEFAULT_MILLIS_PER_WORD = 300;
+    // The real API cuts streams off after about a minute
+    private static final int DEFAULT_STREAM_LIMIT_MILLIS = 65 * 1000;
+    private static final AtomicInteger sServerCount = new AtomicInteger();
+
+    public static final String[] DEFAULT_SCRIPT = {
+            "this is the fake speech server",
+            "it recognizes a word for every few hundred milliseconds of audio it hears",
+            "and finishes a sentence at the end of each line of its script",
+    };
+
+    private final String[][] mSentences;
+    private final String mName = TAG + "-" + sServerCount.incrementAndGet();
+    private final Random mRandom = new Random();
+    // Delivers every response, so each stream's responses stay in order
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private Server mServer;
+
+    private volatile int mLatencyMillis = 0;
+    private volatile int mJitterMillis = 0;
+    private volatile double mErrorRate = 0;
+    private volatile int mMillisPerWord = DEFAULT_MILLIS_PER_WORD;
+    private volatile int mStreamLimitMillis = DEFAULT_STREAM_LIMIT_MILLIS;
+
+    private final AtomicLong mStreamCount = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mResponsesSent = new AtomicLong();
+    private final AtomicLong mErrorsInjected = new AtomicLong();
+
+    /**
+     * @param script Sentences to recognize, in order. Each stream starts from the beginning and
+     *               loops once it runs out.
+     */
+    public FakeSpeechServer(String... script) {
+        mSentences = new String[script.length][];
+        for (int i = 0; i < script.length; i++) {
+            mSentences[i] = script[i].trim().split("\\s+");
+        }
+    }
+
+    /**
+     * Delays every response by the latency plus up to the jitter, at random.
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param errorRate Chance, from 0 to 1, that any given response is replaced by the stream
+     *                  failing as UNAVAILABLE.
+     */
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    public void setMillisPerWord(int millisPerWord) {
+        mMillisPerWord = millisPerWord;
+    }
+
+    /**
+     * @param streamLimitMillis Stream age after which audio is refused with OUT_OF_RANGE, as the
+     *                          real API does.
+     */
+    public void setStreamLimitMillis(int streamLimitMillis) {
+        mStreamLimitMillis = streamLimitMillis;
+    }
+
+    public void start() throws IOException {
+        mServer = InProcessServerBuilder.forName(mName)
+                .addService(this)
+                .build()
+                .start();
+        Log.d(TAG, "Started " + mName);
+    }
+
+    /**
+     * @return A new channel to this server. The caller is responsible for shutting it down.
+     */
+    public ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(mName).build();
+    }
+
+    public void shutdown() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+        }
+        mScheduler.shutdownNow();
+        Log.d(TAG, mName + " served " + mStreamCount.get() + " streams (" + mBytesReceived.get()
+                + " bytes in, " + mResponsesSent.get() + " responses out, "
+                + mErrorsInjected.get() + " errors injected)");
+    }
+
+    public long getStreamCount() {
+        return mStreamCount.get();
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    public long getResponsesSent() {
+        return mResponsesSent.get();
+    }
+
+    public long getErrorsInjected() {
+        return mErrorsInjected.get();
+    }
+
+    @Override
+    public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+            StreamObserver<StreamingRecognizeResponse> responseObserver) {
+        mStreamCount.incrementAndGet();
+        return new FakeStream(responseObserver);
+    }
+
+    /**
+     * One streamingRecognize call. Requests arrive on the server's threads; responses and the
+     * end of the call are all delivered from the scheduler.
+     */
+    private class FakeStream implements StreamObserver<StreamingRecognizeRequest> {
+        private final StreamObserver<StreamingRecognizeResponse> mmResponseObserver;
+        private final long mmStartTime = System.currentTimeMillis();
+        // Responses and the end of the call, in the order they must be delivered
+        private final ArrayDeque<Runnable> mmDeliveries = new ArrayDeque<Runnable>();
+        // Delivery time of the last one scheduled, so jitter can't make them bunch up out of order
+        private long mmLastDelivery;
+
+        private int mmBytesPerWord;
+        private boolean mmInterimResults;
+        private boolean mmSingleUtterance;
+
+        private long mmAudioBytes;
+        private int mmSentence;
+        private int mmWords;
+        // Set once the call has ended or been failed, after which requests are ignored
+        private boolean mmClosed;
+        // Set if the client cancelled, after which nothing more can be delivered
+        private volatile boolean mmCancelled;
+
+        FakeStream(StreamObserver<StreamingRecognizeResponse> responseObserver) {
+            mmResponseObserver = responseObserver;
+        }
+
+        @Override
+        public synchronized void onNext(StreamingRecognizeRequest request) {
+            if (mmClosed) {
+                return;
+            }
+            if (request.getStreamingRequestCase()
+                    == StreamingRecognizeRequest.StreamingRequestCase.STREAMING_CONFIG) {
+                configure(request.getStreamingConfig());
+                return;
+            }
+            if (mmBytesPerWord == 0) {
+                fail(Status.INVALID_ARGUMENT.withDescription("Audio before config"));
+                return;
+            }
+            if (System.currentTimeMillis() - mmStartTime > mStreamLimitMillis) {
+                fail(Status.OUT_OF_RANGE
+                        .withDescription("Exceeded maximum allowed stream duration"));
+                return;
+            }
+
+            final int size = request.getAudioContent().size();
+            mBytesReceived.addAndGet(size);
+            mmAudioBytes += size;
+            while (!mmClosed && mmAudioBytes >= mmBytesPerWord) {
+                mmAudioBytes -= mmBytesPerWord;
+                recognizeWord();
+            }
+        }
+
+        private void configure(StreamingRecognitionConfig config) {
+            // 16-bit mono
+            final int bytesPerSecond = config.getConfig().getSampleRateHertz() * 2;
+            mmBytesPerWord = Math.max(1, bytesPerSecond * mMillisPerWord / 1000);
+            mmInterimResults = config.getInterimResults();
+            mmSingleUtterance = config.getSingleUtterance();
+        }
+
+        private void recognizeWord() {
+            final String[] words = mSentences[mmSentence];
+            mmWords++;
+            final boolean isFinal = mmWords == words.length;
+
+            if (isFinal || mmInterimResults) {
+                final StringBuilder text = new StringBuilder();
+                for (int i = 0; i < mmWords; i++) {
+                    if (i > 0) {
+                        text.append(' ');
+                    }
+                    text.append(words[i]);
+                }
+                respond(result(text.toString(), isFinal));
+            }
+
+            if (isFinal) {
+                mmWords = 0;
+                mmSentence = (mmSentence + 1) % mSentences.length;
+                if (mmSingleUtterance) {
+                    respond(StreamingRecognizeResponse.newBuilder()
+                            .setSpeechEventType(StreamingRecognizeResponse.SpeechEventType
+                                    .END_OF_SINGLE_UTTERANCE)
+                            .build());
+                    // stop listening, and end the call once the client half-closes
+                    mmBytesPerWord = Integer.MAX_VALUE;
+                }
+            }
+        }
+
+        private StreamingRecognizeResponse result(String text, boolean isFinal) {
+            return StreamingRecognizeResponse.newBuilder()
+                    .addResults(StreamingRecognitionResult.newBuilder()
+                            .setIsFinal(isFinal)
+                            .setStability(isFinal ? 1f : 0.5f)
+                            .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                    .setTranscript(text)
+                                    .setConfidence(isFinal ? 0.9f : 0f)))
+                    .build();
+        }
+
+        private void respond(final StreamingRecognizeResponse response) {
+            if (mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+                mErrorsInjected.incrementAndGet();
+                fail(Status.UNAVAILABLE.withDescription("Injected error"));
+                return;
+            }
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mmCancelled) {
+                        mmResponseObserver.onNext(response);
+                        mResponsesSent.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        private void fail(final Status status) {
+            mmClosed = true;
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mmCancelled) {
+                        mmResponseObserver.onError(status.asException());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues a delivery and schedules a tick for it. Ticks only ever deliver the oldest
+         * queued delivery, so even if two ticks due at the same time run the wrong way round,
+         * the stream still sees everything in order.
+         */
+        private void schedule(Runnable delivery) {
+            if (mScheduler.isShutdown()) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final int jitter = mJitterMillis > 0 ? mRandom.nextInt(mJitterMillis + 1) : 0;
+            final long deliverAt = Math.max(now + mLatencyMillis + jitter, mmLastDelivery);
+            mmLastDelivery = deliverAt;
+            synchronized (mmDeliveries) {
+                mmDeliveries.addLast(delivery);
+            }
+            mScheduler.schedule(mmDeliverNext, deliverAt - now, TimeUnit.MILLISECONDS);
+        }
+
+        private final Runnable mmDeliverNext = new Runnable() {
+            @Override
+            public void run() {
+                final Runnable delivery;
+                synchronized (mmDeliveries) {
+                    delivery = mmDeliveries.pollFirst();
+                }
+                if (delivery != null) {
+                    delivery.run();
+                }
+            }
+        };
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            // the client cancelled; nothing is listening for responses any more
+            mmClosed = true;
+            mmCancelled = true;
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            if (mmClosed) {
+                return;
+            }
+            mmClosed = true;
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mmCancelled) {
+                        mmResponseObserver.onCompleted();
+                    }
+                }
+            });
+        }
+    }
+}
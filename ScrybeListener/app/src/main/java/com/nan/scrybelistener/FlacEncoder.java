@@ -0,0 +1,439 @@
+package com.nan.scrybelistener;
+
+/**
+ * Minimal streaming FLAC encoder for 16-bit mono PCM, so speech can be sent to the API at about
+ * half the bytes of LINEAR16 without depending on a platform codec.
+ *
+ * Each block is encoded with whichever of FLAC's fixed polynomial predictors (orders 0-4) leaves
+ * the smallest residual, Rice-coded in partitions. That gets most of what a full encoder would
+ * on speech for a fraction of the CPU. Encoding never allocates; the caller provides the output
+ * buffer.
+ */
+public class FlacEncoder {
+    // Samples per frame. 1024 at 16kHz is 64ms, which keeps the added latency below a frame of
+    // recognition results.
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int BITS_PER_SAMPLE = 16;
+    // "fLaC" marker, metadata block header and the 34-byte STREAMINFO block
+    public static final int HEADER_SIZE = 4 + 4 + 34;
+
+    private static final int SUBFRAME_CONSTANT = 0x00;
+    private static final int SUBFRAME_VERBATIM = 0x01;
+    private static final int SUBFRAME_FIXED = 0x08;
+
+    private final int mSampleRate;
+    private final int mBlockSize;
+    private final int mSampleRateCode;
+
+    // Samples waiting for a full block
+    private final int[] mBlock;
+    private int mBlockFill = 0;
+    private long mFrameNumber = 0;
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][];
+    private final BitWriter mWriter = new BitWriter();
+
+    /**
+     * @param sampleRate Sample rate of the audio, in Hz.
+     * @param blockSize Samples per FLAC frame, from 16 to 65535.
+     */
+    public FlacEncoder(int sampleRate, int blockSize) {
+        if (blockSize < 16 || blockSize > 65535) {
+            throw new IllegalArgumentException("Block size out of range: " + blockSize);
+        }
+        mSampleRate = sampleRate;
+        mBlockSize = blockSize;
+        mSampleRateCode = sampleRateCode(sampleRate);
+        mBlock = new int[blockSize];
+        for (int i = 0; i <= MAX_FIXED_ORDER; i++) {
+            mResiduals[i] = new int[blockSize];
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return The most bytes a single frame of the given block size can take.
+     */
+    public static int getMaxFrameSize(int blockSize) {
+        // header, verbatim samples and CRC-16, with some slack for the bit-level fields
+        return 16 + blockSize * BITS_PER_SAMPLE / 8 + 2 + 8;
+    }
+
+    /**
+     * @return The most bytes {@link #encode(short[], int, byte[], int)} can write for the given
+     * number of samples.
+     */
+    public int getMaxEncodedSize(int samples) {
+        return ((mBlockFill + samples) / mBlockSize) * getMaxFrameSize(mBlockSize);
+    }
+
+    /**
+     * Starts a new stream. The next call to {@link #writeHeader(byte[], int)} must come before any
+     * frames.
+     */
+    public void reset() {
+        mBlockFill = 0;
+        mFrameNumber = 0;
+    }
+
+    /**
+     * Writes the stream header: the "fLaC" marker and the STREAMINFO block. Lengths and the
+     * audio's checksum aren't known up front, so they're left as zero, which FLAC allows.
+     * @return Number of bytes written, always {@link #HEADER_SIZE}.
+     */
+    public int writeHeader(byte[] out, int offset) {
+        final BitWriter w = mWriter;
+        w.reset(out, offset);
+        w.write('f', 8);
+        w.write('L', 8);
+        w.write('a', 8);
+        w.write('C', 8);
+        // last metadata block, type STREAMINFO, 34 bytes
+        w.write(1, 1);
+        w.write(0, 7);
+        w.write(34, 24);
+        w.write(mBlockSize, 16);
+        w.write(mBlockSize, 16);
+        w.write(0, 24);
+        w.write(0, 24);
+        w.write(mSampleRate, 20);
+        w.write(0, 3);
+        w.write(BITS_PER_SAMPLE - 1, 5);
+        // total samples (36 bits) and MD5 (128 bits) unknown
+        for (int i = 0; i < 164; i += 20) {
+            w.write(0, Math.min(20, 164 - i));
+        }
+        return w.finish() - offset;
+    }
+
+    /**
+     * Adds samples to the stream, writing a frame for every block completed.
+     * @param out Destination, with at least {@link #getMaxEncodedSize(int)} bytes free.
+     * @return Number of bytes written.
+     */
+    public int encode(short[] samples, int count, byte[] out, int offset) {
+        int position = offset;
+        for (int i = 0; i < count; i++) {
+            mBlock[mBlockFill++] = samples[i];
+            if (mBlockFill == mBlockSize) {
+                position += encodeFrame(mBlockSize, out, position);
+                mBlockFill = 0;
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Writes any buffered samples as a final, short frame. Only call at the end of a stream.
+     * @return Number of bytes written.
+     */
+    public int flush(byte[] out, int offset) {
+        if (mBlockFill == 0) {
+            return 0;
+        }
+        final int written = encodeFrame(mBlockFill, out, offset);
+        mBlockFill = 0;
+        return written;
+    }
+
+    private int encodeFrame(int blockSize, byte[] out, int offset) {
+        final BitWriter w = mWriter;
+        w.reset(out, offset);
+
+        // Frame header: sync code, fixed blocking, 16-bit block size at the end, mono, 16-bit
+        w.write(0x3FFE, 14);
+        w.write(0, 1);
+        w.write(0, 1);
+        w.write(0x7, 4);
+        w.write(mSampleRateCode, 4);
+        w.write(0, 4);
+        w.write(0x4, 3);
+        w.write(0, 1);
+        writeUtf8(w, mFrameNumber++);
+        w.write(blockSize - 1, 16);
+        if (mSampleRateCode == 0xD) {
+            w.write(mSampleRate, 16);
+        }
+        w.write(crc8(out, offset, w.position() - offset), 8);
+
+        writeSubframe(w, blockSize);
+
+        final int end = w.finish();
+        final int crc = crc16(out, offset, end - offset);
+        out[end] = (byte) (crc >> 8);
+        out[end + 1] = (byte) crc;
+        return end + 2 - offset;
+    }
+
+    private void writeSubframe(BitWriter w, int blockSize) {
+        final int[] x = mBlock;
+
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            w.write(SUBFRAME_CONSTANT << 1, 8);
+            w.write(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        // Pick the predictor that leaves the smallest residual
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int order = 0; order <= maxOrder; order++) {
+            final long sum = computeResidual(order, blockSize);
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+
+        // Choose how finely to partition the residual, then fall back to raw samples if that
+        // would somehow be smaller
+        final int[] residual = mResiduals[bestOrder];
+        int bestPartitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+            if ((blockSize & ((1 << p) - 1)) != 0 || (blockSize >> p) <= bestOrder) {
+                break;
+            }
+            final long bits = riceBits(residual, blockSize, bestOrder, p);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = p;
+            }
+        }
+        if (bestBits + bestOrder * BITS_PER_SAMPLE >= (long) blockSize * BITS_PER_SAMPLE) {
+            w.write(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < blockSize; i++) {
+                w.write(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        w.write((SUBFRAME_FIXED | bestOrder) << 1, 8);
+        for (int i = 0; i < bestOrder; i++) {
+            w.write(x[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(w, residual, blockSize, bestOrder, bestPartitionOrder);
+    }
+
+    /**
+     * Fills in the residual of a fixed predictor.
+     * @return Sum of the absolute residual, to compare predictors by.
+     */
+    private long computeResidual(int order, int blockSize) {
+        final int[] x = mBlock;
+        final int[] r = mResiduals[order];
+        long sum = 0;
+        for (int i = order; i < blockSize; i++) {
+            final int e;
+            switch (order) {
+                case 0:
+                    e = x[i];
+                    break;
+                case 1:
+                    e = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    e = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    e = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    e = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+            r[i] = e;
+            sum += e < 0 ? -e : e;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Bits needed to Rice-code the residual with 2^partitionOrder partitions.
+     */
+    private static long riceBits(int[] residual, int blockSize, int order, int partitionOrder) {
+        final int partitionSize = blockSize >> partitionOrder;
+        long bits = 6;
+        int start = order;
+        for (int end = partitionSize; end <= blockSize; end += partitionSize) {
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += zigzag(residual[i]);
+            }
+            final int k = riceParameter(sum, end - start);
+            bits += 4 + (long) (end - start) * (k + 1) + (sum >> k);
+            start = end;
+        }
+        return bits;
+    }
+
+    private static void writeResidual(BitWriter w, int[] residual, int blockSize, int order,
+                                      int partitionOrder) {
+        // Rice coding with 4-bit parameters
+        w.write(0, 2);
+        w.write(partitionOrder, 4);
+
+        final int partitionSize = blockSize >> partitionOrder;
+        int start = order;
+        for (int end = partitionSize; end <= blockSize; end += partitionSize) {
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += zigzag(residual[i]);
+            }
+            final int k = riceParameter(sum, end - start);
+            w.write(k, 4);
+            for (int i = start; i < end; i++) {
+                final int u = zigzag(residual[i]);
+                w.writeUnary(u >>> k);
+                if (k > 0) {
+                    w.write(u & ((1 << k) - 1), k);
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * @return The Rice parameter that best codes values averaging sum / count.
+     */
+    private static int riceParameter(long sum, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Writes a frame number in FLAC's extended UTF-8 style encoding.
+     */
+    private static void writeUtf8(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.write((int) value, 8);
+            return;
+        }
+        int continuationBytes = 1;
+        while (continuationBytes < 6 && value >= 1L << (5 * continuationBytes + 6)) {
+            continuationBytes++;
+        }
+        final int leadBits = 6 - continuationBytes;
+        final int lead = (0xFF << (7 - continuationBytes)) & 0xFF;
+        w.write(lead | (int) (value >>> (6 * continuationBytes)) & ((1 << leadBits) - 1), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            w.write(0x80 | (int) (value >>> (6 * i)) & 0x3F, 8);
+        }
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000: return 0x4;
+            case 16000: return 0x5;
+            case 22050: return 0x6;
+            case 24000: return 0x7;
+            case 32000: return 0x8;
+            case 44100: return 0x9;
+            case 48000: return 0xA;
+            case 96000: return 0xB;
+            default:
+                // 16-bit rate in Hz at the end of the header, or "see STREAMINFO"
+                return sampleRate <= 0xFFFF ? 0xD : 0x0;
+        }
+    }
+
+    private static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xFFFF : (crc << 1) & 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Writes big-endian bit fields into a byte array.
+     */
+    private static class BitWriter {
+        private byte[] mmOut;
+        private int mmPosition;
+        private long mmBits;
+        private int mmBitCount;
+
+        void reset(byte[] out, int offset) {
+            mmOut = out;
+            mmPosition = offset;
+            mmBits = 0;
+            mmBitCount = 0;
+        }
+
+        /**
+         * Writes the low {@code count} bits of value, most significant first. Count is at most 32.
+         */
+        void write(int value, int count) {
+            mmBits = (mmBits << count) | (value & ((1L << count) - 1));
+            mmBitCount += count;
+            while (mmBitCount >= 8) {
+                mmBitCount -= 8;
+                mmOut[mmPosition++] = (byte) (mmBits >>> mmBitCount);
+            }
+        }
+
+        /**
+         * Writes value zero bits followed by a one.
+         */
+        void writeUnary(int value) {
+            while (value >= 32) {
+                write(0, 32);
+                value -= 32;
+            }
+            write(1, value + 1);
+        }
+
+        /**
+         * @return Position of the next whole byte. Only valid on a byte boundary.
+         */
+        int position() {
+            return mmPosition;
+        }
+
+        /**
+         * Pads with zeros to a byte boundary.
+         * @return Position after the last byte written.
+         */
+        int finish() {
+            if (mmBitCount > 0) {
+                write(0, 8 - mmBitCount);
+            }
+            return mmPosition;
+        }
+    }
+}
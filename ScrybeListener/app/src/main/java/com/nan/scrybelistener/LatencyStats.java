@@ -0,0 +1,45 @@
+package com.nan.scrybelistener;
+
+/**
+ * Running count, mean and maximum of a latency, in milliseconds. Thread-safe.
+ */
+public class LatencyStats {
+    private final String mName;
+    private long mCount = 0;
+    private long mTotalMillis = 0;
+    private long mMaxMillis = 0;
+
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    public synchronized void add(long millis) {
+        mCount++;
+        mTotalMillis += millis;
+        if (millis > mMaxMillis) {
+            mMaxMillis = millis;
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMeanMillis() {
+        return mCount == 0 ? 0 : mTotalMillis / mCount;
+    }
+
+    public synchronized long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " mean " + getMeanMillis() + "ms, max " + mMaxMillis + "ms (" + mCount
+                + ")";
+    }
+}
@@ -1,13 +1,12 @@
 package com.nan.scrybelistener;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.*;
 import android.support.v7.app.ActionBarActivity;
+import android.text.Editable;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
@@ -17,10 +16,12 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import com.google.cloud.speech.v1.RecognitionConfig;
+
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.UUID;
 
 
@@ -31,16 +32,50 @@ public class ListenerActivity extends ActionBarActivity {
     // UUID for the Bluetooth Serial Port Profile (SPP)
     private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     private static final String BT_SERVICE_NAME = "ScrybeListener";
+    // Port caption displays on the local network can connect to
+    private static final int TCP_PORT = 4568;
+    // Keep one recognition session open across pauses rather than one per utterance
+    private static final boolean CONTINUOUS_RECOGNITION = true;
+    // Recognize with an in-process FakeSpeechServer instead of the Cloud Speech API
+    private static final boolean FAKE_SPEECH_BACKEND = false;
+    private static final int FAKE_SPEECH_LATENCY_MILLIS = 150;
+    private static final int FAKE_SPEECH_JITTER_MILLIS = 100;
+    // LINEAR16, or FLAC to roughly halve the uplink at the cost of some CPU
+    private static final RecognitionConfig.AudioEncoding UPLINK_ENCODING =
+            RecognitionConfig.AudioEncoding.LINEAR16;
+    // How much of the transcript to keep, and how many utterances of it to show
+    private static final int SCROLLBACK_LINES = 500;
+    private static final int SCROLLBACK_CHARS = 64 * 1024;
+    private static final int TRANSCRIPT_WINDOW_LINES = 20;
+    // Other listeners to merge into this one's feed, as {speaker label, host}, each reached on
+    // TCP_PORT; leave empty to caption only this phone's mic
+    private static final String[][] MERGE_SOURCES = {};
+    private static final String LOCAL_SPEAKER_LABEL = "Host";
     private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-    private List<BluetoothSocket> mActiveSockets = new LinkedList<BluetoothSocket>();
+    private TranscriptBroadcaster mBroadcaster;
+    // Id of the utterance results are currently being received for
+    private long mUtteranceId = 0;
+    // When the utterance being received was captured, or -1 before its first result
+    private long mUtteranceCapturedAt = -1;
+    private long mLastUtteranceEndedAt = 0;
+    private volatile long mVoiceStartedAt = 0;
+    // Set when voice started before the speech service was bound, so the session is started
+    // from the first frame after it is
+    private boolean mVoiceStartMissed = false;
+    // Only used in merge mode
+    private TranscriptMerger mMerger;
+    private TranscriptMerger.Source mLocalSource;
+    private final List<MergeSourceClient> mMergeSources = new ArrayList<MergeSourceClient>();
 
     private TextView mStatusText;
     private TextView mTranscriptText;
+    private final TranscriptScrollback mTranscript =
+            new TranscriptScrollback(SCROLLBACK_LINES, SCROLLBACK_CHARS, TRANSCRIPT_WINDOW_LINES);
     private EditText mMessageText;
     private Button mSendButton;
 
-    // Thread to listen for incoming bluetooth connections
-    private NewConnectionListenerThread mListener;
+    // Transports listening for incoming connections from caption displays
+    private final List<TranscriptTransport> mTransports = new ArrayList<TranscriptTransport>();
     // Service to communicate with the Google Speech UI
     private SpeechService mSpeechService;
 
@@ -52,23 +87,33 @@ public class ListenerActivity extends ActionBarActivity {
         @Override
         public void onVoiceStart() {
             Log.d(TAG, "onVoiceStart");
-            if (mSpeechService != null) {
-                mSpeechService.startRecognizing(mVoiceRecorder.getSampleRate());
+            mVoiceStartedAt = SystemClock.elapsedRealtime();
+            mVoiceStartMissed = mSpeechService == null;
+            if (!mVoiceStartMissed) {
+                mSpeechService.startRecognizing(mVoiceRecorder.getSampleRate(),
+                        CONTINUOUS_RECOGNITION);
             }
         }
 
         @Override
-        public void onVoice(byte[] data, int size) {
+        public void onVoice(ByteBuffer data, int size) {
 
             if (mSpeechService != null) {
+                if (mVoiceStartMissed) {
+                    mVoiceStartMissed = false;
+                    mSpeechService.startRecognizing(mVoiceRecorder.getSampleRate(),
+                            CONTINUOUS_RECOGNITION);
+                }
                 //Log.d(TAG, "onVoice");
-                mSpeechService.recognize(data, size);
+                mSpeechService.recognize(data, size, mVoiceRecorder.getFrameId(),
+                        mVoiceRecorder.getFrameCapturedAt());
             }
         }
 
         @Override
         public void onVoiceEnd() {
             Log.d(TAG, "onVoiceEnd");
+            mVoiceStartMissed = false;
             if (mSpeechService != null) {
                 mSpeechService.finishRecognizing();
             }
@@ -80,21 +125,62 @@ public class ListenerActivity extends ActionBarActivity {
      */
     private final SpeechService.Listener mSpeechServiceListener = new SpeechService.Listener() {
         @Override
-        public void onSpeechRecognized(final String text, boolean isFinal) {
-            if (isFinal) {
+        public void onSpeechRecognized(final String text, final boolean isFinal,
+                                       final CaptionTrace trace) {
+            if (isFinal && !CONTINUOUS_RECOGNITION) {
                 mVoiceRecorder.dismiss();
             }
-            if (text != null && !TextUtils.isEmpty(text)) {
+            // an empty final still has to end the utterance its interims started
+            if (text != null && (isFinal || !TextUtils.isEmpty(text))) {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        onTextReceived(text);
+                        onTextReceived(text, isFinal, trace);
                     }
                 });
             }
         }
     };
 
+    /**
+     * Starts serving each display that connects, on any transport. Called on the transport's
+     * accept thread; the broadcaster is safe to add to from there.
+     */
+    private final TranscriptTransport.Listener mTransportListener =
+            new TranscriptTransport.Listener() {
+        @Override
+        public void onConnection(TranscriptConnection connection) {
+            addActiveConnection(connection);
+        }
+    };
+
+    /**
+     * Passes the merged feed on to our clients, in merge mode.
+     */
+    private final TranscriptMerger.Output mMergerOutput = new TranscriptMerger.Output() {
+        @Override
+        public void onMergedResult(long utteranceId, String text, boolean isFinal,
+                                   long capturedAt) {
+            mBroadcaster.broadcast(utteranceId, text, isFinal, capturedAt, null);
+        }
+    };
+
+    /**
+     * Keeps the status text up to date as clients come and go.
+     */
+    private final TranscriptBroadcaster.Listener mBroadcasterListener =
+            new TranscriptBroadcaster.Listener() {
+        @Override
+        public void onClientsChanged() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateSocketCount();
+                }
+            });
+        }
+    };
+
     /**
      * Manages connection to the SpeechService
      */
@@ -104,6 +190,16 @@ public class ListenerActivity extends ActionBarActivity {
             Log.d(TAG, "onServiceConnected");
             mSpeechService = SpeechService.from(service);
             mSpeechService.addListener(mSpeechServiceListener);
+            mBroadcaster.registerMetrics(mSpeechService.getMetrics());
+            if (mVoiceRecorder != null) {
+                mVoiceRecorder.registerMetrics(mSpeechService.getMetrics());
+            }
+            if (FAKE_SPEECH_BACKEND) {
+                useFakeSpeechBackend();
+            }
+            mSpeechService.setUplinkEncoding(UPLINK_ENCODING);
+            mSpeechService.prepareRecognizing(VoiceRecorder.getPreferredSampleRate(),
+                    CONTINUOUS_RECOGNITION);
         }
 
         @Override
@@ -119,10 +215,15 @@ public class ListenerActivity extends ActionBarActivity {
 
         mStatusText = (TextView) findViewById(R.id.status_text);
         mTranscriptText = (TextView) findViewById(R.id.text_transcript);
+        mTranscriptText.setText("", TextView.BufferType.EDITABLE);
         mMessageText = (EditText) findViewById(R.id.message_entry);
         mSendButton = (Button) findViewById(R.id.button_send);
 
         mSendButton.setEnabled(false);
+        mBroadcaster = new TranscriptBroadcaster(mBroadcasterListener);
+        if (MERGE_SOURCES.length > 0) {
+            startMerging();
+        }
 
         // Request to turn on bluetooth if needed
         if (!mBluetoothAdapter.isEnabled()) {
@@ -135,8 +236,15 @@ public class ListenerActivity extends ActionBarActivity {
         discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, 300);
         startActivity(discoverableIntent);
 
-        mListener = new NewConnectionListenerThread();
-        mListener.start();
+        mTransports.add(new RfcommTranscriptTransport(mBluetoothAdapter, BT_SERVICE_NAME, BT_UUID));
+        mTransports.add(new TcpTranscriptTransport(TCP_PORT));
+        for (TranscriptTransport transport : mTransports) {
+            try {
+                transport.start(mTransportListener);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start " + transport.getName() + " transport.", e);
+            }
+        }
 
     }
 
@@ -148,14 +256,16 @@ public class ListenerActivity extends ActionBarActivity {
 
     @Override
     public void onDestroy() {
-        for (BluetoothSocket socket : mActiveSockets) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "error closing socket");
-            }
+        for (TranscriptTransport transport : mTransports) {
+            transport.stop();
+        }
+        for (MergeSourceClient source : mMergeSources) {
+            source.stop();
+        }
+        if (mMerger != null) {
+            mMerger.shutdown();
         }
-        mListener.cancel();
+        mBroadcaster.shutdown();
     }
 
     @Override
@@ -186,18 +296,52 @@ public class ListenerActivity extends ActionBarActivity {
      */
     public void onSendClick(View view) {
         String message = mMessageText.getText().toString();
-        mTranscriptText.append(message + "\n");
-        broadcastMessage(message);
+        mTranscript.commit(message);
+        renderTranscript();
+        // a typed message is an utterance of its own, so one being spoken is taken off the
+        // displays and continues under the next id once its next result comes in
+        if (mUtteranceCapturedAt >= 0) {
+            broadcastMessage("", true, mUtteranceCapturedAt, null);
+            mUtteranceCapturedAt = -1;
+        }
+        broadcastMessage(message, true, SystemClock.elapsedRealtime(), null);
         mMessageText.setText("");
     }
 
     /**
      * Called when text is received from the Google Cloud API
-     * @param text
+     * @param text The full text of the current utterance so far.
+     * @param isFinal Whether this is the final result for the utterance.
+     * @param trace When the result passed each stage so far, or null.
      */
-    public void onTextReceived(String text) {
-        mTranscriptText.setText(text);
-        broadcastMessage(text);
+    public void onTextReceived(String text, boolean isFinal, CaptionTrace trace) {
+        final long now = SystemClock.elapsedRealtime();
+        if (TextUtils.isEmpty(text) && mUtteranceCapturedAt < 0) {
+            // nothing was recognized, and nothing is showing
+            return;
+        }
+        if (mUtteranceCapturedAt < 0) {
+            // the utterance began once both the voice had started and the last one had ended
+            mUtteranceCapturedAt = Math.max(mVoiceStartedAt, mLastUtteranceEndedAt);
+        }
+        final long capturedAt = mUtteranceCapturedAt;
+
+        if (isFinal) {
+            mLastUtteranceEndedAt = now;
+            mUtteranceCapturedAt = -1;
+            if (!TextUtils.isEmpty(text)) {
+                mTranscript.commit(text);
+            }
+            mTranscript.setInterim("");
+        } else {
+            mTranscript.setInterim(text);
+        }
+        renderTranscript();
+        broadcastMessage(text, isFinal, capturedAt, trace);
+    }
+
+    private void renderTranscript() {
+        mTranscript.render((Editable) mTranscriptText.getText());
     }
 
     public void onRecordToggleClick(View view) {
@@ -205,52 +349,75 @@ public class ListenerActivity extends ActionBarActivity {
             Log.d(TAG, "STOP RECORDING PRESS");
             mVoiceRecorder.stop();
             mVoiceRecorder = null;
+            if (mMerger != null) {
+                // an utterance cut off mid-interim won't get a final to end it
+                mMerger.onSourceLost(mLocalSource);
+            }
         } else {
             Log.d(TAG, "START RECORDING PRESS");
-            mVoiceRecorder = new VoiceRecorder(mVoiceCallback);
+            mVoiceRecorder = new VoiceRecorder(mVoiceCallback, true);
+            mVoiceRecorder.setContinuous(CONTINUOUS_RECOGNITION);
+            if (mSpeechService != null) {
+                mVoiceRecorder.registerMetrics(mSpeechService.getMetrics());
+            }
             mVoiceRecorder.start();
         }
     }
 
     /**
-     * Broadcasts a message to all active sockets, removing any "dead" sockets found.
-     * @param message The string to broadcast.
+     * Broadcasts a result to all active clients, or in merge mode, merges it with the other
+     * listeners' results first. Each client is written to from its own thread, so this never
+     * waits on a slow connection.
+     * @param message The full text of the current utterance so far.
+     * @param isFinal Whether this ends the utterance.
+     * @param capturedAt When the utterance was captured.
+     * @param trace When the result passed each stage so far, or null. Not traced any further
+     *              in merge mode.
      */
-    private void broadcastMessage(String message) {
-        ListIterator<BluetoothSocket> iter = mActiveSockets.listIterator();
-        boolean foundDeadSockets = false;
+    private void broadcastMessage(String message, boolean isFinal, long capturedAt,
+                                  CaptionTrace trace) {
         Log.d(TAG, "send: " + message);
+        if (mMerger != null) {
+            mMerger.postLocal(mLocalSource, mUtteranceId, message, isFinal, capturedAt);
+        } else {
+            mBroadcaster.broadcast(mUtteranceId, message, isFinal, capturedAt, trace);
+        }
+        if (isFinal) {
+            mUtteranceId++;
+        }
+    }
 
-        // Broadcast message to all active sockets
-        while (iter.hasNext()) {
-            BluetoothSocket socket = iter.next();
-            if (socket.isConnected()) {
-                try {
-                    String lineMessage = message + "\n";
-                    socket.getOutputStream().write(lineMessage.getBytes());
-                } catch (IOException e) {
-                    Log.e(TAG, "bad write");
-                }
-            } else {
-                Log.d(TAG, "Disconnected from " + socket.getRemoteDevice().getAddress());
-                // socket is dead/disconnected, so remove from active socket list
-                iter.remove();
-                foundDeadSockets = true;
-            }
+    /**
+     * Starts merging the other listeners' results with ours, labelled by speaker.
+     */
+    private void startMerging() {
+        mMerger = new TranscriptMerger(mMergerOutput);
+        mLocalSource = mMerger.addSource(LOCAL_SPEAKER_LABEL);
+        for (String[] source : MERGE_SOURCES) {
+            MergeSourceClient client = new MergeSourceClient(mMerger,
+                    mMerger.addSource(source[0]), source[1], TCP_PORT);
+            mMergeSources.add(client);
+            client.start();
         }
+    }
 
-        if (foundDeadSockets) {
-            updateSocketCount();
+    private void useFakeSpeechBackend() {
+        FakeSpeechServer server = new FakeSpeechServer(FakeSpeechServer.DEFAULT_SCRIPT);
+        server.setLatency(FAKE_SPEECH_LATENCY_MILLIS, FAKE_SPEECH_JITTER_MILLIS);
+        try {
+            server.start();
+            mSpeechService.useFakeBackend(server);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start fake speech server.", e);
         }
     }
 
     /**
      * Add a new client listener.
-     * @param socket The socket the client is connected on.
+     * @param connection The connection the client is on.
      */
-    private void addActiveSocket(BluetoothSocket socket) {
-        mActiveSockets.add(socket);
-        updateSocketCount();
+    private void addActiveConnection(TranscriptConnection connection) {
+        mBroadcaster.addClient(connection);
     }
 
     /**
@@ -258,13 +425,15 @@ public class ListenerActivity extends ActionBarActivity {
      * whenever a new client connects, or a client disconnects.
      */
     private void updateSocketCount() {
-        int nActiveSockets = mActiveSockets.size();
+        // snapshot, since clients can drop out from their own threads at any time
+        List<TranscriptClient> clients = mBroadcaster.getClients();
+        int nActiveSockets = clients.size();
         if (nActiveSockets == 0) {
             mSendButton.setEnabled(false);
             mStatusText.setText(R.string.waiting_for_connect);
         } else if (nActiveSockets == 1) {
             mSendButton.setEnabled(true);
-            String deviceName = mActiveSockets.get(0).getRemoteDevice().getName();
+            String deviceName = clients.get(0).getName();
             if (deviceName == null) {
                 deviceName = "unknown device.";
             }
@@ -275,56 +444,4 @@ public class ListenerActivity extends ActionBarActivity {
                     + nActiveSockets + " devices.");
         }
     }
-
-    /**
-     * A {@link Thread} to listen for new connections and generate a {@link BluetoothSocket} for
-     * each.
-     */
-    private class NewConnectionListenerThread extends Thread {
-        private final BluetoothServerSocket mmServerSocket;
-        private boolean mmIsListening = false;
-
-        public NewConnectionListenerThread() {
-            BluetoothServerSocket socket = null;
-            try {
-                socket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(BT_SERVICE_NAME, BT_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to create RFCOMM socket.");
-            }
-            mmServerSocket = socket;
-            mmIsListening = true;
-        }
-
-        @Override
-        public void run() {
-            while (mmIsListening) {
-                try {
-                    BluetoothSocket socket = mmServerSocket.accept();
-                    Log.d(TAG, "Accepted connection from " + socket.getRemoteDevice().getAddress());
-                    addActiveSocket(socket);
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to accept connection.");
-                }
-            }
-
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "error closing server socket");
-            }
-        }
-
-        public void cancel() {
-            mmIsListening = false;
-        }
-
-        public void addActiveSocket(final BluetoothSocket socket) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    ListenerActivity.this.addActiveSocket(socket);
-                }
-            });
-        }
-    }
 }
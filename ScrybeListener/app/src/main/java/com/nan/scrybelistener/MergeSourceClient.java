@@ -0,0 +1,155 @@
+package com.nan.scrybelistener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects to another listener over TCP as a merging client, and feeds its results to a
+ * {@link TranscriptMerger} as one of its sources.
+ *
+ * Reconnects with backoff for as long as it's running, since a phone on the panel can drop off
+ * the network for a while. What the source was saying when it was lost is finished as it stands.
+ * A source that stops sending heartbeats is taken as lost too.
+ */
+public class MergeSourceClient {
+    private static final String TAG = "MergeSourceClient";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS =
+            (int) (3 * TranscriptProtocol.HEARTBEAT_INTERVAL_MILLIS);
+    private static final long RECONNECT_INITIAL_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 8000;
+
+    private final TranscriptMerger mMerger;
+    private final TranscriptMerger.Source mSource;
+    private final String mHost;
+    private final int mPort;
+    private final ReconnectBackoff mBackoff =
+            new ReconnectBackoff(RECONNECT_INITIAL_MILLIS, RECONNECT_MAX_MILLIS);
+    private Thread mThread;
+    private volatile Socket mSocket;
+    private volatile boolean mStopped = false;
+
+    // On the reading thread: the utterance being received, and its text so far
+    private long mUtteranceId = TranscriptProtocol.NO_UTTERANCE;
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * @param source The merger's source to feed.
+     * @param host Address of the listener to merge.
+     * @param port Its TCP port.
+     */
+    public MergeSourceClient(TranscriptMerger merger, TranscriptMerger.Source source, String host,
+                             int port) {
+        mMerger = merger;
+        mSource = source;
+        mHost = host;
+        mPort = port;
+    }
+
+    public void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, TAG + " " + mSource.getLabel());
+        mThread.start();
+    }
+
+    /**
+     * Disconnects and stops reconnecting.
+     */
+    public void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        closeSocket();
+    }
+
+    private void runLoop() {
+        while (!mStopped) {
+            try {
+                receive();
+            } catch (IOException e) {
+                Log.w(TAG, mSource.getLabel() + " at " + mHost + ": " + e.getMessage());
+            }
+            closeSocket();
+            mMerger.onSourceLost(mSource);
+            mUtteranceId = TranscriptProtocol.NO_UTTERANCE;
+            if (mStopped) {
+                return;
+            }
+
+            final long delay = mBackoff.nextDelayMillis();
+            Log.d(TAG, "Reconnecting to " + mSource.getLabel() + " in " + delay + "ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects, asks for source frames, and reads them until the connection is lost.
+     */
+    private void receive() throws IOException {
+        final Socket socket = new Socket();
+        mSocket = socket;
+        if (mStopped) {
+            return;
+        }
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        mBackoff.reset();
+        Log.d(TAG, "Merging " + mSource.getLabel() + " from " + mHost);
+
+        final OutputStream out = socket.getOutputStream();
+        out.write((TranscriptProtocol.HELLO + "\n" + TranscriptProtocol.MERGE + "\n").getBytes());
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final long receivedAt = SystemClock.elapsedRealtime();
+            if (TranscriptProtocol.PING.equals(line)) {
+                out.write((TranscriptProtocol.PONG + "\n").getBytes());
+                continue;
+            }
+
+            SourceUpdate update = TranscriptProtocol.parseSourceFrame(line);
+            if (update == null) {
+                Log.w(TAG, "Malformed source frame from " + mSource.getLabel());
+                continue;
+            }
+            if (update.getUtteranceId() != mUtteranceId) {
+                mUtteranceId = update.getUtteranceId();
+                mText.setLength(0);
+            } else {
+                mText.setLength(Math.min(update.getStableLength(), mText.length()));
+            }
+            mText.append(update.getSuffix());
+            mMerger.post(mSource, mUtteranceId, mText.toString(), update.isFinal(),
+                    update.getCapturedAt(), update.getSentAt(), receivedAt);
+        }
+    }
+
+    private void closeSocket() {
+        final Socket socket = mSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() failed");
+        }
+    }
+}
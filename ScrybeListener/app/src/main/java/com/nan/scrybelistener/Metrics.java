@@ -0,0 +1,244 @@
+package com.nan.scrybelistener;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, gauges and histograms, for seeing what the listener is doing while it runs.
+ *
+ * Components own their metrics and register them here to be read. Recording never takes a lock
+ * or allocates, so metrics can sit on the audio path: a counter is one atomic add, and a
+ * histogram a few. Reading and dumping can happen from any thread at any time, and sees each
+ * metric as of some moment while it was read.
+ *
+ * Names are dotted by component, e.g. "audio.frames_dropped", and end in their unit where they
+ * have one.
+ */
+public class Metrics {
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter {
+        private final AtomicLong mmValue = new AtomicLong();
+
+        public void increment() {
+            mmValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mmValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mmValue.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(mmValue.get());
+        }
+    }
+
+    /**
+     * A value read when the metrics are, like a queue's depth. Must be safe to call from any
+     * thread.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * Distribution of a non-negative value. Like an HDR histogram, buckets double in width
+     * every octave, with {@link #SUB_BUCKETS} of them per octave, so percentiles are within 1/8
+     * of the true value over the whole range of a long, in a fixed 4KB.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+        private final AtomicLongArray mmCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mmCount = new AtomicLong();
+        private final AtomicLong mmTotal = new AtomicLong();
+        private final AtomicLong mmMax = new AtomicLong();
+
+        /**
+         * @param value Negative values are recorded as 0.
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mmCounts.incrementAndGet(bucketOf(value));
+            mmCount.incrementAndGet();
+            mmTotal.addAndGet(value);
+            long max = mmMax.get();
+            while (value > max && !mmMax.compareAndSet(max, value)) {
+                max = mmMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mmCount.get();
+        }
+
+        public long getMean() {
+            final long count = mmCount.get();
+            return count > 0 ? mmTotal.get() / count : 0;
+        }
+
+        public long getMax() {
+            return mmMax.get();
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return The highest value that many percent of samples could be at or below, or 0 if
+         *         there are none.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            final long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mmCounts.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mmMax.get());
+                }
+            }
+            return mmMax.get();
+        }
+
+        /**
+         * Values below {@link #SUB_BUCKETS} get a bucket each. Above that, the top bit picks the
+         * octave and the next {@link #SUB_BUCKET_BITS} bits the bucket within it.
+         */
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int shift = bucket / SUB_BUCKETS - 1;
+            final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + getCount() + ", mean " + getMean() + ", p50 " + getPercentile(50)
+                    + ", p90 " + getPercentile(90) + ", p99 " + getPercentile(99) + ", max "
+                    + getMax();
+        }
+    }
+
+    // Counters, gauges and histograms, in name order for dumping
+    private final Map<String, Object> mMetrics = new ConcurrentSkipListMap<String, Object>();
+
+    /**
+     * @return The counter registered under the name, registering a new one if there isn't one.
+     */
+    public Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (!(metric instanceof Counter)) {
+            metric = new Counter();
+            mMetrics.put(name, metric);
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * @return The histogram registered under the name, registering a new one if there isn't one.
+     */
+    public Histogram histogram(String name) {
+        Object metric = mMetrics.get(name);
+        if (!(metric instanceof Histogram)) {
+            metric = new Histogram();
+            mMetrics.put(name, metric);
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Registers a component's own counter, replacing whatever was registered under the name.
+     */
+    public void register(String name, Counter counter) {
+        mMetrics.put(name, counter);
+    }
+
+    public void register(String name, Gauge gauge) {
+        mMetrics.put(name, gauge);
+    }
+
+    public void register(String name, Histogram histogram) {
+        mMetrics.put(name, histogram);
+    }
+
+    /**
+     * @return The current value of a counter or gauge, or 0 if there's no such metric.
+     */
+    public long getValue(String name) {
+        final Object metric = mMetrics.get(name);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        } else if (metric instanceof Gauge) {
+            return ((Gauge) metric).getValue();
+        }
+        return 0;
+    }
+
+    /**
+     * @return The histogram registered under the name, or null if there isn't one.
+     */
+    public Histogram getHistogram(String name) {
+        final Object metric = mMetrics.get(name);
+        return metric instanceof Histogram ? (Histogram) metric : null;
+    }
+
+    /**
+     * Writes every metric, one per line, in name order.
+     */
+    public void dump(Writer writer) {
+        final PrintWriter out = new PrintWriter(writer);
+        for (Map.Entry<String, Object> entry : mMetrics.entrySet()) {
+            final Object metric = entry.getValue();
+            out.print(entry.getKey());
+            out.print(": ");
+            out.println(metric instanceof Gauge ? ((Gauge) metric).getValue() : metric);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes every metric to a file, replacing it.
+     */
+    public void dump(File file) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.nan.scrybelistener;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff between reconnect attempts. Each delay is picked at random from
+ * the upper half of a window that doubles with every failed attempt, up to a maximum, so clients
+ * dropped at the same moment don't all retry in lockstep.
+ */
+public class ReconnectBackoff {
+    private final long mInitialMillis;
+    private final long mMaxMillis;
+    private final Random mRandom = new Random();
+    private long mWindowMillis;
+
+    public ReconnectBackoff(long initialMillis, long maxMillis) {
+        mInitialMillis = initialMillis;
+        mMaxMillis = maxMillis;
+        reset();
+    }
+
+    /**
+     * @return How long to wait before the next attempt, in milliseconds.
+     */
+    public long nextDelayMillis() {
+        final long window = mWindowMillis;
+        mWindowMillis = Math.min(window * 2, mMaxMillis);
+        return window / 2 + (long) (mRandom.nextDouble() * (window / 2));
+    }
+
+    /**
+     * Starts over from the initial delay, once a connection has succeeded.
+     */
+    public void reset() {
+        mWindowMillis = mInitialMillis;
+    }
+}
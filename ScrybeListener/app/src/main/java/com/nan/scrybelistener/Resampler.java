@@ -0,0 +1,178 @@
+package com.nan.scrybelistener;
+
+/**
+ * Streaming sample rate converter for 16-bit mono PCM, using a polyphase FIR filter.
+ *
+ * The conversion is done as if the input were upsampled by L, low-pass filtered and decimated by
+ * M, where L/M is the ratio of the rates in lowest terms. Only the filter taps that land on real
+ * input samples are ever computed, so each output sample costs one short dot product against one
+ * of the L phases of the filter.
+ *
+ * Coefficients are Q14 and the arithmetic is all int, and nothing is allocated after
+ * construction. Audio can be passed in chunks of any size; the filter's history carries over
+ * from one chunk to the next.
+ */
+public class Resampler {
+    // Width of the band between passband and stopband, just below the lower Nyquist frequency
+    private static final int TRANSITION_HZ = 1200;
+    // Taps needed for a Blackman window to fall off across the transition band
+    private static final double BLACKMAN_TRANSITION_WIDTH = 5.5;
+    private static final int COEFFICIENT_BITS = 14;
+    // Input is processed in pieces of up to this many samples, to bound the history buffer
+    private static final int MAX_CHUNK = 4096;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mUpFactor;
+    private final int mDownFactor;
+    private final int mTapsPerPhase;
+    // mTapsPerPhase coefficients for each of the mUpFactor phases, in the order they're applied
+    private final short[] mCoefficients;
+
+    // The last mTapsPerPhase - 1 input samples, followed by the chunk being processed
+    private final short[] mHistory;
+    // Input sample (in mHistory) the next output is centered on, and the phase it needs
+    private int mIndex;
+    private int mPhase;
+
+    public Resampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException(
+                    "Bad sample rates: " + inputRate + " -> " + outputRate);
+        }
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        final int gcd = gcd(inputRate, outputRate);
+        mUpFactor = outputRate / gcd;
+        mDownFactor = inputRate / gcd;
+        mTapsPerPhase = (int) Math.ceil(BLACKMAN_TRANSITION_WIDTH * inputRate / TRANSITION_HZ);
+        mCoefficients = designFilter();
+        mHistory = new short[mTapsPerPhase - 1 + MAX_CHUNK];
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * @return The most samples {@link #process(short[], int, short[], int)} can produce from
+     * the given number of input samples.
+     */
+    public int getMaxOutput(int inputCount) {
+        return (int) (((long) inputCount * mUpFactor + mDownFactor - 1) / mDownFactor) + 1;
+    }
+
+    /**
+     * Forgets the filter's history, for the start of a new recording.
+     */
+    public void reset() {
+        for (int i = 0; i < mTapsPerPhase - 1; i++) {
+            mHistory[i] = 0;
+        }
+        mIndex = mTapsPerPhase - 1;
+        mPhase = 0;
+    }
+
+    /**
+     * Converts a chunk of audio.
+     * @param in Input samples.
+     * @param count Number of input samples.
+     * @param out Destination, with room for at least {@link #getMaxOutput(int)} samples.
+     * @param offset Where in {@code out} to start writing.
+     * @return Number of samples written.
+     */
+    public int process(short[] in, int count, short[] out, int offset) {
+        int written = 0;
+        for (int start = 0; start < count; start += MAX_CHUNK) {
+            written += processChunk(in, start, Math.min(MAX_CHUNK, count - start), out,
+                    offset + written);
+        }
+        return written;
+    }
+
+    private int processChunk(short[] in, int start, int count, short[] out, int offset) {
+        final short[] history = mHistory;
+        final short[] coefficients = mCoefficients;
+        final int taps = mTapsPerPhase;
+        final int keep = taps - 1;
+        System.arraycopy(in, start, history, keep, count);
+        final int end = keep + count;
+
+        int position = offset;
+        int index = mIndex;
+        int phase = mPhase;
+        while (index < end) {
+            // newest sample first, against the phase's taps in order
+            final int base = phase * taps;
+            int acc = 1 << (COEFFICIENT_BITS - 1);
+            for (int k = 0; k < taps; k++) {
+                acc += coefficients[base + k] * history[index - k];
+            }
+            acc >>= COEFFICIENT_BITS;
+            if (acc > Short.MAX_VALUE) {
+                acc = Short.MAX_VALUE;
+            } else if (acc < Short.MIN_VALUE) {
+                acc = Short.MIN_VALUE;
+            }
+            out[position++] = (short) acc;
+
+            phase += mDownFactor;
+            index += phase / mUpFactor;
+            phase %= mUpFactor;
+        }
+
+        // keep the tail as history for the next chunk
+        System.arraycopy(history, count, history, 0, keep);
+        mIndex = index - count;
+        mPhase = phase;
+        return position - offset;
+    }
+
+    /**
+     * Windowed-sinc low-pass at the upsampled rate, cut off just below the lower of the two
+     * Nyquist frequencies, and split into phases.
+     */
+    private short[] designFilter() {
+        final int length = mUpFactor * mTapsPerPhase;
+        final double upsampledRate = (double) mInputRate * mUpFactor;
+        final double cutoff = (Math.min(mInputRate, mOutputRate) / 2.0 - TRANSITION_HZ / 2.0)
+                / upsampledRate;
+        final double center = (length - 1) / 2.0;
+        final double[] prototype = new double[length];
+        for (int j = 0; j < length; j++) {
+            final double t = j - center;
+            final double sinc = t == 0
+                    ? 2 * cutoff
+                    : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            final double window = 0.42
+                    - 0.5 * Math.cos(2 * Math.PI * j / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * j / (length - 1));
+            // each output only sees every L-th tap, so make up the gain
+            prototype[j] = sinc * window * mUpFactor;
+        }
+
+        final short[] coefficients = new short[length];
+        for (int phase = 0; phase < mUpFactor; phase++) {
+            for (int k = 0; k < mTapsPerPhase; k++) {
+                final double coefficient = prototype[phase + k * mUpFactor];
+                coefficients[phase * mTapsPerPhase + k] =
+                        (short) Math.round(coefficient * (1 << COEFFICIENT_BITS));
+            }
+        }
+        return coefficients;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
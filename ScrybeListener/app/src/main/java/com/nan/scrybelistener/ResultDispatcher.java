@@ -0,0 +1,167 @@
+package com.nan.scrybelistener;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hands recognition results to the {@link SpeechService}'s listeners, each on a thread of its
+ * own, so reading the API's responses never waits on a listener.
+ *
+ * A listener that falls behind only ever has one interim result waiting: each interim holds the
+ * utterance's full text so far, so a newer one replaces it, and a final result from the same
+ * recognition stream replaces any interim before it. A late final from a stream that has since
+ * been rolled over leaves the newer stream's interim waiting behind it. Final results are all
+ * delivered, in order, unless a listener is so far behind that more than
+ * {@link #MAX_QUEUED_FINALS} are waiting, when the oldest are dropped.
+ *
+ * Listeners can be added and removed from any thread.
+ */
+public class ResultDispatcher {
+    private static final String TAG = "ResultDispatcher";
+    private static final int MAX_QUEUED_FINALS = 64;
+
+    private static class Result {
+        final Object mmStream;
+        final String mmText;
+        final boolean mmIsFinal;
+        final CaptionTrace mmTrace;
+
+        Result(Object stream, String text, boolean isFinal, CaptionTrace trace) {
+            mmStream = stream;
+            mmText = text;
+            mmIsFinal = isFinal;
+            mmTrace = trace;
+        }
+    }
+
+    /**
+     * One listener, its queue, and the thread it's called on.
+     */
+    private class Delivery implements Runnable {
+        final SpeechService.Listener mmListener;
+        final ExecutorService mmExecutor;
+        // Guarded by this: finals waiting, the latest interim after them, and whether a run
+        // is already on its way to deliver them
+        private final ArrayDeque<Result> mmFinals = new ArrayDeque<Result>();
+        private Result mmInterim;
+        private boolean mmScheduled = false;
+
+        Delivery(SpeechService.Listener listener) {
+            mmListener = listener;
+            mmExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, TAG);
+                }
+            });
+        }
+
+        void post(Result result) {
+            synchronized (this) {
+                if (result.mmIsFinal) {
+                    // the interim is this final's utterance, unless it came from a newer stream
+                    if (mmInterim != null && mmInterim.mmStream == result.mmStream) {
+                        mmInterim = null;
+                        mInterimsReplaced.increment();
+                    }
+                    if (mmFinals.size() == MAX_QUEUED_FINALS) {
+                        mmFinals.pollFirst();
+                        mFinalsDropped.increment();
+                        Log.w(TAG, "Listener fell behind, dropped a final result");
+                    }
+                    mmFinals.addLast(result);
+                } else {
+                    if (mmInterim != null) {
+                        mInterimsReplaced.increment();
+                    }
+                    mmInterim = result;
+                }
+                if (mmScheduled) {
+                    return;
+                }
+                mmScheduled = true;
+            }
+            try {
+                mmExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the listener was removed while we were posting
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Result result;
+                synchronized (this) {
+                    result = mmFinals.isEmpty() ? mmInterim : mmFinals.pollFirst();
+                    if (result == null) {
+                        mmScheduled = false;
+                        return;
+                    }
+                    if (result == mmInterim) {
+                        mmInterim = null;
+                    }
+                }
+                mmListener.onSpeechRecognized(result.mmText, result.mmIsFinal, result.mmTrace);
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Delivery> mDeliveries =
+            new CopyOnWriteArrayList<Delivery>();
+    private final Metrics.Counter mInterimsReplaced;
+    private final Metrics.Counter mFinalsDropped;
+
+    /**
+     * @param metrics Where to count the results listeners missed.
+     */
+    public ResultDispatcher(Metrics metrics) {
+        mInterimsReplaced = metrics.counter("speech.dispatch_interims_replaced");
+        mFinalsDropped = metrics.counter("speech.dispatch_finals_dropped");
+    }
+
+    public void addListener(SpeechService.Listener listener) {
+        mDeliveries.add(new Delivery(listener));
+    }
+
+    /**
+     * Stops delivering to a listener. A result it's being given already may still finish.
+     */
+    public void removeListener(SpeechService.Listener listener) {
+        for (Delivery delivery : mDeliveries) {
+            if (delivery.mmListener == listener) {
+                mDeliveries.remove(delivery);
+                delivery.mmExecutor.shutdownNow();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a result for every listener. Never blocks on them.
+     * @param stream The recognition stream the result came from. Only compared, to tell which
+     *               interim a final result ends.
+     */
+    public void dispatch(Object stream, String text, boolean isFinal, CaptionTrace trace) {
+        final Result result = new Result(stream, text, isFinal, trace);
+        for (Delivery delivery : mDeliveries) {
+            delivery.post(result);
+        }
+    }
+
+    /**
+     * Stops delivering to every listener.
+     */
+    public void shutdown() {
+        for (Delivery delivery : mDeliveries) {
+            delivery.mmExecutor.shutdownNow();
+        }
+        mDeliveries.clear();
+    }
+}
@@ -0,0 +1,186 @@
+package com.nan.scrybelistener;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * A {@link TranscriptTransport} over Bluetooth RFCOMM. Uses a thread to accept connections, and a
+ * reader and a writer thread for each connection.
+ */
+public class RfcommTranscriptTransport implements TranscriptTransport {
+    private static final String TAG = "RfcommTransport";
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mServiceName;
+    private final UUID mUuid;
+    private BluetoothServerSocket mServerSocket;
+    private volatile boolean mIsListening = false;
+
+    public RfcommTranscriptTransport(BluetoothAdapter adapter, String serviceName, UUID uuid) {
+        mBluetoothAdapter = adapter;
+        mServiceName = serviceName;
+        mUuid = uuid;
+    }
+
+    @Override
+    public void start(final Listener listener) throws IOException {
+        mServerSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(mServiceName, mUuid);
+        mIsListening = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsListening) {
+                    try {
+                        BluetoothSocket socket = mServerSocket.accept();
+                        Log.d(TAG, "Accepted connection from "
+                                + socket.getRemoteDevice().getAddress());
+                        listener.onConnection(new RfcommConnection(socket));
+                    } catch (IOException e) {
+                        if (mIsListening) {
+                            Log.e(TAG, "Failed to accept connection.");
+                        }
+                    }
+                }
+            }
+        }).start();
+    }
+
+    @Override
+    public void stop() {
+        mIsListening = false;
+        if (mServerSocket != null) {
+            try {
+                // unblocks accept()
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "error closing server socket");
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Bluetooth";
+    }
+
+    /**
+     * A connection over a {@link BluetoothSocket}, which only supports blocking I/O.
+     */
+    private static class RfcommConnection implements TranscriptConnection {
+        private final BluetoothSocket mmSocket;
+        private final Object mmLock = new Object();
+        private Handler mmHandler;
+        private boolean mmFramesQueued = false;
+        private boolean mmClosed = false;
+
+        RfcommConnection(BluetoothSocket socket) {
+            mmSocket = socket;
+        }
+
+        @Override
+        public void start(Handler handler) {
+            mmHandler = handler;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }).start();
+        }
+
+        private void readLoop() {
+            try {
+                BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(mmSocket.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    mmHandler.onLineReceived(line);
+                }
+                Log.d(TAG, getAddress() + " hung up");
+            } catch (IOException e) {
+                Log.d(TAG, "read from " + getAddress() + " ended");
+            }
+            close();
+        }
+
+        private void writeLoop() {
+            try {
+                final OutputStream out = mmSocket.getOutputStream();
+                while (true) {
+                    synchronized (mmLock) {
+                        while (!mmFramesQueued && !mmClosed) {
+                            mmLock.wait();
+                        }
+                        if (mmClosed) {
+                            break;
+                        }
+                        mmFramesQueued = false;
+                    }
+
+                    byte[] frame;
+                    while ((frame = mmHandler.pollFrame()) != null) {
+                        out.write(frame);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "bad write to " + getAddress());
+            } catch (InterruptedException e) {
+                Log.d(TAG, "writer for " + getAddress() + " interrupted");
+            }
+            close();
+        }
+
+        @Override
+        public void onFramesQueued() {
+            synchronized (mmLock) {
+                mmFramesQueued = true;
+                mmLock.notify();
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getName() {
+            return mmSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() {
+            synchronized (mmLock) {
+                if (mmClosed) {
+                    return;
+                }
+                mmClosed = true;
+                mmLock.notify();
+            }
+
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "error closing socket");
+            }
+            if (mmHandler != null) {
+                mmHandler.onClosed();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.nan.scrybelistener;
+
+/**
+ * A change to an utterance received from another listener being merged: keep the first
+ * {@link #getStableLength()} characters and replace the rest with {@link #getSuffix()}. Times are
+ * on the sending listener's clock.
+ */
+public class SourceUpdate {
+    private final long mUtteranceId;
+    private final int mStableLength;
+    private final String mSuffix;
+    private final boolean mIsFinal;
+    private final long mCapturedAt;
+    private final long mSentAt;
+
+    public SourceUpdate(long utteranceId, int stableLength, String suffix, boolean isFinal,
+                        long capturedAt, long sentAt) {
+        mUtteranceId = utteranceId;
+        mStableLength = stableLength;
+        mSuffix = suffix;
+        mIsFinal = isFinal;
+        mCapturedAt = capturedAt;
+        mSentAt = sentAt;
+    }
+
+    public long getUtteranceId() {
+        return mUtteranceId;
+    }
+
+    public int getStableLength() {
+        return mStableLength;
+    }
+
+    public String getSuffix() {
+        return mSuffix;
+    }
+
+    public boolean isFinal() {
+        return mIsFinal;
+    }
+
+    /**
+     * @return When the utterance was captured.
+     */
+    public long getCapturedAt() {
+        return mCapturedAt;
+    }
+
+    /**
+     * @return When the frame was sent.
+     */
+    public long getSentAt() {
+        return mSentAt;
+    }
+}
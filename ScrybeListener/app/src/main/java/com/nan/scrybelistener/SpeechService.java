@@ -7,19 +7,23 @@ import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Date;
 
 import com.google.auth.Credentials;
@@ -33,6 +37,7 @@ import com.google.cloud.speech.v1.StreamingRecognitionResult;
 import com.google.cloud.speech.v1.StreamingRecognizeRequest;
 import com.google.cloud.speech.v1.StreamingRecognizeResponse;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import io.grpc.CallOptions;
 import io.grpc.Channel;
@@ -46,12 +51,20 @@ import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.internal.DnsNameResolverProvider;
 import io.grpc.okhttp.OkHttpChannelProvider;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
 public class SpeechService extends Service {
 
     public interface Listener {
-        void onSpeechRecognized(String text, boolean isFinal);
+        /**
+         * Called on a thread of the listener's own. Interim results the listener is too slow
+         * for are skipped in favour of the latest.
+         * @param trace When the result passed each stage so far, or null if the audio wasn't
+         *              traced.
+         */
+        void onSpeechRecognized(String text, boolean isFinal, CaptionTrace trace);
     }
 
     private static final String TAG = "SpeechService";
@@ -59,59 +72,110 @@ public class SpeechService extends Service {
     private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
     private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
     private static final int ACCESS_TOKEN_EXPIRY_TOL = 30 * 60 * 1000; // 30 mins
-    private static final int ACCESS_TOKEN_FETCH_MARGIN = 60 * 1000;
+    // Tokens are refreshed this long before they expire, so no call ever starts with a stale one
+    private static final int ACCESS_TOKEN_FETCH_MARGIN = 5 * 60 * 1000;
+    // Failed token fetches are retried with backoff between these
+    private static final long ACCESS_TOKEN_RETRY_INITIAL_MILLIS = 1000;
+    private static final long ACCESS_TOKEN_RETRY_MAX_MILLIS = 60 * 1000;
     private static final List<String> SCOPE =
             Collections.singletonList("https://www.googleapis.com/auth/cloud-platform");
     private static final String HOSTNAME = "speech.googleapis.com";
     private static final int PORT = 443;
+    // The API cuts streams off after about a minute, so continuous sessions move to a fresh
+    // stream a little before that
+    private static final int STREAM_ROLLOVER_MILLIS = 50 * 1000;
+    // Audio replayed into the new stream on rollover, so a word cut off mid-way by the old
+    // stream is still heard in full by the new one
+    private static final int STREAM_OVERLAP_MILLIS = 2000;
+    // A continuous session's stream that ends early is replaced, but no more often than this,
+    // so an API that refuses every stream isn't hammered with new ones
+    private static final int STREAM_RETRY_MILLIS = 1000;
+    // The API gives up on streams that go too long without audio, so an idle standby stream is
+    // replaced before that can happen
+    private static final int STANDBY_MAX_AGE_MILLIS = 8000;
+    // Sample rate assumed for the standby stream until told otherwise
+    private static final int DEFAULT_SAMPLE_RATE = 16000;
+    // Most audio a stream holds while gRPC isn't ready for more, in bytes of PCM. Past this the
+    // uplink is slower than real time, and the oldest is dropped so recognition catches up with
+    // the speaker.
+    private static final int MAX_BUFFERED_MILLIS = 3000;
+    // Where metrics are dumped when the service is destroyed, in its files directory
+    private static final String METRICS_FILE = "metrics.txt";
 
     private final SpeechBinder mBinder = new SpeechBinder();
-    private final ArrayList<Listener> mListeners = new ArrayList<>();
-    private volatile AccessTokenTask mAccessTokenTask;
+    private final Metrics mMetrics = new Metrics();
+    // Calls listeners off the thread responses are read on
+    private final ResultDispatcher mDispatcher = new ResultDispatcher(mMetrics);
+    private final TranscriptStitcher mStitcher = new TranscriptStitcher();
+    private GoogleCredentialsInterceptor mCredentialsInterceptor;
+    // Fetches access tokens in the background, and swaps them into the interceptor
+    private ScheduledExecutorService mTokenRefresher;
+    // On the refresher's thread: the service account tokens come from, read once
+    private GoogleCredentials mServiceCredentials;
+    private final ReconnectBackoff mTokenRetry =
+            new ReconnectBackoff(ACCESS_TOKEN_RETRY_INITIAL_MILLIS, ACCESS_TOKEN_RETRY_MAX_MILLIS);
     private SpeechGrpc.SpeechStub mApi;
+    // Set while streams go to a FakeSpeechServer instead of the real API
+    private volatile FakeSpeechServer mFakeServer;
     private static Handler mHandler;
 
-    /**
-     * Watches stream and informs listeners when new text is available.
-     */
-    private final StreamObserver<StreamingRecognizeResponse> mResponseObserver
-            = new StreamObserver<StreamingRecognizeResponse>() {
-        @Override
-        public void onNext(StreamingRecognizeResponse response) {
-            String text = null;
-            boolean isFinal = false;
-            if (response.getResultsCount() > 0) {
-                final StreamingRecognitionResult result = response.getResults(0);
-                isFinal = result.getIsFinal();
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alt = result.getAlternatives(0);
-                    text = alt.getTranscript();
-                }
-            }
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, isFinal);
-                }
-            }
-        }
+    private volatile RecognitionStream mStream;
+    private volatile boolean mContinuous = false;
+    // Set when a continuous session was started before the API was ready, so its stream is
+    // opened as soon as it is
+    private volatile boolean mStartPending = false;
+    private volatile int mSampleRate = DEFAULT_SAMPLE_RATE;
+    private AudioHistory mHistory;
 
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Stream error", t);
-        }
+    // How audio is sent to the API. FLAC is encoded by mUplinkEncoder, off the audio path.
+    private volatile RecognitionConfig.AudioEncoding mEncoding =
+            RecognitionConfig.AudioEncoding.LINEAR16;
+    private UplinkEncoder mUplinkEncoder;
+    private final Metrics.Counter mAudioBytesIn = mMetrics.counter("speech.audio_bytes_in");
+    private final Metrics.Counter mAudioBytesSent =
+            mMetrics.counter("speech.audio_bytes_uploaded");
+    // Audio that arrived with no stream open to send it on
+    private final Metrics.Counter mAudioDropped = mMetrics.counter("speech.audio_chunks_dropped");
+    private final Metrics.Counter mStreamsOpened = mMetrics.counter("speech.streams_opened");
+    private final Metrics.Counter mStreamErrors = mMetrics.counter("speech.stream_errors");
+    private final Metrics.Counter mPartials = mMetrics.counter("speech.results_partial");
+    private final Metrics.Counter mFinals = mMetrics.counter("speech.results_final");
+    // Audio waiting for flow control, over all streams, and what was dropped when too much was
+    private final AtomicLong mBufferedBytes = new AtomicLong();
+    private final Metrics.Counter mBufferedBytesDropped =
+            mMetrics.counter("speech.uplink_bytes_dropped");
+    private volatile long mMaxBufferedBytes;
 
-        @Override
-        public void onCompleted() {
-            Log.d(TAG, "Stream closing.");
-        }
-    };
+    // A stream kept open with its config already sent, ready to be swapped in on voice start
+    private RecognitionStream mStandby;
+    private final Object mStandbyLock = new Object();
+    private final Metrics.Counter mStandbyHits = mMetrics.counter("speech.standby_hits");
+    private final Metrics.Counter mStandbyMisses = mMetrics.counter("speech.standby_misses");
+
+    // Time from voice start to the first result of the utterance
+    private volatile long mVoiceStartTime;
+    private volatile boolean mAwaitingFirstResult = false;
+    private final Metrics.Histogram mFirstResultMillis =
+            mMetrics.histogram("speech.time_to_first_partial_ms");
+    private volatile long mFirstResultLastMillis;
 
-    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+    // The newest traced audio frame sent, for tracing results back to it. The id is written
+    // last and read first.
+    private volatile long mLastFrameId = -1;
+    private volatile long mLastFrameCapturedAt;
+    private volatile long mLastFrameSentAt;
 
     public static SpeechService from(IBinder binder) {
         return ((SpeechBinder) binder).getService();
     }
 
+    /**
+     * @return The metrics of the service bound through the binder.
+     */
+    public static Metrics metricsFrom(IBinder binder) {
+        return ((SpeechBinder) binder).getMetrics();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -121,16 +185,56 @@ public class SpeechService extends Service {
     public void onCreate() {
         super.onCreate();
         mHandler = new Handler();
-        getAccessToken();
+
+        // Build the channel right away so it's ready by the time we have credentials. The
+        // first standby stream is what actually makes it connect. It lasts as long as the
+        // service: tokens are swapped into the interceptor as they're refreshed.
+        mCredentialsInterceptor = new GoogleCredentialsInterceptor();
+        mUplinkEncoder = new UplinkEncoder();
+        mMetrics.register("speech.uplink_buffered_bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBufferedBytes.get();
+            }
+        });
+        mMetrics.register("speech.uplink_buffered_bytes_max", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMaxBufferedBytes;
+            }
+        });
+        mMetrics.register("speech.uplink_queued_chunks", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mUplinkEncoder.getQueuedChunks();
+            }
+        });
+        final ManagedChannel channel = new OkHttpChannelProvider()
+                .builderForAddress(HOSTNAME, PORT)
+                .nameResolverFactory(new DnsNameResolverProvider())
+                .intercept(mCredentialsInterceptor)
+                .build();
+        mApi = SpeechGrpc.newStub(channel);
+
+        mTokenRefresher = Executors.newSingleThreadScheduledExecutor();
+        mTokenRefresher.execute(mRefreshAccessToken);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
-        mHandler.removeCallbacks(mGetAccessTokenRunnable);
+        mTokenRefresher.shutdownNow();
+        mHandler.removeCallbacks(mStandbyRunnable);
         mHandler = null;
 
+        synchronized (mStandbyLock) {
+            if (mStandby != null) {
+                mStandby.cancel();
+                mStandby = null;
+            }
+        }
+
         // Close connection to speech API
         if (mApi != null) {
             final ManagedChannel channel = (ManagedChannel) mApi.getChannel();
@@ -143,44 +247,151 @@ public class SpeechService extends Service {
             }
             mApi = null;
         }
+        if (mFakeServer != null) {
+            mFakeServer.shutdown();
+            mFakeServer = null;
+        }
+        mUplinkEncoder.shutdown();
+        mDispatcher.shutdown();
+        dumpMetrics();
+    }
+
+    /**
+     * @return The listener's metrics. The service's own are registered here, and the activity
+     * adds those of the recorder and the broadcaster.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Writes the metrics to a file in the service's files directory.
+     * @return The file, or null if it couldn't be written.
+     */
+    public File dumpMetrics() {
+        final File file = new File(getFilesDir(), METRICS_FILE);
+        try {
+            mMetrics.dump(file);
+            Log.d(TAG, "Metrics written to " + file);
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write metrics", e);
+            return null;
+        }
     }
 
-    private void getAccessToken() {
-        if (mAccessTokenTask == null) {
-            mAccessTokenTask = new AccessTokenTask();
-            mAccessTokenTask.execute();
+    /**
+     * Sends all recognition to the given server from now on instead of the Cloud Speech API, so
+     * the service can be tested and load-tested offline. The service takes ownership of the
+     * server and shuts it down with itself.
+     */
+    public void useFakeBackend(FakeSpeechServer server) {
+        synchronized (mStandbyLock) {
+            if (mStandby != null) {
+                mStandby.cancel();
+                mStandby = null;
+            }
         }
+        if (mApi != null) {
+            // a stream in progress is left to finish on the old channel
+            ((ManagedChannel) mApi.getChannel()).shutdown();
+        }
+        if (mFakeServer != null) {
+            mFakeServer.shutdown();
+        }
+
+        mFakeServer = server;
+        mApi = SpeechGrpc.newStub(server.newChannel());
+        Log.d(TAG, "Using fake speech backend");
+        replenishStandby();
     }
 
+    /**
+     * @return Whether streams can be opened, i.e. we have a channel and it can authenticate.
+     */
+    private boolean isApiReady() {
+        return mApi != null && (mFakeServer != null || mCredentialsInterceptor.hasCredentials());
+    }
+
+
+    /**
+     * Starts delivering results to the listener, on a thread of its own.
+     */
     public void addListener(@NonNull Listener listener) {
-        mListeners.add(listener);
+        mDispatcher.addListener(listener);
     }
 
     public void removeListener(@NonNull Listener listener) {
-        mListeners.remove(listener);
+        mDispatcher.removeListener(listener);
     }
 
-    public void startRecognizing(int sampleRate) {
-        if (mApi == null) {
-            Log.e(TAG, "API not initialized.");
-            return;
+    /**
+     * Tells the service what the next {@link #startRecognizing(int, boolean)} will ask for, so
+     * the standby stream can be opened with the right config ahead of time.
+     */
+    public void prepareRecognizing(int sampleRate, boolean continuous) {
+        mSampleRate = sampleRate;
+        mContinuous = continuous;
+        replenishStandby();
+    }
+
+    /**
+     * Chooses how audio is sent to the API, for streams opened from now on. FLAC costs some CPU
+     * for about half the bandwidth of LINEAR16.
+     * @param encoding {@link RecognitionConfig.AudioEncoding#LINEAR16} or
+     *                 {@link RecognitionConfig.AudioEncoding#FLAC}.
+     */
+    public void setUplinkEncoding(RecognitionConfig.AudioEncoding encoding) {
+        if (encoding != RecognitionConfig.AudioEncoding.LINEAR16
+                && encoding != RecognitionConfig.AudioEncoding.FLAC) {
+            throw new IllegalArgumentException("Unsupported uplink encoding: " + encoding);
         }
+        mEncoding = encoding;
+        // the standby was configured for the old encoding
+        replenishStandby();
+    }
 
-        // Send an API request to configure the audio format and language options of the stream
-        mRequestObserver = mApi.streamingRecognize(mResponseObserver);
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
-                        .setConfig(RecognitionConfig.newBuilder()
-                                .setLanguageCode("en-US")
-                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                .setSampleRateHertz(sampleRate)
-                                .build())
-                        .setInterimResults(true)
-                        .setSingleUtterance(true)
-                        .build())
-                .build());
+    public RecognitionConfig.AudioEncoding getUplinkEncoding() {
+        return mEncoding;
+    }
 
+    public void startRecognizing(int sampleRate) {
+        startRecognizing(sampleRate, false);
+    }
 
+    /**
+     * Opens a new recognition stream.
+     * @param sampleRate Sample rate of the audio that will be sent.
+     * @param continuous If false, the stream ends after the first utterance. If true, the stream
+     *                   stays open across pauses until {@link #finishRecognizing()}, and is
+     *                   transparently replaced by a new one before it hits the API's time limit.
+     */
+    public void startRecognizing(int sampleRate, boolean continuous) {
+        if (!isApiReady()) {
+            if (continuous) {
+                // the recorder won't start the session again, so start it once we can
+                Log.w(TAG, "API not initialized, starting once it is.");
+                mSampleRate = sampleRate;
+                mStartPending = true;
+            } else {
+                Log.e(TAG, "API not initialized.");
+            }
+            return;
+        }
+        mStartPending = false;
+
+        mVoiceStartTime = SystemClock.elapsedRealtime();
+        mAwaitingFirstResult = true;
+        mSampleRate = sampleRate;
+        mContinuous = continuous;
+        if (continuous) {
+            // 16-bit mono
+            mHistory = new AudioHistory(sampleRate * 2 * STREAM_OVERLAP_MILLIS / 1000);
+            mStitcher.reset();
+        } else {
+            mHistory = null;
+        }
+        mStream = takeStream(!continuous);
     }
 
     /**
@@ -190,45 +401,656 @@ public class SpeechService extends Service {
      */
     public void recognize(byte[] data, int size) {
         //Log.d(TAG, "recognize");
-        if (mRequestObserver == null) {
+        if (!ensureStream()) {
             Log.d(TAG, "null request observer");
+            mAudioDropped.increment();
             return;
         }
 
+        if (mContinuous) {
+            rolloverIfNeeded();
+            mHistory.write(data, 0, size);
+        }
+
         // Send the API recognition request
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-            .setAudioContent(ByteString.copyFrom(data, 0, size))
-            .build());
+        mStream.sendAudio(data, size);
+    }
+
+    /**
+     * Called whenever a new chunk of audio is available in a recycled buffer.
+     *
+     * Once the call is ready, a network channel serializes each message before onNext returns,
+     * so the buffer can be wrapped without copying and handed back to its pool as soon as we
+     * return. Audio that has to wait for the call, or that goes to the in-process fake backend,
+     * which passes messages on without serializing them, is copied.
+     * @param data Audio data, linear 16-bit format, starting at the buffer's position.
+     * @param size Size of the data in the buffer.
+     */
+    public void recognize(ByteBuffer data, int size) {
+        if (!ensureStream()) {
+            Log.d(TAG, "null request observer");
+            mAudioDropped.increment();
+            return;
+        }
+
+        final int limit = data.limit();
+        data.limit(data.position() + size);
+        try {
+            if (mContinuous) {
+                rolloverIfNeeded();
+                mHistory.write(data);
+            }
+
+            // Send the API recognition request
+            mStream.sendAudio(data);
+        } finally {
+            data.limit(limit);
+        }
+    }
+
+    /**
+     * Like {@link #recognize(ByteBuffer, int)}, also noting the frame so the results that follow
+     * can be traced back to it.
+     * @param frameId Sequence number of the frame.
+     * @param capturedAt When the frame was captured, by {@link SystemClock#elapsedRealtime()}.
+     */
+    public void recognize(ByteBuffer data, int size, long frameId, long capturedAt) {
+        recognize(data, size);
+        mLastFrameCapturedAt = capturedAt;
+        mLastFrameSentAt = SystemClock.elapsedRealtime();
+        mLastFrameId = frameId;
     }
 
     public void finishRecognizing() {
-        if (mRequestObserver == null) {
+        mStartPending = false;
+        if (mStream == null) {
+            return;
+        }
+
+        mStream.finish();
+        mStream = null;
+    }
+
+    /**
+     * Replaces the current stream of a continuous session with a new one once it gets close to
+     * the API's time limit. The new stream is primed with the most recent audio before the old
+     * one is closed, and the old stream's remaining final results are still reported.
+     */
+    private void rolloverIfNeeded() {
+        if (SystemClock.elapsedRealtime() - mStream.mmStartTime < STREAM_ROLLOVER_MILLIS) {
+            return;
+        }
+        Log.d(TAG, "rolling over to a new stream");
+        rollover();
+    }
+
+    /**
+     * Makes sure there's a stream to send audio to. A continuous session that was started
+     * before the API was ready gets its stream once it is, and one whose stream was ended by
+     * an error rolls over to a new one, rather than dropping audio until the next rollover.
+     * @return Whether there's a stream.
+     */
+    private boolean ensureStream() {
+        if (mStream == null && mStartPending && isApiReady()) {
+            startRecognizing(mSampleRate, true);
+        }
+        final RecognitionStream stream = mStream;
+        if (stream == null) {
+            return false;
+        }
+        if (mContinuous && stream.mmClosed
+                && SystemClock.elapsedRealtime() - stream.mmStartTime >= STREAM_RETRY_MILLIS) {
+            Log.w(TAG, "stream ended early, replacing it");
+            rollover();
+        }
+        return true;
+    }
+
+    /**
+     * Moves a continuous session on to a new stream, primed with the most recent audio.
+     */
+    private void rollover() {
+        final RecognitionStream old = mStream;
+        final RecognitionStream next = takeStream(false);
+        if (mHistory.size() > 0) {
+            final byte[] overlap = new byte[mHistory.size()];
+            mHistory.read(overlap);
+            next.sendAudio(overlap, overlap.length);
+        }
+        mStitcher.rollover();
+        old.mmSuperseded = true;
+        mStream = next;
+        old.finish();
+    }
+
+    /**
+     * Gets a stream for the current sample rate, swapping in the standby stream if it's usable.
+     * A new standby is then opened from the main thread, off the audio path.
+     */
+    private RecognitionStream takeStream(boolean singleUtterance) {
+        RecognitionStream stream = null;
+        synchronized (mStandbyLock) {
+            if (mStandby != null) {
+                if (mStandby.isUsable(mSampleRate, singleUtterance)) {
+                    stream = mStandby;
+                } else {
+                    mStandby.cancel();
+                }
+                mStandby = null;
+            }
+        }
+
+        if (stream != null) {
+            mStandbyHits.increment();
+        } else {
+            mStandbyMisses.increment();
+            stream = new RecognitionStream(mSampleRate, singleUtterance);
+        }
+
+        final Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mStandbyRunnable);
+            handler.post(mStandbyRunnable);
+        }
+        return stream;
+    }
+
+    /**
+     * Replaces the standby stream with a fresh one, and schedules the next replacement before
+     * the API would time it out.
+     */
+    private void replenishStandby() {
+        if (!isApiReady()) {
             return;
         }
 
-        mRequestObserver.onCompleted();
-        mRequestObserver = null;
+        synchronized (mStandbyLock) {
+            if (mStandby != null) {
+                mStandby.cancel();
+            }
+            mStandby = new RecognitionStream(mSampleRate, !mContinuous);
+        }
+
+        final Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mStandbyRunnable);
+            handler.postDelayed(mStandbyRunnable, STANDBY_MAX_AGE_MILLIS);
+        }
+    }
+
+    private final Runnable mStandbyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            replenishStandby();
+        }
+    };
+
+    /**
+     * @return Number of streams started by swapping in a ready standby stream.
+     */
+    public long getStandbyHits() {
+        return mStandbyHits.get();
+    }
+
+    /**
+     * @return Number of streams that had to be opened on demand.
+     */
+    public long getStandbyMisses() {
+        return mStandbyMisses.get();
+    }
+
+    /**
+     * @return Bytes of 16-bit PCM given to the service to recognize.
+     */
+    public long getAudioBytesIn() {
+        return mAudioBytesIn.get();
+    }
+
+    /**
+     * @return Bytes of audio sent to the API, after any compression.
+     */
+    public long getAudioBytesSent() {
+        return mAudioBytesSent.get();
+    }
+
+    /**
+     * @return Time spent compressing audio so far, in milliseconds.
+     */
+    public long getEncodeMillis() {
+        return mUplinkEncoder.getEncodeNanos() / 1000000;
+    }
+
+    /**
+     * @return Average time from voice start to the utterance's first result, in milliseconds.
+     */
+    public long getAverageTimeToFirstResult() {
+        return mFirstResultMillis.getMean();
+    }
+
+    public long getLastTimeToFirstResult() {
+        return mFirstResultLastMillis;
+    }
+
+    public long getMaxTimeToFirstResult() {
+        return mFirstResultMillis.getMax();
+    }
+
+    private void recordFirstResult() {
+        final long elapsed = SystemClock.elapsedRealtime() - mVoiceStartTime;
+        mFirstResultMillis.record(elapsed);
+        mFirstResultLastMillis = elapsed;
+        Log.d(TAG, "time to first result: " + elapsed + "ms");
+    }
+
+    /**
+     * Informs listeners when new text is available from one of our streams.
+     */
+    private void onResponse(RecognitionStream stream, StreamingRecognizeResponse response) {
+        String text = null;
+        boolean isFinal = false;
+        if (response.getResultsCount() > 0) {
+            final StreamingRecognitionResult result = response.getResults(0);
+            isFinal = result.getIsFinal();
+            if (result.getAlternativesCount() > 0) {
+                final SpeechRecognitionAlternative alt = result.getAlternatives(0);
+                text = alt.getTranscript();
+            }
+        }
+        if (text == null) {
+            return;
+        }
+        (isFinal ? mFinals : mPartials).increment();
+
+        final long frameId = mLastFrameId;
+        final CaptionTrace trace = frameId < 0 ? null : new CaptionTrace(frameId,
+                mLastFrameCapturedAt, mLastFrameSentAt, SystemClock.elapsedRealtime());
+
+        if (mAwaitingFirstResult && stream == mStream) {
+            mAwaitingFirstResult = false;
+            recordFirstResult();
+        }
+
+        if (mContinuous) {
+            // a stream that's been rolled over only has finals left that are worth showing
+            if (stream.mmSuperseded && !isFinal) {
+                return;
+            }
+            text = mStitcher.stitch(text, isFinal, stream == mStream);
+            if (text.isEmpty()) {
+                return;
+            }
+        }
+
+        mDispatcher.dispatch(stream, text, isFinal, trace);
+    }
+
+    /**
+     * A single streamingRecognize call. Watches its responses and passes them back to the
+     * service tagged with the stream they came from.
+     *
+     * With FLAC, audio goes through the {@link UplinkEncoder}, which makes the actual requests
+     * from its own thread, including the end of the call.
+     *
+     * Audio is only written while gRPC's flow control says the call is ready for it. Until then
+     * it waits in a buffer of the stream's own, which is sent from the call's ready handler. If
+     * more than {@link #MAX_BUFFERED_MILLIS} worth of PCM bytes piles up, the oldest is dropped
+     * and counted in the metrics, so the app can see it should pick a compressed uplink. The
+     * bound is in bytes as sent, so a FLAC stream holds roughly twice as much time. Its first
+     * chunk carries the FLAC header, and is never dropped. Writes and the end of the call are
+     * made under the stream's lock, since they can come from the audio thread, the encoder and
+     * gRPC's executor.
+     */
+    private class RecognitionStream implements
+            ClientResponseObserver<StreamingRecognizeRequest, StreamingRecognizeResponse>,
+            UplinkEncoder.Sink {
+        private final StreamObserver<StreamingRecognizeRequest> mmRequestObserver;
+        // The request side's flow control, set as the call starts
+        private ClientCallStreamObserver<StreamingRecognizeRequest> mmCall;
+        // Audio waiting for the call to be ready, and whether to end the call once it's sent
+        private final ArrayDeque<ByteString> mmBuffered = new ArrayDeque<ByteString>();
+        private long mmBufferedBytes = 0;
+        private final long mmMaxBufferedBytes;
+        private boolean mmFinishing = false;
+        // Whether any audio has been written. Until then, a FLAC stream's oldest buffered chunk
+        // holds the stream header, which the API can't decode anything without.
+        private boolean mmWritten = false;
+        private final long mmStartTime = SystemClock.elapsedRealtime();
+        private final int mmSampleRate;
+        private final boolean mmSingleUtterance;
+        private final RecognitionConfig.AudioEncoding mmEncoding;
+        // Null unless the stream is compressed
+        private final UplinkEncoder.Stream mmUplink;
+        // Set once a newer stream in the same session has taken over
+        private volatile boolean mmSuperseded = false;
+        // Set once the call has ended, whether by error or by us cancelling it
+        private volatile boolean mmClosed = false;
+        // Whether audio in recycled buffers has to be copied before it's written, because the
+        // channel holds on to messages rather than serializing them
+        private final boolean mmCopyWrites = mFakeServer != null;
+
+        RecognitionStream(int sampleRate, boolean singleUtterance) {
+            mmSampleRate = sampleRate;
+            mmSingleUtterance = singleUtterance;
+            mmEncoding = mEncoding;
+            // 16-bit mono, in bytes as sent, so it holds more time once it's compressed
+            mmMaxBufferedBytes = (long) sampleRate * 2 * MAX_BUFFERED_MILLIS / 1000;
+            mmUplink = mmEncoding == RecognitionConfig.AudioEncoding.FLAC
+                    ? mUplinkEncoder.openStream(sampleRate, this)
+                    : null;
+
+            // Send an API request to configure the audio format and language options of the stream
+            mmRequestObserver = mApi.streamingRecognize(this);
+            mStreamsOpened.increment();
+            mmRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
+                    .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
+                            .setConfig(RecognitionConfig.newBuilder()
+                                    .setLanguageCode("en-US")
+                                    .setEncoding(mmEncoding)
+                                    .setSampleRateHertz(sampleRate)
+                                    .build())
+                            .setInterimResults(true)
+                            .setSingleUtterance(singleUtterance)
+                            .build())
+                    .build());
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<StreamingRecognizeRequest> call) {
+            mmCall = call;
+            call.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        /**
+         * @return Whether audio can be written now: the call is ready and nothing is waiting
+         *         to go before it. Must hold the stream's lock.
+         */
+        private boolean canWrite() {
+            // without flow control to go by, writes can only go straight to gRPC
+            return mmBuffered.isEmpty() && (mmCall == null || mmCall.isReady());
+        }
+
+        private void write(ByteString audio) {
+            mmWritten = true;
+            mAudioBytesSent.add(audio.size());
+            mmRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
+                    .setAudioContent(audio)
+                    .build());
+        }
+
+        /**
+         * Writes the audio if the call is ready for it, or buffers it until it is.
+         * @param audio Audio owned by the stream.
+         */
+        synchronized void send(ByteString audio) {
+            // gRPC throws if we write to a call we've cancelled
+            if (mmClosed) {
+                return;
+            }
+            if (canWrite()) {
+                write(audio);
+            } else {
+                buffer(audio);
+            }
+        }
+
+        /**
+         * Like {@link #send(ByteString)}, for audio in a buffer that's reused once we return.
+         * Only copied if it has to wait, or the channel won't serialize it straight away.
+         */
+        synchronized void send(ByteBuffer data) {
+            if (mmClosed) {
+                return;
+            }
+            if (canWrite()) {
+                write(mmCopyWrites
+                        ? ByteString.copyFrom(data)
+                        : UnsafeByteOperations.unsafeWrap(data));
+            } else {
+                buffer(ByteString.copyFrom(data));
+            }
+        }
+
+        /**
+         * Holds audio until the call is ready, dropping the oldest if too much is waiting.
+         * Must hold the stream's lock.
+         */
+        private void buffer(ByteString audio) {
+            mmBuffered.addLast(audio);
+            mmBufferedBytes += audio.size();
+            final long buffered = mBufferedBytes.addAndGet(audio.size());
+            if (buffered > mMaxBufferedBytes) {
+                mMaxBufferedBytes = buffered;
+            }
+            if (mmBufferedBytes <= mmMaxBufferedBytes) {
+                return;
+            }
+
+            // the newest chunk is always kept, and so is the FLAC header
+            final ByteString header =
+                    mmUplink != null && !mmWritten ? mmBuffered.pollFirst() : null;
+            long dropped = 0;
+            while (mmBufferedBytes > mmMaxBufferedBytes && mmBuffered.size() > 1) {
+                final int size = mmBuffered.pollFirst().size();
+                mmBufferedBytes -= size;
+                dropped += size;
+            }
+            if (header != null) {
+                mmBuffered.addFirst(header);
+            }
+            if (dropped == 0) {
+                return;
+            }
+            mBufferedBytes.addAndGet(-dropped);
+            mBufferedBytesDropped.add(dropped);
+            Log.w(TAG, "Uplink can't keep up, dropped " + dropped + " bytes of audio");
+        }
+
+        /**
+         * Writes buffered audio for as long as the call is ready for it, then ends the call if
+         * it was finished while audio was waiting. Run by gRPC whenever the call becomes ready.
+         */
+        private synchronized void drain() {
+            if (mmClosed) {
+                return;
+            }
+            while (!mmBuffered.isEmpty() && mmCall.isReady()) {
+                final ByteString audio = mmBuffered.pollFirst();
+                mmBufferedBytes -= audio.size();
+                mBufferedBytes.addAndGet(-audio.size());
+                write(audio);
+            }
+            if (mmFinishing && mmBuffered.isEmpty()) {
+                mmFinishing = false;
+                mmRequestObserver.onCompleted();
+            }
+        }
+
+        /**
+         * Ends the call, once any buffered audio has been sent.
+         */
+        private synchronized void complete() {
+            if (mmClosed) {
+                return;
+            }
+            if (mmBuffered.isEmpty()) {
+                mmRequestObserver.onCompleted();
+            } else {
+                mmFinishing = true;
+            }
+        }
+
+        /**
+         * Drops any buffered audio. Must hold the stream's lock.
+         */
+        private void discardBuffered() {
+            mBufferedBytes.addAndGet(-mmBufferedBytes);
+            mmBuffered.clear();
+            mmBufferedBytes = 0;
+        }
+
+        /**
+         * Sends 16-bit PCM, compressing it first if the stream is compressed.
+         */
+        void sendAudio(byte[] data, int size) {
+            mAudioBytesIn.add(size);
+            if (mmUplink != null) {
+                mmUplink.write(data, 0, size);
+            } else {
+                send(ByteString.copyFrom(data, 0, size));
+            }
+        }
+
+        /**
+         * Like {@link #sendAudio(byte[], int)}, for 16-bit PCM between a recycled buffer's
+         * position and limit.
+         */
+        void sendAudio(ByteBuffer data) {
+            mAudioBytesIn.add(data.remaining());
+            if (mmUplink != null) {
+                mmUplink.write(data);
+            } else {
+                send(data);
+            }
+        }
+
+        void finish() {
+            if (mmUplink != null) {
+                // ends the call once the last of the audio is encoded and sent
+                mmUplink.finish();
+            } else {
+                complete();
+            }
+        }
+
+        @Override
+        public void onEncoded(ByteString data) {
+            send(data);
+        }
+
+        @Override
+        public void onFinished() {
+            complete();
+        }
+
+        /**
+         * Abandons the stream without waiting for results. Used for standby streams that were
+         * never needed.
+         */
+        synchronized void cancel() {
+            mmClosed = true;
+            discardBuffered();
+            mmRequestObserver.onError(Status.CANCELLED
+                    .withDescription("Standby stream replaced")
+                    .asException());
+        }
+
+        /**
+         * @return Whether this stream can still be used as a standby for the given config.
+         */
+        boolean isUsable(int sampleRate, boolean singleUtterance) {
+            return !mmClosed
+                    && mmEncoding == mEncoding
+                    && mmSampleRate == sampleRate
+                    && mmSingleUtterance == singleUtterance
+                    && SystemClock.elapsedRealtime() - mmStartTime < STANDBY_MAX_AGE_MILLIS;
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeResponse response) {
+            onResponse(this, response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (mmClosed) {
+                return;
+            }
+            mmClosed = true;
+            mStreamErrors.increment();
+            Log.e(TAG, "Stream error", t);
+            synchronized (this) {
+                discardBuffered();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            Log.d(TAG, "Stream closing.");
+            mmClosed = true;
+            synchronized (this) {
+                discardBuffered();
+            }
+        }
     }
 
     private class SpeechBinder extends Binder {
         SpeechService getService() {
             return SpeechService.this;
         }
+
+        Metrics getMetrics() {
+            return mMetrics;
+        }
     }
 
-    private final Runnable mGetAccessTokenRunnable = new Runnable() {
+    private final Runnable mRefreshAccessToken = new Runnable() {
         @Override
         public void run() {
-            getAccessToken();
+            refreshAccessToken();
         }
     };
 
-    private class AccessTokenTask extends AsyncTask<Void, Void, AccessToken> {
+    /**
+     * Gets a fresh access token and swaps it into the interceptor, then schedules the next
+     * refresh ahead of its expiry, or a retry if there was no token to be had. Runs on the
+     * refresher's thread. Calls already started keep the token they started with, and new ones
+     * pick up the new one on the same channel.
+     */
+    private void refreshAccessToken() {
+        final AccessToken token = fetchAccessToken();
+        long delay;
+        if (token != null) {
+            final boolean first = !mCredentialsInterceptor.hasCredentials();
+            try {
+                mCredentialsInterceptor.setCredentials(
+                        new GoogleCredentials(token).createScoped(SCOPE));
+                mTokenRetry.reset();
+                delay = Math.max(token.getExpirationTime().getTime() - System.currentTimeMillis()
+                        - ACCESS_TOKEN_FETCH_MARGIN, 0);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to use access token.", e);
+                delay = mTokenRetry.nextDelayMillis();
+            }
 
-        @Override
-        protected AccessToken doInBackground(Void... voids) {
-            final SharedPreferences prefs =
-                    getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+            // the standby stream waits for the first token, so open it now
+            final Handler handler = mHandler;
+            if (first && handler != null) {
+                handler.post(mStandbyRunnable);
+            }
+        } else {
+            delay = mTokenRetry.nextDelayMillis();
+            Log.w(TAG, "Retrying access token in " + delay + "ms");
+        }
+
+        try {
+            mTokenRefresher.schedule(mRefreshAccessToken, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the service is being destroyed
+        }
+    }
+
+    /**
+     * @return An access token with a while left on it, or null if one couldn't be had. Until the
+     * service account has been read, that can be a token saved by an earlier run of the service.
+     */
+    private AccessToken fetchAccessToken() {
+        final SharedPreferences prefs = getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (mServiceCredentials == null) {
             String tokenValue = prefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
             long expirationTime = prefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
 
@@ -239,56 +1061,57 @@ public class SpeechService extends Service {
                     return new AccessToken(tokenValue, new Date(expirationTime));
                 }
             }
-
-            // TODO: HACK: API keys stored in local static JSON resource
-            final InputStream stream = getResources().openRawResource(R.raw.credential);
-            try {
-                final GoogleCredentials credentials = GoogleCredentials.fromStream(stream)
-                        .createScoped(SCOPE);
-                final AccessToken token = credentials.refreshAccessToken();
-                prefs.edit()
-                        .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
-                        .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME,
-                                token.getExpirationTime().getTime())
-                        .apply();
-                return token;
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to obtain access token.", e);
-            }
-            return null;
         }
 
-        @Override
-        protected void onPostExecute(AccessToken accessToken) {
-            mAccessTokenTask = null;
-            final ManagedChannel channel = new OkHttpChannelProvider()
-                    .builderForAddress(HOSTNAME, PORT)
-                    .nameResolverFactory(new DnsNameResolverProvider())
-                    .intercept(new GoogleCredentialsInterceptor(new GoogleCredentials(accessToken)
-                            .createScoped(SCOPE)))
-                    .build();
-            mApi = SpeechGrpc.newStub(channel);
-
-            // Schedule access token refresh before it expires
-            mHandler.postDelayed(mGetAccessTokenRunnable,
-                    Math.max(accessToken.getExpirationTime().getTime() - System.currentTimeMillis()
-                            - ACCESS_TOKEN_FETCH_MARGIN, ACCESS_TOKEN_EXPIRY_TOL));
+        try {
+            if (mServiceCredentials == null) {
+                // TODO: HACK: API keys stored in local static JSON resource
+                final InputStream stream = getResources().openRawResource(R.raw.credential);
+                try {
+                    mServiceCredentials = GoogleCredentials.fromStream(stream).createScoped(SCOPE);
+                } finally {
+                    stream.close();
+                }
+            }
+            final AccessToken token = mServiceCredentials.refreshAccessToken();
+            prefs.edit()
+                    .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
+                    .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME,
+                            token.getExpirationTime().getTime())
+                    .apply();
+            return token;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to obtain access token.", e);
         }
+        return null;
     }
 
     /**
      * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+     *
+     * The headers are built when the credentials are set, so starting a call only has to read
+     * them. Access tokens are the same for every service, so they don't depend on the call.
      */
     private static class GoogleCredentialsInterceptor implements ClientInterceptor {
 
-        private final Credentials mCredentials;
+        private volatile Metadata mHeaders;
 
-        private Metadata mCached;
+        /**
+         * Calls will fail as unauthenticated until {@link #setCredentials(Credentials)}.
+         */
+        GoogleCredentialsInterceptor() {
+        }
 
-        private Map<String, List<String>> mLastMetadata;
+        /**
+         * Swaps in new credentials for the calls started from now on. May be called from any
+         * thread.
+         */
+        void setCredentials(Credentials credentials) throws IOException {
+            mHeaders = toHeaders(credentials.getRequestMetadata());
+        }
 
-        GoogleCredentialsInterceptor(Credentials credentials) {
-            mCredentials = credentials;
+        boolean hasCredentials() {
+            return mHeaders != null;
         }
 
         @Override
@@ -300,73 +1123,18 @@ public class SpeechService extends Service {
                 @Override
                 protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
                         throws StatusException {
-                    Metadata cachedSaved;
-                    URI uri = serviceUri(next, method);
-                    synchronized (this) {
-                        Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
-                        if (mLastMetadata == null || mLastMetadata != latestMetadata) {
-                            mLastMetadata = latestMetadata;
-                            mCached = toHeaders(mLastMetadata);
-                        }
-                        cachedSaved = mCached;
+                    final Metadata credentialHeaders = mHeaders;
+                    if (credentialHeaders == null) {
+                        throw Status.UNAUTHENTICATED
+                                .withDescription("No access token yet")
+                                .asException();
                     }
-                    headers.merge(cachedSaved);
+                    headers.merge(credentialHeaders);
                     delegate().start(responseListener, headers);
                 }
             };
         }
 
-        /**
-         * Generate a JWT-specific service URI. The URI is simply an identifier with enough
-         * information for a service to know that the JWT was intended for it. The URI will
-         * commonly be verified with a simple string equality check.
-         */
-        private URI serviceUri(Channel channel, MethodDescriptor<?, ?> method)
-                throws StatusException {
-            String authority = channel.authority();
-            if (authority == null) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Channel has no authority")
-                        .asException();
-            }
-            // Always use HTTPS, by definition.
-            final String scheme = "https";
-            final int defaultPort = 443;
-            String path = "/" + MethodDescriptor.extractFullServiceName(method.getFullMethodName());
-            URI uri;
-            try {
-                uri = new URI(scheme, authority, path, null, null);
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI for auth")
-                        .withCause(e).asException();
-            }
-            // The default port must not be present. Alternative ports should be present.
-            if (uri.getPort() == defaultPort) {
-                uri = removePort(uri);
-            }
-            return uri;
-        }
-
-        private URI removePort(URI uri) throws StatusException {
-            try {
-                return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), -1 /* port */,
-                        uri.getPath(), uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI after removing port")
-                        .withCause(e).asException();
-            }
-        }
-
-        private Map<String, List<String>> getRequestMetadata(URI uri) throws StatusException {
-            try {
-                return mCredentials.getRequestMetadata(uri);
-            } catch (IOException e) {
-                throw Status.UNAUTHENTICATED.withCause(e).asException();
-            }
-        }
-
         private static Metadata toHeaders(Map<String, List<String>> metadata) {
             Metadata headers = new Metadata();
             if (metadata != null) {
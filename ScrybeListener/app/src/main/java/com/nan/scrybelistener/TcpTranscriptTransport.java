@@ -0,0 +1,315 @@
+package com.nan.scrybelistener;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link TranscriptTransport} over TCP, for displays on the local network. Speaks the same
+ * newline-delimited protocol as the Bluetooth transport.
+ *
+ * Every connection is served by a single selector thread with non-blocking channels, so adding
+ * clients doesn't add threads. A client that can't keep up only has its own pending bytes wait
+ * for the socket to drain.
+ */
+public class TcpTranscriptTransport implements TranscriptTransport {
+    private static final String TAG = "TcpTransport";
+    private static final int READ_BUFFER_SIZE = 1024;
+    // Clients only send short control lines, so anything longer isn't one of ours
+    private static final int MAX_LINE_BYTES = 4096;
+
+    private final int mPort;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private volatile boolean mIsListening = false;
+    // Connections with work for the selector thread, which is the only thread that touches keys
+    private final ConcurrentLinkedQueue<TcpConnection> mPending =
+            new ConcurrentLinkedQueue<TcpConnection>();
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     */
+    public TcpTranscriptTransport(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public void start(final Listener listener) throws IOException {
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mPort));
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mIsListening = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop(listener);
+            }
+        }, TAG).start();
+        Log.d(TAG, "Listening on port " + getLocalPort());
+    }
+
+    /**
+     * Stops accepting connections and closes the ones already made, since they're served by the
+     * same thread.
+     */
+    @Override
+    public void stop() {
+        mIsListening = false;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "TCP";
+    }
+
+    /**
+     * @return The port being listened on, or -1 if not started.
+     */
+    public int getLocalPort() {
+        return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+    }
+
+    private void selectLoop(Listener listener) {
+        try {
+            while (mIsListening) {
+                mSelector.select();
+
+                TcpConnection pending;
+                while ((pending = mPending.poll()) != null) {
+                    pending.update();
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept(listener);
+                        continue;
+                    }
+                    TcpConnection connection = (TcpConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        }
+
+        // Nothing serves the connections once this thread is gone, so close them too
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof TcpConnection) {
+                TcpConnection connection = (TcpConnection) key.attachment();
+                connection.mmClosed = true;
+                connection.finishClose();
+            }
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "error closing server channel");
+        }
+    }
+
+    private void accept(Listener listener) {
+        try {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            TcpConnection connection = new TcpConnection(channel);
+            // no interest until the connection is started and has a handler
+            connection.mmKey = channel.register(mSelector, 0, connection);
+            Log.d(TAG, "Accepted connection from " + connection.getAddress());
+            listener.onConnection(connection);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to accept connection.");
+        }
+    }
+
+    /**
+     * Asks the selector thread to call {@link TcpConnection#update()} on its next pass.
+     */
+    private void schedule(TcpConnection connection) {
+        mPending.add(connection);
+        mSelector.wakeup();
+    }
+
+    /**
+     * A connection over a non-blocking {@link SocketChannel}. Other than the methods of
+     * {@link TranscriptConnection}, only called on the selector thread.
+     */
+    private class TcpConnection implements TranscriptConnection {
+        private final SocketChannel mmChannel;
+        private final String mmAddress;
+        private SelectionKey mmKey;
+        private volatile Handler mmHandler;
+        private volatile boolean mmClosed = false;
+
+        private final ByteBuffer mmReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Bytes of the line being read, until its newline arrives
+        private final ByteArrayOutputStream mmLine = new ByteArrayOutputStream();
+        // Bytes of a frame the socket couldn't take all of yet
+        private ByteBuffer mmPendingWrite;
+
+        TcpConnection(SocketChannel channel) {
+            mmChannel = channel;
+            Socket socket = channel.socket();
+            mmAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public void start(Handler handler) {
+            mmHandler = handler;
+            schedule(this);
+        }
+
+        @Override
+        public void onFramesQueued() {
+            schedule(this);
+        }
+
+        /**
+         * Catches up on a start, close or newly queued frames.
+         */
+        void update() {
+            if (mmClosed) {
+                finishClose();
+                return;
+            }
+            if (mmHandler == null) {
+                return;
+            }
+            mmKey.interestOps(mmKey.interestOps() | SelectionKey.OP_READ);
+            write();
+        }
+
+        void read() {
+            try {
+                mmReadBuffer.clear();
+                int count = mmChannel.read(mmReadBuffer);
+                if (count < 0) {
+                    Log.d(TAG, getAddress() + " hung up");
+                    close();
+                    return;
+                }
+
+                final byte[] bytes = mmReadBuffer.array();
+                for (int i = 0; i < count; i++) {
+                    if (bytes[i] == '\n') {
+                        String line = mmLine.toString("UTF-8");
+                        mmLine.reset();
+                        if (line.endsWith("\r")) {
+                            line = line.substring(0, line.length() - 1);
+                        }
+                        mmHandler.onLineReceived(line);
+                    } else if (mmLine.size() < MAX_LINE_BYTES) {
+                        mmLine.write(bytes[i]);
+                    } else {
+                        Log.w(TAG, getAddress() + " sent a line over " + MAX_LINE_BYTES
+                                + " bytes, closing");
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "read from " + getAddress() + " ended");
+                close();
+            }
+        }
+
+        /**
+         * Writes as many queued frames as the socket will take without blocking, and waits for
+         * the socket to drain if that isn't all of them.
+         */
+        void write() {
+            try {
+                while (true) {
+                    if (mmPendingWrite == null) {
+                        byte[] frame = mmHandler.pollFrame();
+                        if (frame == null) {
+                            break;
+                        }
+                        mmPendingWrite = ByteBuffer.wrap(frame);
+                    }
+                    mmChannel.write(mmPendingWrite);
+                    if (mmPendingWrite.hasRemaining()) {
+                        break;
+                    }
+                    mmPendingWrite = null;
+                }
+
+                if (mmPendingWrite != null) {
+                    mmKey.interestOps(mmKey.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    mmKey.interestOps(mmKey.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "bad write to " + getAddress());
+                close();
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public String getName() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() {
+            if (mmClosed) {
+                return;
+            }
+            mmClosed = true;
+            schedule(this);
+        }
+
+        private void finishClose() {
+            if (!mmChannel.isOpen()) {
+                return;
+            }
+            mmKey.cancel();
+            try {
+                mmChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "error closing channel");
+            }
+            if (mmHandler != null) {
+                mmHandler.onClosed();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.nan.scrybelistener;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans results out to every connected {@link TranscriptClient}. Broadcasting only queues the
+ * result with each client, so it never blocks the caller on a connection.
+ *
+ * The last few final results are kept so a client that drops out briefly and reconnects can be
+ * sent whatever it missed.
+ *
+ * Idle clients are sent heartbeats from a timer of the broadcaster's own, so none goes longer than
+ * {@link TranscriptProtocol#HEARTBEAT_INTERVAL_MILLIS} without hearing from us. The same timer
+ * evicts clients that have stopped answering, so a display that walked out of range doesn't linger
+ * until the next caption.
+ *
+ * Clients can be added and removed from any thread, including the transports' accept threads.
+ */
+public class TranscriptBroadcaster implements TranscriptClient.Listener {
+    // How many final results a reconnecting client can catch up on
+    private static final int RESUME_HISTORY = 20;
+
+    /**
+     * Told whenever a client joins or leaves. May be called from any thread.
+     */
+    public interface Listener {
+        void onClientsChanged();
+    }
+
+    private final List<TranscriptClient> mClients = new CopyOnWriteArrayList<TranscriptClient>();
+    private final Listener mListener;
+    // Recent final results, oldest first
+    private final ArrayDeque<FinalResult> mRecentFinals = new ArrayDeque<FinalResult>();
+    private final ScheduledExecutorService mHeartbeatTimer =
+            Executors.newSingleThreadScheduledExecutor();
+    // How long results wait to be written, across every client
+    private final Metrics.Histogram mWriteLagMillis = new Metrics.Histogram();
+
+    private static class FinalResult {
+        final long mmUtteranceId;
+        final String mmText;
+        final long mmCapturedAt;
+
+        FinalResult(long utteranceId, String text, long capturedAt) {
+            mmUtteranceId = utteranceId;
+            mmText = text;
+            mmCapturedAt = capturedAt;
+        }
+    }
+
+    public TranscriptBroadcaster(Listener listener) {
+        mListener = listener;
+        // checking at half the interval keeps every gap between frames under the full interval
+        final long period = TranscriptProtocol.HEARTBEAT_INTERVAL_MILLIS / 2;
+        mHeartbeatTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (TranscriptClient client : mClients) {
+                    if (client.checkAlive()) {
+                        client.sendHeartbeatIfIdle(period);
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts serving a newly connected client.
+     */
+    public TranscriptClient addClient(TranscriptConnection connection) {
+        TranscriptClient client = new TranscriptClient(connection, this, mWriteLagMillis);
+        mClients.add(client);
+        client.start();
+        mListener.onClientsChanged();
+        return client;
+    }
+
+    /**
+     * Queues a result for every client.
+     * @param utteranceId Id of the utterance the result belongs to.
+     * @param text The full text of the utterance so far.
+     * @param isFinal Whether the result is final.
+     */
+    public void broadcast(long utteranceId, String text, boolean isFinal) {
+        broadcast(utteranceId, text, isFinal, SystemClock.elapsedRealtime(), null);
+    }
+
+    /**
+     * Queues a result for every client.
+     * @param utteranceId Id of the utterance the result belongs to.
+     * @param text The full text of the utterance so far.
+     * @param isFinal Whether the result is final.
+     * @param capturedAt When the utterance was captured, by {@link SystemClock#elapsedRealtime()}.
+     * @param trace When the result passed each stage so far, or null.
+     */
+    public void broadcast(long utteranceId, String text, boolean isFinal, long capturedAt,
+                          CaptionTrace trace) {
+        if (isFinal) {
+            synchronized (mRecentFinals) {
+                if (mRecentFinals.size() == RESUME_HISTORY) {
+                    mRecentFinals.pollFirst();
+                }
+                mRecentFinals.addLast(new FinalResult(utteranceId, text, capturedAt));
+            }
+        }
+        for (TranscriptClient client : mClients) {
+            client.send(utteranceId, text, isFinal, capturedAt, trace);
+        }
+    }
+
+    /**
+     * @return A snapshot of the connected clients.
+     */
+    public List<TranscriptClient> getClients() {
+        return new ArrayList<TranscriptClient>(mClients);
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * Registers the number of clients, the results queued for them, and how long results wait
+     * to be written to them.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.register("clients.connected", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mClients.size();
+            }
+        });
+        metrics.register("clients.queued_results", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                long queued = 0;
+                for (TranscriptClient client : mClients) {
+                    queued += client.getQueueDepth();
+                }
+                return queued;
+            }
+        });
+        metrics.register("clients.write_lag_ms", mWriteLagMillis);
+    }
+
+    public void closeAll() {
+        for (TranscriptClient client : mClients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Closes every client and stops sending heartbeats. The broadcaster can't be used after.
+     */
+    public void shutdown() {
+        mHeartbeatTimer.shutdownNow();
+        closeAll();
+    }
+
+    @Override
+    public void onResumeRequested(TranscriptClient client, long lastUtteranceId) {
+        final long[] ids;
+        final String[] texts;
+        final long[] capturedAts;
+        synchronized (mRecentFinals) {
+            int missed = 0;
+            for (FinalResult result : mRecentFinals) {
+                if (result.mmUtteranceId > lastUtteranceId) {
+                    missed++;
+                }
+            }
+            ids = new long[missed];
+            texts = new String[missed];
+            capturedAts = new long[missed];
+            int i = 0;
+            for (FinalResult result : mRecentFinals) {
+                if (result.mmUtteranceId > lastUtteranceId) {
+                    ids[i] = result.mmUtteranceId;
+                    texts[i] = result.mmText;
+                    capturedAts[i] = result.mmCapturedAt;
+                    i++;
+                }
+            }
+        }
+        client.replay(ids, texts, capturedAts);
+    }
+
+    @Override
+    public void onClientClosed(TranscriptClient client) {
+        if (mClients.remove(client)) {
+            mListener.onClientsChanged();
+        }
+    }
+}
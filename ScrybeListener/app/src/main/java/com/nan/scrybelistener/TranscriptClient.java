@@ -0,0 +1,405 @@
+package com.nan.scrybelistener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connected caption display, on any {@link TranscriptTransport}.
+ *
+ * Results are queued and pulled by the connection whenever it's able to send, so a slow or
+ * half-dead client only ever holds itself up. If the client falls behind, an unsent interim
+ * result is replaced by the newer one for the same utterance; if it still falls further behind
+ * than the lag budget, it's evicted.
+ *
+ * Also listens for the client's hello, which says which {@link TranscriptProtocol} mode it speaks
+ * or whether it's another listener merging our results, so results can be encoded to suit, and
+ * for the resume request of a client that's reconnecting. Delta mode clients are sent heartbeats
+ * while there's nothing else to send. A client that has answered them before but stops is
+ * assumed gone, even if its socket still looks connected, and is evicted.
+ */
+public class TranscriptClient implements TranscriptConnection.Handler {
+    private static final String TAG = "TranscriptClient";
+    // Interim results coalesce, so a full queue means a backlog of final results
+    private static final int MAX_QUEUED_RESULTS = 32;
+    private static final int LAG_BUDGET_MILLIS = 5000;
+    // A client that answers heartbeats and misses this many in a row is gone
+    private static final int MISSED_HEARTBEATS = 3;
+    private static final long ACK_TIMEOUT_MILLIS =
+            MISSED_HEARTBEATS * TranscriptProtocol.HEARTBEAT_INTERVAL_MILLIS;
+
+    /**
+     * Told when a client has closed, whether it disconnected, failed or was evicted.
+     */
+    public interface Listener {
+        void onClientClosed(TranscriptClient client);
+
+        /**
+         * Called when a reconnecting client asks for the final results it missed.
+         * @param lastUtteranceId The last final utterance the client saw, or
+         *                        {@link TranscriptProtocol#NO_UTTERANCE}.
+         */
+        void onResumeRequested(TranscriptClient client, long lastUtteranceId);
+    }
+
+    /**
+     * A result waiting to be sent.
+     */
+    private static class QueuedResult {
+        final long mmUtteranceId;
+        final String mmText;
+        final boolean mmIsFinal;
+        final long mmCapturedAt;
+        final CaptionTrace mmTrace;
+        final long mmQueuedAt;
+
+        QueuedResult(long utteranceId, String text, boolean isFinal, long capturedAt,
+                     CaptionTrace trace, long queuedAt) {
+            mmUtteranceId = utteranceId;
+            mmText = text;
+            mmIsFinal = isFinal;
+            mmCapturedAt = capturedAt;
+            mmTrace = trace;
+            mmQueuedAt = queuedAt;
+        }
+    }
+
+    private final TranscriptConnection mConnection;
+    private final Listener mListener;
+    private final TranscriptDeltaEncoder mEncoder = new TranscriptDeltaEncoder();
+    private final ArrayDeque<QueuedResult> mQueue = new ArrayDeque<QueuedResult>();
+    // Client times from clock requests waiting to be answered, guarded by mQueue
+    private final ArrayDeque<Long> mClockRequests = new ArrayDeque<Long>();
+    private volatile boolean mDeltaMode = false;
+    private volatile boolean mMergeMode = false;
+    private volatile boolean mTraceMode = false;
+    private volatile boolean mClosed = false;
+    private volatile boolean mHeartbeatDue = false;
+    private volatile long mLastSentAt;
+    // When we last heard anything from the client, and whether it has ever answered a heartbeat
+    private volatile long mLastAckAt;
+    private volatile boolean mAnswersHeartbeats = false;
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mResultsSent = new AtomicLong();
+    private final AtomicLong mResultsCoalesced = new AtomicLong();
+    private volatile long mLastLagMillis;
+    private volatile long mMaxLagMillis;
+    // Shared with the other clients, to see how long results wait to be written across them all
+    private final Metrics.Histogram mLagMillis;
+
+    public TranscriptClient(TranscriptConnection connection, Listener listener) {
+        this(connection, listener, new Metrics.Histogram());
+    }
+
+    /**
+     * @param lagMillis Records how long each result waited to be written, in milliseconds.
+     */
+    public TranscriptClient(TranscriptConnection connection, Listener listener,
+                            Metrics.Histogram lagMillis) {
+        mConnection = connection;
+        mListener = listener;
+        mLagMillis = lagMillis;
+        mLastSentAt = SystemClock.elapsedRealtime();
+        mLastAckAt = mLastSentAt;
+    }
+
+    /**
+     * Starts listening for messages from the client, and sending it queued results.
+     */
+    public void start() {
+        mConnection.start(this);
+    }
+
+    /**
+     * Queues a result to be sent to the client. Never blocks on the connection.
+     * @param utteranceId Id of the utterance the result belongs to.
+     * @param text The full text of the utterance so far.
+     * @param isFinal Whether the result is final.
+     * @param capturedAt When the utterance was captured, by {@link SystemClock#elapsedRealtime()}.
+     * @param trace When the result passed each stage so far, or null.
+     */
+    public void send(long utteranceId, String text, boolean isFinal, long capturedAt,
+                     CaptionTrace trace) {
+        if (mClosed) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        String evictReason = null;
+        synchronized (mQueue) {
+            // the client only needs the latest interim result for an utterance
+            QueuedResult last = mQueue.peekLast();
+            if (last != null && !last.mmIsFinal && last.mmUtteranceId == utteranceId) {
+                mQueue.pollLast();
+                mResultsCoalesced.incrementAndGet();
+            }
+
+            QueuedResult oldest = mQueue.peekFirst();
+            if (oldest != null && now - oldest.mmQueuedAt > LAG_BUDGET_MILLIS) {
+                evictReason = "lag budget exceeded";
+            } else if (mQueue.size() >= MAX_QUEUED_RESULTS) {
+                evictReason = "send queue full";
+            } else {
+                mQueue.addLast(new QueuedResult(utteranceId, text, isFinal, capturedAt, trace,
+                        now));
+            }
+        }
+
+        if (evictReason != null) {
+            Log.w(TAG, "Evicting " + getAddress() + ": " + evictReason);
+            close();
+        } else {
+            mConnection.onFramesQueued();
+        }
+    }
+
+    /**
+     * Queues final results the client missed ahead of anything waiting to be sent, so they go out
+     * before live results continue.
+     * @param utteranceIds Ids of the utterances, oldest first.
+     * @param texts Their final text.
+     * @param capturedAts When they were captured.
+     */
+    public void replay(long[] utteranceIds, String[] texts, long[] capturedAts) {
+        if (mClosed || utteranceIds.length == 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mQueue) {
+            for (int i = utteranceIds.length - 1; i >= 0; i--) {
+                mQueue.addFirst(new QueuedResult(utteranceIds[i], texts[i], true, capturedAts[i],
+                        null, now));
+            }
+        }
+        mConnection.onFramesQueued();
+    }
+
+    /**
+     * Sends a {@link TranscriptProtocol#PING} if nothing has been sent to the client for a
+     * while, so it can tell a quiet listener from a dead connection. Line mode clients would show
+     * it as text, so they're never sent one.
+     * @param idleMillis How long the connection must have been idle.
+     */
+    public void sendHeartbeatIfIdle(long idleMillis) {
+        if (mClosed || !mDeltaMode
+                || SystemClock.elapsedRealtime() - mLastSentAt < idleMillis) {
+            return;
+        }
+        mHeartbeatDue = true;
+        mConnection.onFramesQueued();
+    }
+
+    /**
+     * Evicts the client if it has answered heartbeats before, but hasn't been heard from for
+     * several heartbeat intervals. Clients that never answer them can't be judged this way, and
+     * are only evicted if they fall behind.
+     * @return Whether the client is still connected.
+     */
+    public boolean checkAlive() {
+        if (mClosed) {
+            return false;
+        }
+        if (mAnswersHeartbeats
+                && SystemClock.elapsedRealtime() - mLastAckAt > ACK_TIMEOUT_MILLIS) {
+            Log.w(TAG, "Evicting " + getAddress() + ": no answer for " + ACK_TIMEOUT_MILLIS + "ms");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] pollFrame() {
+        QueuedResult result;
+        Long clockRequest;
+        synchronized (mQueue) {
+            if (mClosed) {
+                return null;
+            }
+            // answered first, so the reply's time is as close as it can be to the request's
+            clockRequest = mClockRequests.pollFirst();
+            result = clockRequest == null ? mQueue.pollFirst() : null;
+        }
+        if (clockRequest != null) {
+            return (TranscriptProtocol.clockReply(clockRequest, SystemClock.elapsedRealtime())
+                    + "\n").getBytes();
+        }
+        if (result == null) {
+            return pollHeartbeat();
+        }
+
+        final String line;
+        if (mMergeMode) {
+            line = mEncoder.encodeSource(result.mmUtteranceId, result.mmText, result.mmIsFinal,
+                    result.mmCapturedAt, SystemClock.elapsedRealtime());
+        } else if (mDeltaMode) {
+            final String frame =
+                    mEncoder.encode(result.mmUtteranceId, result.mmText, result.mmIsFinal);
+            line = mTraceMode && result.mmTrace != null
+                    ? TranscriptProtocol.traceFrame(result.mmTrace, result.mmQueuedAt,
+                            SystemClock.elapsedRealtime()) + "\n" + frame
+                    : frame;
+        } else {
+            line = result.mmText;
+        }
+        byte[] bytes = (line + "\n").getBytes();
+
+        final long lag = SystemClock.elapsedRealtime() - result.mmQueuedAt;
+        mLastLagMillis = lag;
+        mLagMillis.record(lag);
+        if (lag > mMaxLagMillis) {
+            mMaxLagMillis = lag;
+        }
+        mLastSentAt = SystemClock.elapsedRealtime();
+        mHeartbeatDue = false;
+        mBytesSent.addAndGet(bytes.length);
+        mResultsSent.incrementAndGet();
+        return bytes;
+    }
+
+    /**
+     * @return A heartbeat frame if one is due, otherwise null.
+     */
+    private byte[] pollHeartbeat() {
+        if (!mHeartbeatDue) {
+            return null;
+        }
+        mHeartbeatDue = false;
+        byte[] bytes = (TranscriptProtocol.PING + "\n").getBytes();
+        mLastSentAt = SystemClock.elapsedRealtime();
+        mBytesSent.addAndGet(bytes.length);
+        return bytes;
+    }
+
+    @Override
+    public void onLineReceived(String line) {
+        mLastAckAt = SystemClock.elapsedRealtime();
+        if (TranscriptProtocol.isPong(line)) {
+            mAnswersHeartbeats = true;
+            return;
+        }
+        if (TranscriptProtocol.isHello(line)) {
+            Log.d(TAG, getAddress() + " switched to delta mode");
+            mDeltaMode = true;
+            return;
+        }
+        final Long clientTime = TranscriptProtocol.parseClockRequest(line);
+        if (clientTime != null) {
+            synchronized (mQueue) {
+                mClockRequests.addLast(clientTime);
+            }
+            mConnection.onFramesQueued();
+            return;
+        }
+        if (TranscriptProtocol.isTrace(line) && mDeltaMode) {
+            Log.d(TAG, getAddress() + " is tracing latency");
+            mTraceMode = true;
+            return;
+        }
+        if (TranscriptProtocol.isMerge(line) && mDeltaMode) {
+            Log.d(TAG, getAddress() + " is merging our results");
+            mMergeMode = true;
+            return;
+        }
+        final Long resumeFrom = TranscriptProtocol.parseResume(line);
+        if (resumeFrom != null && mDeltaMode) {
+            Log.d(TAG, getAddress() + " resuming after utterance " + resumeFrom);
+            mListener.onResumeRequested(this, resumeFrom);
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        close();
+    }
+
+    public TranscriptConnection getConnection() {
+        return mConnection;
+    }
+
+    public String getAddress() {
+        return mConnection.getAddress();
+    }
+
+    public String getName() {
+        return mConnection.getName();
+    }
+
+    public boolean isConnected() {
+        return !mClosed;
+    }
+
+    public boolean isDeltaMode() {
+        return mDeltaMode;
+    }
+
+    /**
+     * @return Whether the client is another listener, merging our results into its own.
+     */
+    public boolean isMergeMode() {
+        return mMergeMode;
+    }
+
+    /**
+     * @return Time since anything was last received from the client, in milliseconds.
+     */
+    public long getMillisSinceAck() {
+        return SystemClock.elapsedRealtime() - mLastAckAt;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getResultsSent() {
+        return mResultsSent.get();
+    }
+
+    /**
+     * @return Number of interim results dropped because a newer one replaced them before they
+     * could be sent.
+     */
+    public long getResultsCoalesced() {
+        return mResultsCoalesced.get();
+    }
+
+    /**
+     * @return Time the most recently sent result spent queued, in milliseconds.
+     */
+    public long getLastLagMillis() {
+        return mLastLagMillis;
+    }
+
+    public long getMaxLagMillis() {
+        return mMaxLagMillis;
+    }
+
+    public int getQueueDepth() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Closes the connection. Safe to call more than once, from any
+     * thread; the listener is only told the first time.
+     */
+    public void close() {
+        synchronized (mQueue) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mQueue.clear();
+        }
+
+        mConnection.close();
+        Log.d(TAG, getAddress() + " closed after sending " + mResultsSent.get() + " results ("
+                + mBytesSent.get() + " bytes, " + mResultsCoalesced.get() + " coalesced, max lag "
+                + mMaxLagMillis + "ms)");
+        mListener.onClientClosed(this);
+    }
+}
@@ -0,0 +1,50 @@
+package com.nan.scrybelistener;
+
+/**
+ * A connection to one caption display, made through a {@link TranscriptTransport}.
+ *
+ * Outgoing data is pulled from the {@link Handler} by the connection whenever it is able to send,
+ * so a transport can write from its own thread(s) without the caller ever waiting on the network.
+ */
+public interface TranscriptConnection {
+
+    /**
+     * Supplies a connection's outgoing data and hears about what happens on it. Called from the
+     * transport's threads.
+     */
+    interface Handler {
+        /**
+         * @return The next frame to send, or null if there's nothing queued.
+         */
+        byte[] pollFrame();
+
+        /**
+         * Called with each line the client sends, without the line terminator.
+         */
+        void onLineReceived(String line);
+
+        /**
+         * Called once, when the connection has closed for any reason.
+         */
+        void onClosed();
+    }
+
+    /**
+     * Starts reading from and writing to the connection.
+     */
+    void start(Handler handler);
+
+    /**
+     * Tells the connection the handler has frames waiting to be pulled. Never blocks.
+     */
+    void onFramesQueued();
+
+    String getAddress();
+
+    String getName();
+
+    /**
+     * Closes the connection. Safe to call more than once, from any thread.
+     */
+    void close();
+}
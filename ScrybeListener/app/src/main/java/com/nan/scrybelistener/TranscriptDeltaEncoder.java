@@ -0,0 +1,68 @@
+package com.nan.scrybelistener;
+
+/**
+ * Turns successive results for a client into delta frames, sending only the part of each result
+ * that changed since the last one the client was sent.
+ */
+public class TranscriptDeltaEncoder {
+    private long mUtteranceId = -1;
+    private String mLastText = "";
+
+    /**
+     * @param utteranceId Id of the utterance the result belongs to.
+     * @param text The full text of the utterance so far.
+     * @param isFinal Whether the result is final.
+     * @return A delta frame, without the trailing newline.
+     */
+    public String encode(long utteranceId, String text, boolean isFinal) {
+        final int stable = advance(utteranceId, text);
+        return TranscriptProtocol.frame(utteranceId, stable, text.substring(stable), isFinal);
+    }
+
+    /**
+     * Like {@link #encode(long, String, boolean)}, but builds a source frame for a merging
+     * listener.
+     * @param capturedAt When the utterance was captured.
+     * @param sentAt When the frame is being sent.
+     */
+    public String encodeSource(long utteranceId, String text, boolean isFinal, long capturedAt,
+                               long sentAt) {
+        final int stable = advance(utteranceId, text);
+        return TranscriptProtocol.sourceFrame(utteranceId, stable, text.substring(stable),
+                isFinal, capturedAt, sentAt);
+    }
+
+    /**
+     * @return How much of the text the client already has.
+     */
+    private int advance(long utteranceId, String text) {
+        int stable = 0;
+        if (utteranceId == mUtteranceId) {
+            stable = commonPrefixLength(mLastText, text);
+        }
+        mUtteranceId = utteranceId;
+        mLastText = text;
+        return stable;
+    }
+
+    /**
+     * Forgets what the client was last sent, so the next frame carries the whole utterance.
+     */
+    public void reset() {
+        mUtteranceId = -1;
+        mLastText = "";
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        final int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // don't split a surrogate pair between the kept prefix and the new suffix
+        if (i > 0 && Character.isHighSurrogate(b.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+}
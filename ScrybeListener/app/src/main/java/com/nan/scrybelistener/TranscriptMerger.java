@@ -0,0 +1,369 @@
+package com.nan.scrybelistener;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the transcripts of several listeners into one feed, for a panel with a phone per
+ * speaker where every display should follow all of them.
+ *
+ * Each {@link Source} is a speaker: this listener's own mic, or another listener whose results
+ * are received by a {@link MergeSourceClient}. Utterances are given ids in the merged feed in the
+ * order they were captured, and their text is labelled with the speaker. A new utterance is held
+ * back briefly before it gets an id, so that one captured earlier on another phone, but slower to
+ * be recognized, can still go first.
+ *
+ * Displays follow one utterance at a time, so the merged feed does too: the oldest unfinished
+ * utterance is passed on live, and the ones after it are passed on when it finishes. Speakers
+ * who talk over each other are shown one after the other, in the order they started. An
+ * utterance that never gets a final result, say because its recognition stream failed, is
+ * finished as it stands once it has gone a while without an update and others are waiting.
+ *
+ * Times from other listeners are mapped onto our clock by the smallest difference seen between
+ * a frame's send and receive times, which also absorbs the fastest one-way trip. Each source
+ * keeps latency stats per hop: capture to its first result being sent, the trip here beyond the
+ * fastest one, and time held here to keep the feed in order.
+ *
+ * Work is done on a thread of the merger's own. Its methods may be called from any thread.
+ */
+public class TranscriptMerger {
+    private static final String TAG = "TranscriptMerger";
+    // How long a new utterance waits for earlier captured ones from other sources
+    private static final long REORDER_WINDOW_MILLIS = 300;
+    // How long an unfinished utterance can go without an update before it stops holding up
+    // the ones after it
+    private static final long MAX_HOLD_MILLIS = 4000;
+    private static final String LABEL_SEPARATOR = ": ";
+    private static final long UNASSIGNED = -1;
+
+    /**
+     * Receives the merged feed, on the merger's thread.
+     */
+    public interface Output {
+        /**
+         * @param utteranceId Id of the utterance in the merged feed.
+         * @param text The utterance's labelled text so far.
+         * @param isFinal Whether the result is final.
+         * @param capturedAt When the utterance was captured, on our clock.
+         */
+        void onMergedResult(long utteranceId, String text, boolean isFinal, long capturedAt);
+    }
+
+    /**
+     * One speaker's transcript.
+     */
+    public static class Source {
+        private final String mmLabel;
+        private final LatencyStats mmCaptureToSend = new LatencyStats("capture to send");
+        private final LatencyStats mmTransit = new LatencyStats("transit");
+        private final LatencyStats mmHeld = new LatencyStats("held");
+        // On the merger's thread: our clock minus the source's, plus the fastest trip here
+        private long mmClockOffset = Long.MAX_VALUE;
+        // Its utterances that haven't finished, by the source's id
+        private final Map<Long, Utterance> mmOpen = new HashMap<Long, Utterance>();
+
+        private Source(String label) {
+            mmLabel = label;
+        }
+
+        public String getLabel() {
+            return mmLabel;
+        }
+
+        /**
+         * @return Time from capturing an utterance to the source sending its first result.
+         */
+        public LatencyStats getCaptureToSend() {
+            return mmCaptureToSend;
+        }
+
+        /**
+         * @return Time from the source sending a result to us receiving it, beyond the fastest.
+         */
+        public LatencyStats getTransit() {
+            return mmTransit;
+        }
+
+        /**
+         * @return Time from receiving an utterance's first result to passing it on.
+         */
+        public LatencyStats getHeld() {
+            return mmHeld;
+        }
+
+        @Override
+        public String toString() {
+            return mmLabel + ": " + mmCaptureToSend + ", " + mmTransit + ", " + mmHeld;
+        }
+    }
+
+    private static class Utterance {
+        final Source mmSource;
+        final long mmSourceId;
+        final long mmCapturedAt;
+        final long mmArrivedAt;
+        long mmUpdatedAt;
+        long mmMergedId = UNASSIGNED;
+        String mmText = "";
+        boolean mmIsFinal = false;
+        // Whether there's a result the output hasn't been given yet
+        boolean mmDirty = false;
+        boolean mmShown = false;
+
+        Utterance(Source source, long sourceId, long capturedAt, long arrivedAt) {
+            mmSource = source;
+            mmSourceId = sourceId;
+            mmCapturedAt = capturedAt;
+            mmArrivedAt = arrivedAt;
+            mmUpdatedAt = arrivedAt;
+        }
+    }
+
+    private static final Comparator<Utterance> CAPTURE_ORDER = new Comparator<Utterance>() {
+        @Override
+        public int compare(Utterance a, Utterance b) {
+            return a.mmCapturedAt < b.mmCapturedAt
+                    ? -1
+                    : (a.mmCapturedAt > b.mmCapturedAt ? 1 : 0);
+        }
+    };
+
+    private final Output mOutput;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final List<Source> mSources = new CopyOnWriteArrayList<Source>();
+    // On the merger's thread: utterances waiting for an id, and those with one still to finish
+    private final List<Utterance> mPending = new ArrayList<Utterance>();
+    private final ArrayDeque<Utterance> mAssigned = new ArrayDeque<Utterance>();
+    private long mNextId = 0;
+    private boolean mHoldCheckScheduled = false;
+
+    private final Runnable mRelease = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    private final Runnable mHoldCheck = new Runnable() {
+        @Override
+        public void run() {
+            mHoldCheckScheduled = false;
+            pump();
+        }
+    };
+
+    public TranscriptMerger(Output output) {
+        mOutput = output;
+    }
+
+    /**
+     * @param label Name of the speaker, shown before their text.
+     */
+    public Source addSource(String label) {
+        Source source = new Source(label);
+        mSources.add(source);
+        return source;
+    }
+
+    public List<Source> getSources() {
+        return new ArrayList<Source>(mSources);
+    }
+
+    /**
+     * Adds a result recognized by this listener.
+     * @param utteranceId The source's id for the utterance.
+     * @param text The utterance's full text so far.
+     * @param isFinal Whether the result is final.
+     * @param capturedAt When the utterance was captured, by {@link SystemClock#elapsedRealtime()}.
+     */
+    public void postLocal(Source source, long utteranceId, String text, boolean isFinal,
+                          long capturedAt) {
+        final long now = SystemClock.elapsedRealtime();
+        post(source, utteranceId, text, isFinal, capturedAt, now, now);
+    }
+
+    /**
+     * Adds a result received from another listener.
+     * @param utteranceId The source's id for the utterance.
+     * @param text The utterance's full text so far.
+     * @param isFinal Whether the result is final.
+     * @param capturedAt When the utterance was captured, on the source's clock.
+     * @param sentAt When the source sent the result, on the source's clock.
+     * @param receivedAt When it was received, by {@link SystemClock#elapsedRealtime()}.
+     */
+    public void post(final Source source, final long utteranceId, final String text,
+                     final boolean isFinal, final long capturedAt, final long sentAt,
+                     final long receivedAt) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(source, utteranceId, text, isFinal, capturedAt, sentAt, receivedAt);
+            }
+        });
+    }
+
+    /**
+     * Finishes whatever the source was in the middle of saying, when it's lost.
+     */
+    public void onSourceLost(final Source source) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Utterance utterance : source.mmOpen.values()) {
+                    utterance.mmIsFinal = true;
+                    utterance.mmDirty = true;
+                }
+                source.mmOpen.clear();
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Stops merging, and logs each source's latency stats.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        for (Source source : mSources) {
+            Log.d(TAG, source.toString());
+        }
+    }
+
+    /**
+     * Runs a task on the merger's thread, unless it has been shut down.
+     */
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // sources can still be finishing up after a shutdown
+        }
+    }
+
+    private void apply(Source source, long utteranceId, String text, boolean isFinal,
+                       long capturedAt, long sentAt, long receivedAt) {
+        final long offset = receivedAt - sentAt;
+        if (offset < source.mmClockOffset) {
+            source.mmClockOffset = offset;
+        }
+        source.mmTransit.add(offset - source.mmClockOffset);
+
+        Utterance utterance = source.mmOpen.get(utteranceId);
+        if (utterance == null) {
+            utterance = new Utterance(source, utteranceId, capturedAt + source.mmClockOffset,
+                    receivedAt);
+            source.mmOpen.put(utteranceId, utterance);
+            source.mmCaptureToSend.add(sentAt - capturedAt);
+            mPending.add(utterance);
+            try {
+                mExecutor.schedule(mRelease, REORDER_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+        utterance.mmText = text;
+        utterance.mmIsFinal = isFinal;
+        utterance.mmDirty = true;
+        utterance.mmUpdatedAt = receivedAt;
+        if (isFinal) {
+            source.mmOpen.remove(utteranceId);
+        }
+        if (utterance.mmMergedId != UNASSIGNED) {
+            pump();
+        }
+    }
+
+    /**
+     * Gives ids to the utterances that have waited out the reorder window, along with any
+     * captured before them, in the order they were captured.
+     */
+    private void release() {
+        final long now = SystemClock.elapsedRealtime();
+        long releaseUpTo = Long.MIN_VALUE;
+        for (Utterance utterance : mPending) {
+            if (now - utterance.mmArrivedAt >= REORDER_WINDOW_MILLIS) {
+                releaseUpTo = Math.max(releaseUpTo, utterance.mmCapturedAt);
+            }
+        }
+        if (releaseUpTo == Long.MIN_VALUE) {
+            return;
+        }
+
+        final List<Utterance> ready = new ArrayList<Utterance>();
+        for (Iterator<Utterance> it = mPending.iterator(); it.hasNext(); ) {
+            Utterance utterance = it.next();
+            if (utterance.mmCapturedAt <= releaseUpTo) {
+                ready.add(utterance);
+                it.remove();
+            }
+        }
+        Collections.sort(ready, CAPTURE_ORDER);
+        for (Utterance utterance : ready) {
+            utterance.mmMergedId = mNextId++;
+            mAssigned.addLast(utterance);
+        }
+        pump();
+    }
+
+    /**
+     * Passes on the oldest unfinished utterance's latest result, and moves on to the next one
+     * whenever it finishes, or once it has held up the others for too long.
+     */
+    private void pump() {
+        final long now = SystemClock.elapsedRealtime();
+        while (!mAssigned.isEmpty()) {
+            Utterance head = mAssigned.peekFirst();
+            final boolean blocking = mAssigned.size() > 1 || !mPending.isEmpty();
+            if (!head.mmIsFinal && blocking && now - head.mmUpdatedAt >= MAX_HOLD_MILLIS) {
+                Log.w(TAG, head.mmSource.mmLabel + " stalled, finishing its utterance");
+                head.mmIsFinal = true;
+                head.mmDirty = true;
+                head.mmSource.mmOpen.remove(head.mmSourceId);
+            }
+            if (head.mmDirty) {
+                if (!head.mmShown) {
+                    head.mmSource.mmHeld.add(now - head.mmArrivedAt);
+                    head.mmShown = true;
+                }
+                head.mmDirty = false;
+                mOutput.onMergedResult(head.mmMergedId,
+                        head.mmSource.mmLabel + LABEL_SEPARATOR + head.mmText, head.mmIsFinal,
+                        head.mmCapturedAt);
+            }
+            if (!head.mmIsFinal) {
+                if (blocking) {
+                    scheduleHoldCheck(head.mmUpdatedAt + MAX_HOLD_MILLIS - now);
+                }
+                return;
+            }
+            mAssigned.pollFirst();
+        }
+    }
+
+    private void scheduleHoldCheck(long delayMillis) {
+        if (mHoldCheckScheduled) {
+            return;
+        }
+        try {
+            mExecutor.schedule(mHoldCheck, delayMillis, TimeUnit.MILLISECONDS);
+            mHoldCheckScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.nan.scrybelistener;
+
+/**
+ * Wire format for transcript updates sent to caption displays.
+ *
+ * Everything is sent as newline-terminated lines. Clients that have never said hello are in line
+ * mode, and get each result as a plain line of text that replaces whatever they're showing.
+ *
+ * Clients that send {@link #HELLO} when they connect are switched to delta mode, and get frames
+ * of the form:
+ * <pre>
+ *   RS utteranceId US stableLength US (f|i) US suffix
+ * </pre>
+ * where RS and US are the ASCII record and unit separators. The client keeps the first
+ * stableLength characters of the utterance it is showing and replaces the rest with suffix. A
+ * new utterance id starts a new utterance; "f" marks the utterance as final.
+ *
+ * A delta mode client that reconnects after losing its connection follows its hello with
+ * <pre>
+ *   RS resume US lastUtteranceId
+ * </pre>
+ * giving the last final utterance it was sent, and is sent any it missed before live results
+ * continue. Their ids are older than the utterance in progress, which is how the client can tell
+ * them apart.
+ *
+ * A delta mode client that hasn't been sent anything for {@link #HEARTBEAT_INTERVAL_MILLIS} is
+ * sent a {@link #PING}, and answers with a {@link #PONG}. Once it has seen a ping, a client can
+ * treat a listener that stays silent for much longer than that as gone, even if the socket hasn't
+ * noticed.
+ *
+ * Another listener merging this one's results into its own feed follows its hello with
+ * {@link #MERGE}, and gets delta frames that also say when the utterance was captured and when
+ * the frame was sent, as milliseconds of the sender's {@code SystemClock.elapsedRealtime()}:
+ * <pre>
+ *   RS utteranceId US stableLength US (f|i) US capturedAt US sentAt US suffix
+ * </pre>
+ *
+ * A delta mode client tracing caption latency follows its hello with {@link #TRACE}. Each traced
+ * result is then preceded by
+ * <pre>
+ *   RS trace US frameId US capturedAt US sentToApiAt US recognizedAt US queuedAt US sentAt
+ * </pre>
+ * giving, on our clock, when the newest audio frame before the result was captured and sent to
+ * the speech API, when the result came back, and when it was queued for the client and sent.
+ * To put those on its own clock, the client sends
+ * <pre>
+ *   RS clock US clientTime
+ * </pre>
+ * and gets back the same line with our time appended as it's sent.
+ *
+ * Keep in sync with the copies in Transcrybe and TestReceiver.
+ */
+public final class TranscriptProtocol {
+    public static final char FRAME_START = '\u001E';
+    public static final char FIELD_SEPARATOR = '\u001F';
+    public static final String HELLO = FRAME_START + "delta";
+    public static final String FINAL = "f";
+    public static final String INTERIM = "i";
+    public static final String RESUME = FRAME_START + "resume" + FIELD_SEPARATOR;
+    // Utterance id a client resumes from if it never saw a final result
+    public static final long NO_UTTERANCE = -1;
+    public static final String PING = FRAME_START + "ping";
+    public static final String PONG = FRAME_START + "pong";
+    // Longest a delta mode client goes without hearing from the listener
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 2000;
+    public static final String MERGE = FRAME_START + "merge";
+    public static final String TRACE = FRAME_START + "trace";
+    public static final String CLOCK = FRAME_START + "clock" + FIELD_SEPARATOR;
+
+    private TranscriptProtocol() {
+    }
+
+    /**
+     * @return Whether a line received from a client asks for delta mode.
+     */
+    public static boolean isHello(String line) {
+        return HELLO.equals(line);
+    }
+
+    /**
+     * @return Whether a line received from a client asks for source frames, to merge.
+     */
+    public static boolean isMerge(String line) {
+        return MERGE.equals(line);
+    }
+
+    /**
+     * @return Whether a line received from a client asks for latency traces.
+     */
+    public static boolean isTrace(String line) {
+        return TRACE.equals(line);
+    }
+
+    /**
+     * @return The client's time, if the line asks for ours, or null if it doesn't.
+     */
+    public static Long parseClockRequest(String line) {
+        if (!line.startsWith(CLOCK)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(line.substring(CLOCK.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the answer to a clock request, without the trailing newline.
+     */
+    public static String clockReply(long clientTime, long time) {
+        return CLOCK + clientTime + FIELD_SEPARATOR + time;
+    }
+
+    /**
+     * Builds a trace frame, without the trailing newline.
+     */
+    public static String traceFrame(CaptionTrace trace, long queuedAt, long sentAt) {
+        return new StringBuilder(TRACE.length() + 64)
+                .append(TRACE).append(FIELD_SEPARATOR)
+                .append(trace.getFrameId()).append(FIELD_SEPARATOR)
+                .append(trace.getCapturedAt()).append(FIELD_SEPARATOR)
+                .append(trace.getSentToApiAt()).append(FIELD_SEPARATOR)
+                .append(trace.getRecognizedAt()).append(FIELD_SEPARATOR)
+                .append(queuedAt).append(FIELD_SEPARATOR)
+                .append(sentAt)
+                .toString();
+    }
+
+    /**
+     * @return Whether a line received from a client answers a heartbeat.
+     */
+    public static boolean isPong(String line) {
+        return PONG.equals(line);
+    }
+
+    /**
+     * @return The last utterance id a client saw, if the line asks to resume a session, or
+     * null if it doesn't.
+     */
+    public static Long parseResume(String line) {
+        if (!line.startsWith(RESUME)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(line.substring(RESUME.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds a delta frame, without the trailing newline.
+     */
+    public static String frame(long utteranceId, int stableLength, String suffix,
+                               boolean isFinal) {
+        return new StringBuilder(suffix.length() + 24)
+                .append(FRAME_START)
+                .append(utteranceId).append(FIELD_SEPARATOR)
+                .append(stableLength).append(FIELD_SEPARATOR)
+                .append(isFinal ? FINAL : INTERIM).append(FIELD_SEPARATOR)
+                .append(suffix)
+                .toString();
+    }
+
+    /**
+     * Builds a source frame for a merging listener, without the trailing newline.
+     */
+    public static String sourceFrame(long utteranceId, int stableLength, String suffix,
+                                     boolean isFinal, long capturedAt, long sentAt) {
+        return new StringBuilder(suffix.length() + 48)
+                .append(FRAME_START)
+                .append(utteranceId).append(FIELD_SEPARATOR)
+                .append(stableLength).append(FIELD_SEPARATOR)
+                .append(isFinal ? FINAL : INTERIM).append(FIELD_SEPARATOR)
+                .append(capturedAt).append(FIELD_SEPARATOR)
+                .append(sentAt).append(FIELD_SEPARATOR)
+                .append(suffix)
+                .toString();
+    }
+
+    /**
+     * Parses a line received from a listener we're merging.
+     * @return The update, or null if the line isn't a source frame.
+     */
+    public static SourceUpdate parseSourceFrame(String line) {
+        if (line.isEmpty() || line.charAt(0) != FRAME_START) {
+            return null;
+        }
+        // the suffix is last, so anything after the fifth separator belongs to it
+        final String[] fields = line.substring(1).split(String.valueOf(FIELD_SEPARATOR), 6);
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new SourceUpdate(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                    fields[5], FINAL.equals(fields[2]), Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
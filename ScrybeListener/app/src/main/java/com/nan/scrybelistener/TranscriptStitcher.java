@@ -0,0 +1,97 @@
+package com.nan.scrybelistener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins the results of consecutive recognition streams in a continuous session.
+ *
+ * When a session rolls over, the new stream is primed with the last few seconds of audio sent to
+ * the old one, so its first results repeat words the old stream already finalized. The stitcher
+ * remembers the tail of the finalized transcript and strips that repeated prefix from the new
+ * stream's results until it produces its first final result.
+ */
+public class TranscriptStitcher {
+    // How many finalized words to remember for matching
+    private static final int HISTORY_WORDS = 24;
+    // Shorter matches are too likely to be a coincidence ("the", "and I")
+    private static final int MIN_OVERLAP_WORDS = 2;
+
+    private final List<String> mRecentWords = new ArrayList<>();
+    private boolean mTrimming = false;
+
+    /**
+     * Called when a new stream takes over from the current one.
+     */
+    public synchronized void rollover() {
+        mTrimming = true;
+    }
+
+    public synchronized void reset() {
+        mRecentWords.clear();
+        mTrimming = false;
+    }
+
+    /**
+     * @param text A result as reported by its stream.
+     * @param isFinal Whether the result is final.
+     * @param fromCurrentStream False if the result came from a stream that has been rolled over.
+     * @return The result with any words already finalized by the previous stream removed. May be
+     * empty if the whole result was a repeat.
+     */
+    public synchronized String stitch(String text, boolean isFinal, boolean fromCurrentStream) {
+        String result = text;
+        if (fromCurrentStream && mTrimming) {
+            result = trimOverlap(text);
+        }
+        if (isFinal) {
+            remember(result);
+            if (fromCurrentStream) {
+                mTrimming = false;
+            }
+        }
+        return result;
+    }
+
+    private String trimOverlap(String text) {
+        final String[] words = text.trim().split("\\s+");
+        final int max = Math.min(words.length, mRecentWords.size());
+        for (int n = max; n >= MIN_OVERLAP_WORDS; n--) {
+            if (recentWordsEndWith(words, n)) {
+                final StringBuilder trimmed = new StringBuilder();
+                for (int i = n; i < words.length; i++) {
+                    if (trimmed.length() > 0) {
+                        trimmed.append(' ');
+                    }
+                    trimmed.append(words[i]);
+                }
+                return trimmed.toString();
+            }
+        }
+        return text;
+    }
+
+    /**
+     * @return Whether the last n remembered words match the first n words given.
+     */
+    private boolean recentWordsEndWith(String[] words, int n) {
+        final int offset = mRecentWords.size() - n;
+        for (int i = 0; i < n; i++) {
+            if (!mRecentWords.get(offset + i).equalsIgnoreCase(words[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void remember(String text) {
+        for (String word : text.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                mRecentWords.add(word);
+            }
+        }
+        while (mRecentWords.size() > HISTORY_WORDS) {
+            mRecentWords.remove(0);
+        }
+    }
+}
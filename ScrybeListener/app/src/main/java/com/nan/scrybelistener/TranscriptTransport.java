@@ -0,0 +1,32 @@
+package com.nan.scrybelistener;
+
+import java.io.IOException;
+
+/**
+ * A way for caption displays to connect to the listener, e.g. Bluetooth RFCOMM or TCP.
+ */
+public interface TranscriptTransport {
+
+    /**
+     * Told about each new connection. May be called from any thread.
+     */
+    interface Listener {
+        void onConnection(TranscriptConnection connection);
+    }
+
+    /**
+     * Starts accepting connections in the background.
+     * @throws IOException If the transport can't start listening.
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Stops accepting connections.
+     */
+    void stop();
+
+    /**
+     * @return A short description for logs and status text.
+     */
+    String getName();
+}
@@ -0,0 +1,272 @@
+package com.nan.scrybelistener;
+
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background stage that compresses outgoing audio to FLAC, so the audio path only pays for a
+ * copy. Each recognition stream gets its own {@link Stream}, which is a complete FLAC stream of
+ * its own; a single worker thread encodes for all of them in the order audio was written, and
+ * hands the encoded bytes to the stream's {@link Sink}.
+ *
+ * Audio is copied into a fixed pool of chunks, so there's no allocation per frame other than the
+ * encoded output. If the worker ever falls so far behind that the pool runs dry, audio is
+ * dropped and counted rather than holding up the caller.
+ */
+public class UplinkEncoder {
+    private static final String TAG = "UplinkEncoder";
+    private static final int POOL_SIZE = 64;
+    // Samples per chunk; bigger writes are split across chunks
+    private static final int CHUNK_SAMPLES = 1024;
+
+    /**
+     * Receives a stream's encoded audio, on the worker thread.
+     */
+    public interface Sink {
+        void onEncoded(ByteString data);
+
+        /**
+         * Called once all audio written before {@link Stream#finish()} has been delivered.
+         */
+        void onFinished();
+    }
+
+    /**
+     * A unit of work for the worker: some audio for a stream, or the end of the stream. Audio
+     * chunks come from the pool; each stream has its own end chunk, which has no samples.
+     */
+    private static class Chunk {
+        final short[] mmSamples;
+        int mmCount;
+        Stream mmStream;
+        boolean mmFinish;
+
+        Chunk(int capacity) {
+            mmSamples = new short[capacity];
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> mFree = new ArrayBlockingQueue<Chunk>(POOL_SIZE);
+    // Unbounded only for the end chunks; audio chunks are bounded by the pool
+    private final LinkedBlockingQueue<Chunk> mWork = new LinkedBlockingQueue<Chunk>();
+    private Thread mThread;
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+
+    public UplinkEncoder() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFree.add(new Chunk(CHUNK_SAMPLES));
+        }
+    }
+
+    /**
+     * Starts a new FLAC stream.
+     * @param sampleRate Sample rate of the 16-bit mono audio that will be written.
+     */
+    public synchronized Stream openStream(int sampleRate, Sink sink) {
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop();
+                }
+            }, TAG);
+            mThread.start();
+        }
+        return new Stream(sampleRate, sink);
+    }
+
+    /**
+     * Stops the worker. Audio still queued is discarded and unfinished streams are never
+     * finished.
+     */
+    public synchronized void shutdown() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        Log.d(TAG, "Encoded " + mBytesIn.get() + " bytes to " + mBytesOut.get() + " in "
+                + mEncodeNanos.get() / 1000000 + "ms, dropped " + mDroppedSamples.get()
+                + " samples");
+    }
+
+    /**
+     * @return Bytes of PCM encoded so far.
+     */
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * @return Bytes of FLAC produced so far, headers included.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    /**
+     * @return Time spent encoding so far, in nanoseconds.
+     */
+    public long getEncodeNanos() {
+        return mEncodeNanos.get();
+    }
+
+    public long getDroppedSamples() {
+        return mDroppedSamples.get();
+    }
+
+    /**
+     * @return Chunks of audio waiting to be encoded.
+     */
+    public int getQueuedChunks() {
+        return mWork.size();
+    }
+
+    private void workLoop() {
+        // Room for everything one chunk can produce, plus the stream header
+        final byte[] out = new byte[FlacEncoder.HEADER_SIZE
+                + (CHUNK_SAMPLES / FlacEncoder.DEFAULT_BLOCK_SIZE + 1)
+                * FlacEncoder.getMaxFrameSize(FlacEncoder.DEFAULT_BLOCK_SIZE)];
+        try {
+            while (true) {
+                final Chunk chunk = mWork.take();
+                final Stream stream = chunk.mmStream;
+                final long start = System.nanoTime();
+
+                int size = 0;
+                if (!stream.mmHeaderSent) {
+                    size += stream.mmEncoder.writeHeader(out, size);
+                    stream.mmHeaderSent = true;
+                }
+                if (chunk.mmFinish) {
+                    size += stream.mmEncoder.flush(out, size);
+                } else {
+                    size += stream.mmEncoder.encode(chunk.mmSamples, chunk.mmCount, out, size);
+                    mBytesIn.addAndGet(chunk.mmCount * 2);
+                }
+                mEncodeNanos.addAndGet(System.nanoTime() - start);
+
+                final boolean finish = chunk.mmFinish;
+                if (!finish) {
+                    chunk.mmStream = null;
+                    mFree.add(chunk);
+                }
+
+                if (size > 0) {
+                    mBytesOut.addAndGet(size);
+                    stream.mmSink.onEncoded(ByteString.copyFrom(out, 0, size));
+                }
+                if (finish) {
+                    stream.mmSink.onFinished();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "worker stopped");
+        }
+    }
+
+    /**
+     * One FLAC stream. Write and finish from one thread at a time.
+     */
+    public class Stream {
+        private final FlacEncoder mmEncoder;
+        private final Sink mmSink;
+        // Reserved up front, so finishing never waits for the pool
+        private final Chunk mmFinishChunk = new Chunk(0);
+        private boolean mmFinished = false;
+        // Only touched by the worker
+        private boolean mmHeaderSent = false;
+
+        Stream(int sampleRate, Sink sink) {
+            mmEncoder = new FlacEncoder(sampleRate, FlacEncoder.DEFAULT_BLOCK_SIZE);
+            mmSink = sink;
+            mmFinishChunk.mmStream = this;
+            mmFinishChunk.mmFinish = true;
+        }
+
+        /**
+         * Queues 16-bit lil-endian PCM for encoding.
+         */
+        public void write(byte[] data, int offset, int length) {
+            final int end = offset + length - 1;
+            int position = offset;
+            while (position < end) {
+                final Chunk chunk = claim((end - position + 1) / 2);
+                if (chunk == null) {
+                    return;
+                }
+                final short[] samples = chunk.mmSamples;
+                int count = 0;
+                while (count < CHUNK_SAMPLES && position < end) {
+                    samples[count++] =
+                            (short) ((data[position] & 0xff) | (data[position + 1] << 8));
+                    position += 2;
+                }
+                submit(chunk, count);
+            }
+        }
+
+        /**
+         * Queues the 16-bit lil-endian PCM between the buffer's position and limit for encoding.
+         * The buffer's position is left unchanged.
+         */
+        public void write(ByteBuffer data) {
+            final int end = data.limit() - 1;
+            int position = data.position();
+            while (position < end) {
+                final Chunk chunk = claim((end - position + 1) / 2);
+                if (chunk == null) {
+                    return;
+                }
+                final short[] samples = chunk.mmSamples;
+                int count = 0;
+                while (count < CHUNK_SAMPLES && position < end) {
+                    samples[count++] =
+                            (short) ((data.get(position) & 0xff) | (data.get(position + 1) << 8));
+                    position += 2;
+                }
+                submit(chunk, count);
+            }
+        }
+
+        /**
+         * Queues the end of the stream. The sink is told once everything before it is encoded.
+         * Never blocks; later calls do nothing.
+         */
+        public void finish() {
+            if (mmFinished) {
+                return;
+            }
+            mmFinished = true;
+            mWork.add(mmFinishChunk);
+        }
+
+        /**
+         * @param remaining Samples left to write, counted as dropped if there's no chunk free.
+         */
+        private Chunk claim(int remaining) {
+            final Chunk chunk = mFree.poll();
+            if (chunk == null) {
+                mDroppedSamples.addAndGet(remaining);
+                Log.w(TAG, "Encoder behind, dropping " + remaining + " samples");
+            }
+            return chunk;
+        }
+
+        private void submit(Chunk chunk, int count) {
+            chunk.mmStream = this;
+            chunk.mmFinish = false;
+            chunk.mmCount = count;
+            mWork.add(chunk);
+        }
+    }
+}
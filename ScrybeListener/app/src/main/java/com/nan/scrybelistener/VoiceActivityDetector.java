@@ -0,0 +1,19 @@
+package com.nan.scrybelistener;
+
+/**
+ * Decides whether frames of captured audio contain speech. Implementations may keep state
+ * between frames, and are only ever called from one thread at a time.
+ */
+public interface VoiceActivityDetector {
+    /**
+     * @param samples 16-bit PCM samples.
+     * @param count Number of valid samples in the array.
+     * @return Whether the frame should be treated as speech.
+     */
+    boolean isVoice(short[] samples, int count);
+
+    /**
+     * Forgets any state carried over from previous frames.
+     */
+    void reset();
+}
@@ -3,9 +3,14 @@ package com.nan.scrybelistener;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class to handle recording and buffering of voice data.
@@ -20,11 +25,18 @@ public class VoiceRecorder {
     // in 16-bit raw audio (lil-endian) format
     private static final int[] SAMPLE_RATE_CANDIDATES =
             new int[] {16000, 11025, 22050, 44100};
+    // Audio captured at any other rate is resampled to this before it's passed on. More is
+    // wasted bandwidth to the API, with no gain in accuracy.
+    private static final int OUTPUT_SAMPLE_RATE = 16000;
     private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int SILENCE_THRESHOLD = 1500;
     private static final int TIMEOUT_MILLIS = 2000;
     private static final int MAX_SPEECH_MILLIS = 30000;
+    // Number of frames buffered between the capture and processing threads
+    private static final int RING_CAPACITY = 64;
+    // Audio from just before voice is detected, passed on when it is so the first syllable
+    // isn't lost to the detector's onset
+    private static final int DEFAULT_PRE_ROLL_MILLIS = 400;
     private static final String TAG = "VoiceRecorder";
 
     /**
@@ -34,19 +46,94 @@ public class VoiceRecorder {
     public static abstract class Callback {
         public void onVoiceStart() {}
         public void onVoice(byte[] data, int size) {}
+
+        /**
+         * Called with each chunk of audio. The buffer holds {@code size} bytes between its
+         * position and limit, and is reused once this returns, so it must not be retained.
+         * By default, heap buffers are passed on to {@link #onVoice(byte[], int)}.
+         */
+        public void onVoice(ByteBuffer data, int size) {
+            if (data.hasArray()) {
+                onVoice(data.array(), size);
+            }
+        }
+
         public void onVoiceEnd() {}
     }
 
     private final Callback mCallback;
+    private final boolean mDirectCapture;
+    private boolean mContinuous = false;
+    private int mPreRollMillis = DEFAULT_PRE_ROLL_MILLIS;
+    private VoiceActivityDetector mDetector;
     private AudioRecord mAudioRecord;
-    private byte[] mAudioBuffer;
+    private int mFrameSize;
+    private AudioRingBuffer mRingBuffer;
     private long mLastHeard = Long.MAX_VALUE;
     private long mVoiceStarted;
+    // The frame being passed to the callback, for latency tracing. Only touched on its thread.
+    private long mFrameId;
+    private long mFrameCapturedAt;
+    private final Metrics.Counter mFramesCaptured = new Metrics.Counter();
+    private final Metrics.Counter mFramesDropped = new Metrics.Counter();
     private final Object mLock = new Object();
+    private Thread mCaptureThread;
     private Thread mThread;
 
     public VoiceRecorder(@NonNull Callback callback) {
+        this(callback, false);
+    }
+
+    /**
+     * @param directCapture Read audio straight into direct {@link ByteBuffer}s rather than heap
+     *                      arrays. Only callbacks overriding
+     *                      {@link Callback#onVoice(ByteBuffer, int)} will receive audio in this
+     *                      mode.
+     */
+    public VoiceRecorder(@NonNull Callback callback, boolean directCapture) {
         mCallback = callback;
+        mDirectCapture = directCapture;
+    }
+
+    /**
+     * In continuous mode, once voice is heard all audio is passed on until {@link #dismiss()} or
+     * {@link #stop()}, rather than ending after a pause or a maximum utterance length. Must be
+     * set before {@link #start()}.
+     */
+    public void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+    }
+
+    /**
+     * Sets how much of the audio from before voice was detected is passed on when it is, right
+     * after {@link Callback#onVoiceStart()}. 0 turns pre-roll off. Must be set before
+     * {@link #start()}.
+     */
+    public void setPreRollMillis(int millis) {
+        mPreRollMillis = millis;
+    }
+
+    /**
+     * Replaces the default {@link EnergyVoiceActivityDetector}. Must be set before
+     * {@link #start()}.
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector detector) {
+        mDetector = detector;
+    }
+
+    /**
+     * Registers the frames captured and dropped, and how many are waiting to be processed.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.register("audio.frames_captured", mFramesCaptured);
+        metrics.register("audio.frames_dropped", mFramesDropped);
+        metrics.register("audio.frames_buffered", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                AudioRingBuffer ring = mRingBuffer;
+                return ring != null ? ring.size() : 0;
+            }
+        });
     }
 
     public void start() {
@@ -57,9 +144,27 @@ public class VoiceRecorder {
             throw new RuntimeException("Cannot initialize recorder.");
         }
 
+        mRingBuffer = new AudioRingBuffer(RING_CAPACITY, mFrameSize, mDirectCapture);
+        VoiceActivityDetector detector = mDetector;
+        if (detector == null) {
+            detector = new EnergyVoiceActivityDetector(OUTPUT_SAMPLE_RATE);
+        }
+        detector.reset();
+
+        Resampler resampler = null;
+        if (mAudioRecord.getSampleRate() != OUTPUT_SAMPLE_RATE) {
+            Log.d(TAG, "resampling from " + mAudioRecord.getSampleRate());
+            resampler = new Resampler(mAudioRecord.getSampleRate(), OUTPUT_SAMPLE_RATE);
+        }
+
         mAudioRecord.startRecording();
-        mThread = new Thread(new ProcessVoice());
+        mThread = new Thread(new ProcessVoice(mRingBuffer, detector, resampler,
+                OUTPUT_SAMPLE_RATE * 2 * mPreRollMillis / 1000));
         mThread.start();
+        mCaptureThread = new Thread(new CaptureVoice(mAudioRecord, mRingBuffer, mThread,
+                mFramesCaptured, mFramesDropped));
+        mCaptureThread.setPriority(Thread.MAX_PRIORITY);
+        mCaptureThread.start();
     }
 
     public void stop() {
@@ -71,11 +176,26 @@ public class VoiceRecorder {
                 mThread = null;
             }
             if (mAudioRecord != null) {
+                // stopping the recorder unblocks the capture thread's read, so it can exit
+                // before the recorder is released out from under it
+                mCaptureThread.interrupt();
                 mAudioRecord.stop();
+                try {
+                    mCaptureThread.join();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "interrupted waiting for capture thread");
+                }
+                mCaptureThread = null;
                 mAudioRecord.release();
                 mAudioRecord = null;
             }
-            mAudioBuffer = null;
+            if (mRingBuffer != null) {
+                Log.d(TAG, "frames captured: " + mRingBuffer.getFramesWritten()
+                        + ", dropped: " + mRingBuffer.getOverflowCount()
+                        + ", max buffered: " + mRingBuffer.getHighWaterMark()
+                        + "/" + mRingBuffer.capacity());
+                mRingBuffer = null;
+            }
         }
     }
 
@@ -86,13 +206,73 @@ public class VoiceRecorder {
         }
     }
 
+    /**
+     * @return The sample rate audio is passed to the callback at, whatever the hardware supports.
+     */
+    public static int getPreferredSampleRate() {
+        return OUTPUT_SAMPLE_RATE;
+    }
+
+    /**
+     * @return The sample rate of the audio passed to the callback, or 0 if not recording.
+     */
     public int getSampleRate() {
+        if (mAudioRecord != null) {
+            return OUTPUT_SAMPLE_RATE;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The sample rate the hardware is recording at, or 0 if not recording.
+     */
+    public int getCaptureSampleRate() {
         if (mAudioRecord != null) {
             return mAudioRecord.getSampleRate();
         }
         return 0;
     }
 
+    /**
+     * @return Sequence number of the frame being passed to {@link Callback#onVoice}, to trace it
+     * through recognition. Only meaningful from within the callback.
+     */
+    public long getFrameId() {
+        return mFrameId;
+    }
+
+    /**
+     * @return When the frame being passed to {@link Callback#onVoice} was captured, by
+     * {@link SystemClock#elapsedRealtime()}. Only meaningful from within the callback.
+     */
+    public long getFrameCapturedAt() {
+        return mFrameCapturedAt;
+    }
+
+    /**
+     * @return Number of captured frames dropped because processing fell behind.
+     */
+    public long getOverflowCount() {
+        AudioRingBuffer ring = mRingBuffer;
+        return ring != null ? ring.getOverflowCount() : 0;
+    }
+
+    /**
+     * @return The most frames that have been waiting for processing at once.
+     */
+    public int getBufferHighWaterMark() {
+        AudioRingBuffer ring = mRingBuffer;
+        return ring != null ? ring.getHighWaterMark() : 0;
+    }
+
+    /**
+     * @return Number of frames that can wait for processing before audio is dropped.
+     */
+    public int getBufferCapacity() {
+        AudioRingBuffer ring = mRingBuffer;
+        return ring != null ? ring.capacity() : 0;
+    }
+
     /**
      * Initializes the audio subsystem.
      * @return An {@link AudioRecord} object, or null on failure.
@@ -109,7 +289,7 @@ public class VoiceRecorder {
                     sampleRate, CHANNEL, ENCODING, bufferSize);
 
             if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                mAudioBuffer = new byte[bufferSize];
+                mFrameSize = bufferSize;
                 Log.d(TAG, "CREATED");
                 return audioRecord;
             } else {
@@ -121,46 +301,187 @@ public class VoiceRecorder {
     }
 
     /**
-     * Separate thread to handle reading from mic and invoking callbacks.
+     * Separate thread to read from the mic into the ring buffer. Never takes {@link #mLock} or
+     * calls back into the listener, so a slow consumer can't make us miss audio.
+     */
+    private static class CaptureVoice implements Runnable {
+        private final AudioRecord mmAudioRecord;
+        private final AudioRingBuffer mmRingBuffer;
+        private final Thread mmConsumer;
+        // Frames we have nowhere to put still need to be read, or the recorder will overrun
+        private final ByteBuffer mmDiscard;
+        private final Metrics.Counter mmCaptured;
+        private final Metrics.Counter mmDropped;
+
+        CaptureVoice(AudioRecord audioRecord, AudioRingBuffer ringBuffer, Thread consumer,
+                     Metrics.Counter captured, Metrics.Counter dropped) {
+            mmAudioRecord = audioRecord;
+            mmRingBuffer = ringBuffer;
+            mmConsumer = consumer;
+            mmCaptured = captured;
+            mmDropped = dropped;
+            mmDiscard = ByteBuffer.allocateDirect(ringBuffer.getFrameSize());
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                ByteBuffer frame = mmRingBuffer.claim();
+                if (frame == null) {
+                    read(mmDiscard);
+                    mmDropped.increment();
+                    continue;
+                }
+
+                final int sizeRead = read(frame);
+                if (sizeRead <= 0) {
+                    continue;
+                }
+                mmRingBuffer.publish(sizeRead, SystemClock.elapsedRealtime());
+                mmCaptured.increment();
+                LockSupport.unpark(mmConsumer);
+            }
+        }
+
+        private int read(ByteBuffer frame) {
+            if (frame.isDirect()) {
+                return mmAudioRecord.read(frame, frame.capacity());
+            }
+            return mmAudioRecord.read(frame.array(), frame.arrayOffset(), frame.capacity());
+        }
+    }
+
+    /**
+     * Separate thread to handle detecting voice in captured audio and invoking callbacks.
      */
     private class ProcessVoice implements Runnable {
+        private final AudioRingBuffer mmRingBuffer;
+        private final VoiceActivityDetector mmDetector;
+        private final short[] mmSamples;
+        // Null if the hardware is already recording at OUTPUT_SAMPLE_RATE
+        private final Resampler mmResampler;
+        // Resampled audio, and the buffer it's passed on in (reused for every frame)
+        private final short[] mmResampled;
+        private final ByteBuffer mmOutput;
+        private final ShortBuffer mmOutputSamples;
+        // The most recent audio not passed on, and the buffer it's flushed in on voice start.
+        // Null if pre-roll is off.
+        private final AudioHistory mmPreRoll;
+        private final ByteBuffer mmPreRollOutput;
+
+        ProcessVoice(AudioRingBuffer ringBuffer, VoiceActivityDetector detector,
+                     Resampler resampler, int preRollBytes) {
+            mmRingBuffer = ringBuffer;
+            mmDetector = detector;
+            mmSamples = new short[ringBuffer.getFrameSize() / 2];
+            mmResampler = resampler;
+            if (resampler != null) {
+                mmResampled = new short[resampler.getMaxOutput(mmSamples.length)];
+                mmOutput = mDirectCapture
+                        ? ByteBuffer.allocateDirect(mmResampled.length * 2)
+                        : ByteBuffer.allocate(mmResampled.length * 2);
+                mmOutput.order(ByteOrder.LITTLE_ENDIAN);
+                mmOutputSamples = mmOutput.asShortBuffer();
+            } else {
+                mmResampled = null;
+                mmOutput = null;
+                mmOutputSamples = null;
+            }
+            if (preRollBytes > 0) {
+                mmPreRoll = new AudioHistory(preRollBytes);
+                mmPreRollOutput = mDirectCapture
+                        ? ByteBuffer.allocateDirect(preRollBytes)
+                        : ByteBuffer.allocate(preRollBytes);
+                mmPreRollOutput.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                mmPreRoll = null;
+                mmPreRollOutput = null;
+            }
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
+                ByteBuffer buffer = mmRingBuffer.peek();
+                if (buffer == null) {
+                    // woken by the capture thread as soon as a frame is published
+                    LockSupport.park(this);
+                    continue;
+                }
+                int sizeRead = buffer.remaining();
+                mFrameId = mmRingBuffer.peekIndex();
+                mFrameCapturedAt = mmRingBuffer.peekCapturedAt();
+
+                final ShortBuffer samples = mmRingBuffer.peekSamples();
+                int sampleCount = samples.remaining();
+                samples.get(mmSamples, 0, sampleCount);
+                short[] output = mmSamples;
+                if (mmResampler != null) {
+                    sampleCount = mmResampler.process(mmSamples, sampleCount, mmResampled, 0);
+                    output = mmResampled;
+                    mmOutputSamples.clear();
+                    mmOutputSamples.put(mmResampled, 0, sampleCount);
+                    mmOutput.clear();
+                    mmOutput.limit(sampleCount * 2);
+                    buffer = mmOutput;
+                    sizeRead = sampleCount * 2;
+                }
+
+                // is someone currently speaking? Checked before taking the lock, since the
+                // detector's state is only touched from this thread
+                final boolean hearingVoice = mmDetector.isVoice(output, sampleCount);
+
                 synchronized (mLock) {
                     if (Thread.currentThread().isInterrupted()) {
                         break;
                     }
-                    final int sizeRead = mAudioRecord.read(mAudioBuffer, 0, mAudioBuffer.length);
                     final long now  = System.currentTimeMillis();
 
-                    // is someone currently speaking?
-                    if (isHearingVoice(mAudioBuffer, sizeRead)) {
+                    if (hearingVoice) {
                         if (mLastHeard == Long.MAX_VALUE) {
                             mVoiceStarted = now;
                             mCallback.onVoiceStart();
+                            flushPreRoll();
                         }
-                        mCallback.onVoice(mAudioBuffer, sizeRead);
+                        mCallback.onVoice(buffer, sizeRead);
                         mLastHeard = now;
 
                         // the speech API has a maximum length, so cut the speaker
                         // off if they've been talking too long
                         // TODO: test to make sure this is handled smoothly by UI
-                        if (now - mVoiceStarted > MAX_SPEECH_MILLIS) {
+                        if (!mContinuous && now - mVoiceStarted > MAX_SPEECH_MILLIS) {
                             Log.d(TAG, "maximum speech time exceeded");
                             end();
                         }
                     } else if (mLastHeard != Long.MAX_VALUE) {
-                        mCallback.onVoice(mAudioBuffer, sizeRead);
+                        mCallback.onVoice(buffer, sizeRead);
 
                         // has it been awhile since we heard anyone?
-                        if (now - mLastHeard > TIMEOUT_MILLIS) {
+                        if (!mContinuous && now - mLastHeard > TIMEOUT_MILLIS) {
                             Log.d(TAG, "maximum silence exceeded");
                             end();
                         }
+                    } else if (mmPreRoll != null) {
+                        mmPreRoll.write(buffer);
                     }
                 }
+                mmRingBuffer.release();
+            }
+        }
+
+        /**
+         * Passes on the audio heard just before voice started, so the start of the first word
+         * isn't clipped. Only copies on voice start; while voice continues nothing is kept.
+         */
+        private void flushPreRoll() {
+            if (mmPreRoll == null || mmPreRoll.size() == 0) {
+                return;
             }
+            mmPreRollOutput.clear();
+            final int size = mmPreRoll.read(mmPreRollOutput);
+            mmPreRollOutput.flip();
+            mmPreRoll.clear();
+            mCallback.onVoice(mmPreRollOutput, size);
         }
 
         private void end() {
@@ -168,20 +489,5 @@ public class VoiceRecorder {
             mLastHeard = Long.MAX_VALUE;
             mCallback.onVoiceEnd();
         }
-
-        private boolean isHearingVoice(byte[] buffer, int size) {
-            for (int i = 0; i < size - 1; i += 2) {
-                // buffer is 16-bit lil-endian, so convert to big-endian
-                int s = buffer[i + 1];
-                if (s < 0) s = -s;
-                s <<= 8;
-                s += Math.abs(buffer[i]);
-
-                if (s > SILENCE_THRESHOLD) {
-                    return true;
-                }
-            }
-            return false;
-        }
     }
 }
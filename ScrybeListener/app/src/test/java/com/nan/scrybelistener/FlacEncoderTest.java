@@ -0,0 +1,292 @@
+package com.nan.scrybelistener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips audio through {@link FlacEncoder} and a minimal decoder for the subset of FLAC it
+ * writes.
+ */
+public class FlacEncoderTest {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void speechLikeAudioDecodesToInput() {
+        final short[] samples = new short[SAMPLE_RATE * 2];
+        final Random random = new Random(1);
+        for (int i = 0; i < samples.length; i++) {
+            final double t = (double) i / SAMPLE_RATE;
+            samples[i] = (short) (4000 * Math.sin(2 * Math.PI * 220 * t)
+                    + 2000 * Math.sin(2 * Math.PI * 1330 * t)
+                    + random.nextGaussian() * 200);
+        }
+        final byte[] flac = encode(samples, SAMPLE_RATE, FlacEncoder.DEFAULT_BLOCK_SIZE, 320);
+        assertArrayEquals(samples, decode(flac, SAMPLE_RATE));
+        // the point of the encoder
+        assertTrue("compressed to " + flac.length, flac.length < samples.length * 2 * 3 / 4);
+    }
+
+    @Test
+    public void silenceAndFullScaleNoiseDecodeToInput() {
+        final short[] samples = new short[FlacEncoder.DEFAULT_BLOCK_SIZE * 4];
+        final Random random = new Random(2);
+        // a silent block, a block of noise that can only be stored verbatim, and extremes
+        for (int i = samples.length / 4; i < samples.length / 2; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        for (int i = samples.length / 2; i < samples.length; i++) {
+            samples[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        assertArrayEquals(samples, decode(encode(samples, SAMPLE_RATE,
+                FlacEncoder.DEFAULT_BLOCK_SIZE, samples.length), SAMPLE_RATE));
+    }
+
+    @Test
+    public void partialLastBlockIsFlushed() {
+        final short[] samples = new short[FlacEncoder.DEFAULT_BLOCK_SIZE * 3 + 77];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i * 37 % 5000 - 2500);
+        }
+        assertArrayEquals(samples, decode(encode(samples, SAMPLE_RATE,
+                FlacEncoder.DEFAULT_BLOCK_SIZE, 500), SAMPLE_RATE));
+    }
+
+    @Test
+    public void uncommonSampleRateIsWrittenInFrameHeaders() {
+        final int sampleRate = 11025;
+        final short[] samples = new short[3000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (3000 * Math.sin(i / 10.0));
+        }
+        assertArrayEquals(samples, decode(encode(samples, sampleRate, 256, 1000), sampleRate));
+    }
+
+    @Test
+    public void manyFramesNumberedPastOneByte() {
+        // frame numbers of 128 and up take more than one byte in the header
+        final short[] samples = new short[16 * 300 + 5];
+        final Random random = new Random(3);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (random.nextInt(200) - 100);
+        }
+        assertArrayEquals(samples, decode(encode(samples, SAMPLE_RATE, 16, 100), SAMPLE_RATE));
+    }
+
+    private static byte[] encode(short[] samples, int sampleRate, int blockSize, int chunk) {
+        final FlacEncoder encoder = new FlacEncoder(sampleRate, blockSize);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[FlacEncoder.HEADER_SIZE
+                + (chunk / blockSize + 1) * FlacEncoder.getMaxFrameSize(blockSize)];
+        assertEquals(FlacEncoder.HEADER_SIZE, encoder.writeHeader(buffer, 0));
+        out.write(buffer, 0, FlacEncoder.HEADER_SIZE);
+        for (int start = 0; start < samples.length; start += chunk) {
+            final short[] piece = Arrays.copyOfRange(samples, start,
+                    Math.min(samples.length, start + chunk));
+            out.write(buffer, 0, encoder.encode(piece, piece.length, buffer, 0));
+        }
+        out.write(buffer, 0, encoder.flush(buffer, 0));
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a mono, 16-bit stream using only constant, verbatim and fixed subframes with Rice
+     * coded residuals, checking the headers and CRCs along the way.
+     */
+    private static short[] decode(byte[] flac, int sampleRate) {
+        final BitReader r = new BitReader(flac);
+        assertEquals('f', r.read(8));
+        assertEquals('L', r.read(8));
+        assertEquals('a', r.read(8));
+        assertEquals('C', r.read(8));
+        assertEquals("last block, STREAMINFO", 0x80, r.read(8));
+        assertEquals(34, r.read(24));
+        r.read(16 + 16 + 24 + 24);
+        assertEquals(sampleRate, r.read(20));
+        assertEquals("mono", 0, r.read(3));
+        assertEquals("16-bit", 15, r.read(5));
+        // total samples and MD5, left unknown
+        r.skip(36 + 128);
+
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        long frameNumber = 0;
+        while (r.position() < flac.length) {
+            final int frameStart = r.position();
+            assertEquals("sync", 0x3FFE, r.read(14));
+            assertEquals(0, r.read(2));
+            assertEquals("block size at end of header", 0x7, r.read(4));
+            final int rateCode = r.read(4);
+            assertEquals("mono", 0, r.read(4));
+            assertEquals("16-bit", 0x4, r.read(3));
+            assertEquals(0, r.read(1));
+            assertEquals(frameNumber++, r.readUtf8());
+            final int blockSize = r.read(16) + 1;
+            if (rateCode == 0xD) {
+                assertEquals(sampleRate, r.read(16));
+            }
+            final int headerCrc = crc8(flac, frameStart, r.position() - frameStart);
+            assertEquals("header CRC", headerCrc, r.read(8));
+
+            for (int sample : readSubframe(r, blockSize)) {
+                decoded.write(sample & 0xFF);
+                decoded.write(sample >> 8);
+            }
+
+            r.align();
+            final int frameCrc = crc16(flac, frameStart, r.position() - frameStart);
+            assertEquals("frame CRC", frameCrc, r.read(16));
+        }
+
+        final byte[] pcm = decoded.toByteArray();
+        final short[] samples = new short[pcm.length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8));
+        }
+        return samples;
+    }
+
+    private static int[] readSubframe(BitReader r, int blockSize) {
+        assertEquals("padding", 0, r.read(1));
+        final int type = r.read(6);
+        assertEquals("wasted bits", 0, r.read(1));
+        final int[] x = new int[blockSize];
+        if (type == 0) {
+            Arrays.fill(x, r.readSigned(16));
+            return x;
+        }
+        if (type == 1) {
+            for (int i = 0; i < blockSize; i++) {
+                x[i] = r.readSigned(16);
+            }
+            return x;
+        }
+        assertTrue("fixed subframe, got " + type, type >= 8 && type <= 12);
+        final int order = type - 8;
+        for (int i = 0; i < order; i++) {
+            x[i] = r.readSigned(16);
+        }
+
+        assertEquals("Rice, 4-bit parameters", 0, r.read(2));
+        final int partitionOrder = r.read(4);
+        final int partitionSize = blockSize >> partitionOrder;
+        int i = order;
+        for (int end = partitionSize; end <= blockSize; end += partitionSize) {
+            final int k = r.read(4);
+            assertTrue("no escape code", k < 15);
+            for (; i < end; i++) {
+                final int u = (r.readUnary() << k) | r.read(k);
+                final int e = (u >>> 1) ^ -(u & 1);
+                x[i] = e + predict(x, i, order);
+            }
+        }
+        return x;
+    }
+
+    private static int predict(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return x[i - 1];
+            case 2:
+                return 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            default:
+                return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+
+    private static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc << 1) ^ ((crc & 0x80) != 0 ? 0x07 : 0)) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc << 1) ^ ((crc & 0x8000) != 0 ? 0x8005 : 0)) & 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    private static class BitReader {
+        private final byte[] mmData;
+        private long mmBit = 0;
+
+        BitReader(byte[] data) {
+            mmData = data;
+        }
+
+        int read(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                final int b = mmData[(int) (mmBit >> 3)] >> (7 - (int) (mmBit & 7)) & 1;
+                value = (value << 1) | b;
+                mmBit++;
+            }
+            return value;
+        }
+
+        int readSigned(int count) {
+            return read(count) << (32 - count) >> (32 - count);
+        }
+
+        int readUnary() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                zeros++;
+            }
+            return zeros;
+        }
+
+        long readUtf8() {
+            final int lead = read(8);
+            int continuationBytes = 0;
+            while ((lead << continuationBytes & 0x80) != 0) {
+                continuationBytes++;
+            }
+            if (continuationBytes == 0) {
+                return lead;
+            }
+            continuationBytes--;
+            long value = lead & (0x7F >> (continuationBytes + 1));
+            for (int i = 0; i < continuationBytes; i++) {
+                final int b = read(8);
+                assertEquals("continuation byte", 0x80, b & 0xC0);
+                value = (value << 6) | (b & 0x3F);
+            }
+            return value;
+        }
+
+        void skip(int bits) {
+            mmBit += bits;
+        }
+
+        void align() {
+            mmBit = (mmBit + 7) & ~7L;
+        }
+
+        /**
+         * @return Position of the current byte. Only meaningful on a byte boundary.
+         */
+        int position() {
+            return (int) (mmBit >> 3);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.nan.scrybelistener;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link Resampler} against pure tones: how many samples come out, and how much of a tone
+ * survives inside and outside the passband.
+ */
+public class ResamplerTest {
+    private static final int AMPLITUDE = 10000;
+
+    @Test
+    public void outputLengthFollowsTheRatio() {
+        assertOutputLength(48000, 16000);
+        assertOutputLength(44100, 16000);
+        assertOutputLength(8000, 16000);
+        assertOutputLength(16000, 16000);
+    }
+
+    @Test
+    public void chunkSizeDoesNotChangeOutput() {
+        final short[] in = tone(44100, 1000, 44100);
+        final short[] whole = resample(new Resampler(44100, 16000), in, in.length);
+        final short[] chunked = resample(new Resampler(44100, 16000), in, 441);
+        final short[] odd = resample(new Resampler(44100, 16000), in, 5000);
+        assertArrayEquals(whole, chunked);
+        assertArrayEquals(whole, odd);
+    }
+
+    @Test
+    public void passbandIsKeptAtUnityGain() {
+        assertGain(48000, 16000, 1000, 0.98, 1.02);
+        assertGain(44100, 16000, 3000, 0.98, 1.02);
+        assertGain(8000, 16000, 1000, 0.98, 1.02);
+    }
+
+    @Test
+    public void aboveNyquistIsRemoved() {
+        // would alias to 4kHz at 16kHz
+        assertGain(48000, 16000, 12000, 0, 0.01);
+        assertGain(44100, 16000, 10000, 0, 0.01);
+    }
+
+    private static void assertOutputLength(int inputRate, int outputRate) {
+        final Resampler resampler = new Resampler(inputRate, outputRate);
+        final int seconds = 3;
+        final short[] in = tone(inputRate, 1000, inputRate * seconds);
+        final short[] out = new short[resampler.getMaxOutput(inputRate / 100)];
+        int total = 0;
+        for (int start = 0; start < in.length; start += inputRate / 100) {
+            final short[] chunk = Arrays.copyOfRange(in, start, start + inputRate / 100);
+            final int written = resampler.process(chunk, chunk.length, out, 0);
+            assertTrue(written <= resampler.getMaxOutput(chunk.length));
+            total += written;
+        }
+        assertEquals(inputRate + " -> " + outputRate, outputRate * seconds, total, 1);
+    }
+
+    /**
+     * Checks the ratio of output to input RMS for a tone, once the filter has filled up.
+     */
+    private static void assertGain(int inputRate, int outputRate, int frequency, double min,
+                                   double max) {
+        final short[] out = resample(new Resampler(inputRate, outputRate),
+                tone(inputRate, frequency, inputRate), inputRate / 100);
+        double sum = 0;
+        final int skip = outputRate / 10;
+        for (int i = skip; i < out.length; i++) {
+            sum += (double) out[i] * out[i];
+        }
+        final double gain = Math.sqrt(sum / (out.length - skip)) / (AMPLITUDE / Math.sqrt(2));
+        final String message = frequency + "Hz at " + inputRate + " -> " + outputRate + ": " + gain;
+        assertTrue(message, gain >= min && gain <= max);
+    }
+
+    private static short[] tone(int sampleRate, int frequency, int count) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i
+                    / sampleRate));
+        }
+        return samples;
+    }
+
+    private static short[] resample(Resampler resampler, short[] in, int chunk) {
+        final short[] out = new short[resampler.getMaxOutput(in.length) + in.length / chunk + 1];
+        int written = 0;
+        for (int start = 0; start < in.length; start += chunk) {
+            final short[] piece = Arrays.copyOfRange(in, start, Math.min(in.length, start + chunk));
+            written += resampler.process(piece, piece.length, out, written);
+        }
+        return Arrays.copyOf(out, written);
+    }
+}
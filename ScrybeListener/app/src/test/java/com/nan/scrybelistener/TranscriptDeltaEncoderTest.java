@@ -0,0 +1,121 @@
+package com.nan.scrybelistener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applies the frames {@link TranscriptDeltaEncoder} produces the way a delta mode client does,
+ * and checks the client ends up with each full result.
+ */
+public class TranscriptDeltaEncoderTest {
+    private TranscriptDeltaEncoder mEncoder;
+    // What the client is showing
+    private long mUtteranceId;
+    private String mText;
+    private boolean mIsFinal;
+
+    @Before
+    public void setUp() {
+        mEncoder = new TranscriptDeltaEncoder();
+        mUtteranceId = TranscriptProtocol.NO_UTTERANCE;
+        mText = "";
+        mIsFinal = false;
+    }
+
+    @Test
+    public void growingResultsOnlySendNewText() {
+        assertSent(1, "hello", false);
+        final String frame = assertSent(1, "hello world", false);
+        assertTrue(frame, frame.endsWith(TranscriptProtocol.FIELD_SEPARATOR + " world"));
+        assertSent(1, "hello world", true);
+    }
+
+    @Test
+    public void revisedResultsReplaceTheChangedPart() {
+        assertSent(1, "wreck a nice", false);
+        assertSent(1, "recognize", false);
+        assertSent(1, "recognize speech", false);
+        assertSent(1, "recognise", true);
+    }
+
+    @Test
+    public void newUtteranceIsSentInFull() {
+        assertSent(1, "the same words", true);
+        // shares a prefix with the last result, but the client starts a new utterance
+        final String frame = assertSent(2, "the same words again", false);
+        assertTrue(frame, frame.endsWith(TranscriptProtocol.FIELD_SEPARATOR
+                + "the same words again"));
+        assertSent(2, "the same words again", true);
+        assertSent(3, "", false);
+        assertSent(3, "more", false);
+    }
+
+    @Test
+    public void resetSendsTheWholeUtteranceAgain() {
+        assertSent(5, "before the reconnect", false);
+        mEncoder.reset();
+        // a new connection starts with nothing shown
+        mUtteranceId = TranscriptProtocol.NO_UTTERANCE;
+        mText = "";
+        assertSent(5, "before the reconnect and after", false);
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() {
+        // share a high surrogate
+        final String smile = "\uD83D\uDE00";
+        final String laugh = "\uD83D\uDE02";
+        assertSent(1, "ok " + smile, false);
+        final String frame = assertSent(1, "ok " + laugh, false);
+        assertTrue(frame, frame.endsWith(TranscriptProtocol.FIELD_SEPARATOR + laugh));
+    }
+
+    @Test
+    public void sourceFramesApplyTheSameWay() {
+        final String[] results = {"merging", "merging two", "merged two listeners"};
+        String text = "";
+        for (int i = 0; i < results.length; i++) {
+            final SourceUpdate update = TranscriptProtocol.parseSourceFrame(
+                    mEncoder.encodeSource(7, results[i], i == results.length - 1, 100, 200 + i));
+            assertNotNull(update);
+            assertEquals(7, update.getUtteranceId());
+            assertEquals(100, update.getCapturedAt());
+            assertEquals(200 + i, update.getSentAt());
+            text = text.substring(0, update.getStableLength()) + update.getSuffix();
+            assertEquals(results[i], text);
+        }
+    }
+
+    /**
+     * Encodes a result, applies it to the client's state, and checks the client then shows it.
+     * @return The frame.
+     */
+    private String assertSent(long utteranceId, String text, boolean isFinal) {
+        final String frame = mEncoder.encode(utteranceId, text, isFinal);
+        apply(frame);
+        assertEquals(utteranceId, mUtteranceId);
+        assertEquals(text, mText);
+        assertEquals(isFinal, mIsFinal);
+        return frame;
+    }
+
+    private void apply(String frame) {
+        assertEquals(TranscriptProtocol.FRAME_START, frame.charAt(0));
+        final String[] fields = frame.substring(1)
+                .split(String.valueOf(TranscriptProtocol.FIELD_SEPARATOR), 4);
+        assertEquals(4, fields.length);
+        final long utteranceId = Long.parseLong(fields[0]);
+        final int stable = Integer.parseInt(fields[1]);
+        if (utteranceId != mUtteranceId) {
+            assertEquals("a new utterance keeps nothing", 0, stable);
+            mUtteranceId = utteranceId;
+            mText = "";
+        }
+        mText = mText.substring(0, stable) + fields[3];
+        mIsFinal = TranscriptProtocol.FINAL.equals(fields[2]);
+    }
+}
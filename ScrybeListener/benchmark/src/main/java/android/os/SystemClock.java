@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Stand-in for the Android class so app code can run in benchmarks.
+ */
+public final class SystemClock {
+    private SystemClock() {}
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
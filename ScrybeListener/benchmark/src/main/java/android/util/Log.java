@@ -0,0 +1,37 @@
+package android.util;
+
+/**
+ * Stand-in for the Android class so app code can run in benchmarks. Drops everything, so logging
+ * doesn't skew the measurements.
+ */
+public final class Log {
+    private Log() {}
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+}
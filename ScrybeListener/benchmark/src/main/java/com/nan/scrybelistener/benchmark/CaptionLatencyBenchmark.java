@@ -0,0 +1,140 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.TcpTranscriptTransport;
+import com.nan.scrybelistener.TranscriptBroadcaster;
+import com.nan.scrybelistener.TranscriptClient;
+import com.nan.scrybelistener.TranscriptConnection;
+import com.nan.scrybelistener.TranscriptProtocol;
+import com.nan.scrybelistener.TranscriptTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caption latency from a recognition result to a display reading it, through the broadcaster,
+ * the client's send queue and the TCP transport over loopback. Sampled, so the report includes
+ * percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptionLatencyBenchmark {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Number of displays connected.
+     */
+    @Param({"1", "4"})
+    public int clients;
+
+    /**
+     * Whether the displays ask for delta frames rather than full lines.
+     */
+    @Param({"true", "false"})
+    public boolean delta;
+
+    private ScriptedRecognizer mRecognizer;
+    private TcpTranscriptTransport mTransport;
+    private TranscriptBroadcaster mBroadcaster;
+    private Socket[] mSockets;
+    private BufferedReader[] mReaders;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        mRecognizer = new ScriptedRecognizer(ScriptedRecognizer.DEFAULT_SCRIPT);
+        mBroadcaster = new TranscriptBroadcaster(new TranscriptBroadcaster.Listener() {
+            @Override
+            public void onClientsChanged() {
+            }
+        });
+        mTransport = new TcpTranscriptTransport(0);
+        mTransport.start(new TranscriptTransport.Listener() {
+            @Override
+            public void onConnection(TranscriptConnection connection) {
+                mBroadcaster.addClient(connection);
+            }
+        });
+
+        mSockets = new Socket[clients];
+        mReaders = new BufferedReader[clients];
+        for (int i = 0; i < clients; i++) {
+            mSockets[i] = new Socket("127.0.0.1", mTransport.getLocalPort());
+            mSockets[i].setTcpNoDelay(true);
+            mReaders[i] = new BufferedReader(new InputStreamReader(mSockets[i].getInputStream()));
+            if (delta) {
+                OutputStream out = mSockets[i].getOutputStream();
+                out.write((TranscriptProtocol.HELLO + "\n").getBytes());
+                out.flush();
+            }
+        }
+        awaitClients();
+    }
+
+    /**
+     * Waits until every display is connected and, in delta mode, has been heard asking for it.
+     */
+    private void awaitClients() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            List<TranscriptClient> connected = mBroadcaster.getClients();
+            boolean ready = connected.size() == clients;
+            for (TranscriptClient client : connected) {
+                ready &= client.isDeltaMode() == delta;
+            }
+            if (ready) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Displays didn't connect");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket socket : mSockets) {
+            socket.close();
+        }
+        mTransport.stop();
+        mBroadcaster.shutdown();
+    }
+
+    /**
+     * Broadcasts the next result and waits for every display to receive it.
+     */
+    @Benchmark
+    public String resultToDisplay() throws IOException {
+        mRecognizer.next();
+        mBroadcaster.broadcast(mRecognizer.getUtteranceId(), mRecognizer.getText(),
+                mRecognizer.isFinal());
+
+        String line = null;
+        for (BufferedReader reader : mReaders) {
+            // skip any heartbeat sent while the benchmark was paused
+            do {
+                line = reader.readLine();
+            } while (TranscriptProtocol.PING.equals(line));
+        }
+        return line;
+    }
+}
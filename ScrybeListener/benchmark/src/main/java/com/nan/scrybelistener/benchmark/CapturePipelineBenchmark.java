@@ -0,0 +1,157 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.nan.scrybelistener.AudioHistory;
+import com.nan.scrybelistener.AudioRingBuffer;
+import com.nan.scrybelistener.EnergyVoiceActivityDetector;
+import com.nan.scrybelistener.VoiceActivityDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the capture side of the pipeline, from a frame landing in the ring buffer to
+ * the request {@code SpeechService.recognize()} would send for it. One op is one frame, so the
+ * score is frames per second; run with {@code -prof gc} for the allocation per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapturePipelineBenchmark {
+    // Matches VoiceRecorder.RING_CAPACITY
+    private static final int RING_CAPACITY = 64;
+    // Matches SpeechService.STREAM_OVERLAP_MILLIS
+    private static final int HISTORY_MILLIS = 2000;
+
+    /**
+     * Whether frames are allocated outside the heap, as VoiceRecorder does with direct capture.
+     */
+    @Param({"true", "false"})
+    public boolean direct;
+
+    /**
+     * Bytes per frame. AudioRecord's minimum buffer at 16kHz is typically 1280 (40ms).
+     */
+    @Param({"1280"})
+    public int frameSize;
+
+    /**
+     * A raw PCM recording to replay, or empty for synthetic speech.
+     */
+    @Param({""})
+    public String fixture;
+
+    private byte[] mPcm;
+    private int mPosition;
+    private AudioRingBuffer mRing;
+    private VoiceActivityDetector mDetector;
+    private AudioHistory mHistory;
+    private short[] mSamples;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPcm = PcmFixtures.load(fixture, 30);
+        mPosition = 0;
+        mRing = new AudioRingBuffer(RING_CAPACITY, frameSize, direct);
+        mDetector = new EnergyVoiceActivityDetector(PcmFixtures.SAMPLE_RATE);
+        mHistory = new AudioHistory(PcmFixtures.SAMPLE_RATE * 2 * HISTORY_MILLIS / 1000);
+        mSamples = new short[frameSize / 2];
+    }
+
+    /**
+     * Capture thread: fill a frame from the fixture, standing in for AudioRecord.read().
+     */
+    private void capture() {
+        final ByteBuffer frame = mRing.claim();
+        final int size = Math.min(frame.remaining(), mPcm.length - mPosition);
+        frame.put(mPcm, mPosition, size);
+        mRing.publish(size);
+        mPosition += size;
+        if (mPosition == mPcm.length) {
+            mPosition = 0;
+        }
+    }
+
+    /**
+     * Consumer thread: voice detection, as in VoiceRecorder.ProcessVoice.
+     * @return Whether the frame is voice.
+     */
+    private boolean detect() {
+        final ShortBuffer samples = mRing.peekSamples();
+        final int count = samples.remaining();
+        samples.get(mSamples, 0, count);
+        return mDetector.isVoice(mSamples, count);
+    }
+
+    /**
+     * Capture, detection, and keeping the rollover history for voiced frames.
+     */
+    @Benchmark
+    public boolean captureAndDetect() {
+        capture();
+        final ByteBuffer frame = mRing.peek();
+        final boolean voice = detect();
+        if (voice) {
+            mHistory.write(frame);
+        }
+        mRing.release();
+        return voice;
+    }
+
+    /**
+     * As {@link #captureAndDetect()}, plus building the request for voiced frames the way
+     * SpeechService.recognize() does once the stream is ready, i.e. without copying the frame.
+     */
+    @Benchmark
+    public StreamingRecognizeRequest captureToRequest() {
+        capture();
+        final ByteBuffer frame = mRing.peek();
+        StreamingRecognizeRequest request = null;
+        if (detect()) {
+            mHistory.write(frame);
+            request = StreamingRecognizeRequest.newBuilder()
+                    .setAudioContent(UnsafeByteOperations.unsafeWrap(frame))
+                    .build();
+        }
+        mRing.release();
+        return request;
+    }
+
+    /**
+     * As {@link #captureToRequest()}, but copying the frame as SpeechService.recognize() does
+     * before the stream is ready.
+     */
+    @Benchmark
+    public StreamingRecognizeRequest captureToRequestCopying() {
+        capture();
+        final ByteBuffer frame = mRing.peek();
+        StreamingRecognizeRequest request = null;
+        if (detect()) {
+            mHistory.write(frame);
+            request = StreamingRecognizeRequest.newBuilder()
+                    .setAudioContent(ByteString.copyFrom(frame))
+                    .build();
+        }
+        mRing.release();
+        return request;
+    }
+}
@@ -0,0 +1,88 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.FlacEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of compressing the uplink with {@link FlacEncoder}, as UplinkEncoder's worker does it. One
+ * op is one capture frame. The compression ratio over the run is printed at teardown, since it
+ * depends on the fixture rather than on the encoder's speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlacEncoderBenchmark {
+    @Param({"1280"})
+    public int frameSize;
+
+    @Param({"1024", "4096"})
+    public int blockSize;
+
+    /**
+     * A raw PCM recording to replay, or empty for synthetic speech.
+     */
+    @Param({""})
+    public String fixture;
+
+    private short[] mPcm;
+    private int mPosition;
+    private short[] mFrame;
+    private FlacEncoder mEncoder;
+    private byte[] mOut;
+    private long mBytesIn;
+    private long mBytesOut;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] pcm = PcmFixtures.load(fixture, 30);
+        mPcm = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(mPcm);
+        mFrame = new short[frameSize / 2];
+        mEncoder = new FlacEncoder(PcmFixtures.SAMPLE_RATE, blockSize);
+        // enough for the header, or for the most blocks one frame can complete
+        mOut = new byte[Math.max(FlacEncoder.HEADER_SIZE,
+                (mFrame.length / blockSize + 1) * FlacEncoder.getMaxFrameSize(blockSize))];
+        mBytesOut = mEncoder.writeHeader(mOut, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBytesOut += mEncoder.flush(mOut, 0);
+        System.out.printf("%nFLAC: %d bytes in, %d bytes out, ratio %.3f%n",
+                mBytesIn, mBytesOut, (double) mBytesOut / mBytesIn);
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        if (mPosition + mFrame.length > mPcm.length) {
+            mPosition = 0;
+        }
+        System.arraycopy(mPcm, mPosition, mFrame, 0, mFrame.length);
+        mPosition += mFrame.length;
+
+        final int size = mEncoder.encode(mFrame, mFrame.length, mOut, 0);
+        mBytesIn += mFrame.length * 2;
+        mBytesOut += size;
+        return size;
+    }
+}
@@ -0,0 +1,102 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.AudioRingBuffer;
+import com.nan.scrybelistener.Metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording metrics, on their own and on the capture path. {@code frame} and
+ * {@code frameCounted} pass a frame through the ring buffer the way VoiceRecorder does, without
+ * and with the counter it bumps per frame; the difference between them is what the metrics add
+ * to every 40ms of audio. The contended runs have four threads recording into one metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    // Matches VoiceRecorder.RING_CAPACITY, and AudioRecord's minimum buffer at 16kHz
+    private static final int RING_CAPACITY = 64;
+    private static final int FRAME_SIZE = 1280;
+
+    /**
+     * Metrics shared by every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final Metrics.Counter mmCounter = new Metrics.Counter();
+        final Metrics.Histogram mmHistogram = new Metrics.Histogram();
+    }
+
+    private final Metrics.Counter mCounter = new Metrics.Counter();
+    private final Metrics.Histogram mHistogram = new Metrics.Histogram();
+    private AudioRingBuffer mRing;
+    private long mValue = 0;
+
+    @Setup
+    public void setUp() {
+        mRing = new AudioRingBuffer(RING_CAPACITY, FRAME_SIZE, true);
+    }
+
+    @Benchmark
+    public void counter() {
+        mCounter.increment();
+    }
+
+    @Benchmark
+    public void histogram() {
+        // spread over a realistic range of millisecond latencies
+        mValue = (mValue + 37) & 1023;
+        mHistogram.record(mValue);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counterContended(Shared shared) {
+        shared.mmCounter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramContended(Shared shared) {
+        mValue = (mValue + 37) & 1023;
+        shared.mmHistogram.record(mValue);
+    }
+
+    @Benchmark
+    public ByteBuffer frame() {
+        return passFrame();
+    }
+
+    @Benchmark
+    public ByteBuffer frameCounted() {
+        final ByteBuffer frame = passFrame();
+        mCounter.increment();
+        return frame;
+    }
+
+    private ByteBuffer passFrame() {
+        final ByteBuffer frame = mRing.claim();
+        frame.limit(FRAME_SIZE);
+        mRing.publish(FRAME_SIZE, mValue++);
+        final ByteBuffer out = mRing.peek();
+        mRing.release();
+        return out;
+    }
+}
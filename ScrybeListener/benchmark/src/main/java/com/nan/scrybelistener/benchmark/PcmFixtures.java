@@ -0,0 +1,88 @@
+package com.nan.scrybelistener.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Audio to drive the benchmarks with: 16-bit lil-endian mono PCM, as {@code AudioRecord}
+ * delivers it.
+ */
+public final class PcmFixtures {
+    public static final int SAMPLE_RATE = 16000;
+
+    // Synthetic fixture timing: speech bursts separated by pauses
+    private static final int SPEECH_MILLIS = 1500;
+    private static final int PAUSE_MILLIS = 1000;
+    private static final int SYLLABLES_PER_SECOND = 4;
+    private static final double NOISE_AMPLITUDE = 60;
+    private static final double VOICE_AMPLITUDE = 3000;
+    private static final double FRICATIVE_AMPLITUDE = 800;
+
+    private PcmFixtures() {}
+
+    /**
+     * @param path A raw PCM recording, or empty to synthesize one.
+     * @param seconds How much audio to synthesize if there's no recording.
+     */
+    public static byte[] load(String path, int seconds) throws IOException {
+        if (path == null || path.isEmpty()) {
+            return synthesize(SAMPLE_RATE, seconds, 0);
+        }
+
+        InputStream in = new FileInputStream(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes speech-like audio: a low noise floor, with bursts of voiced syllables (a harmonic
+     * tone with a wandering pitch) and the odd fricative (loud noise) between pauses. Not
+     * intelligible, but close enough in energy and spectrum to exercise voice detection.
+     * @param seed Seed for the noise, so runs are repeatable.
+     */
+    public static byte[] synthesize(int sampleRate, int seconds, long seed) {
+        final Random random = new Random(seed);
+        final int samples = sampleRate * seconds;
+        final int cycle = (SPEECH_MILLIS + PAUSE_MILLIS) * sampleRate / 1000;
+        final int speech = SPEECH_MILLIS * sampleRate / 1000;
+        final int syllable = sampleRate / SYLLABLES_PER_SECOND;
+        final byte[] pcm = new byte[samples * 2];
+
+        double phase = 0;
+        for (int i = 0; i < samples; i++) {
+            double value = random.nextGaussian() * NOISE_AMPLITUDE;
+
+            final int inCycle = i % cycle;
+            if (inCycle < speech) {
+                final int inSyllable = inCycle % syllable;
+                final double envelope = Math.sin(Math.PI * inSyllable / syllable);
+                if ((inCycle / syllable) % 3 == 2 && inSyllable < syllable / 3) {
+                    value += random.nextGaussian() * FRICATIVE_AMPLITUDE * envelope;
+                } else {
+                    final double pitch = 120 + 60 * Math.sin(2 * Math.PI * inCycle / speech);
+                    phase += 2 * Math.PI * pitch / sampleRate;
+                    for (int harmonic = 1; harmonic <= 5; harmonic++) {
+                        value += VOICE_AMPLITUDE * envelope * Math.sin(harmonic * phase) / harmonic;
+                    }
+                }
+            }
+
+            final int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
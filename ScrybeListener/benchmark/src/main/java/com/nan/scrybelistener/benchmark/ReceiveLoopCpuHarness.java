@@ -0,0 +1,255 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.TranscriptProtocol;
+import com.nan.transcrybe.TranscriptReader;
+import com.nan.transcrybe.TranscriptUpdate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * CPU used by a caption display's receive loop, over a loopback TCP connection. Compares the
+ * loop the displays used to have, which polled readLine() for as long as the socket said it was
+ * connected, with {@link TranscriptReader}.
+ *
+ * Each loop is run through live updates, an idle spell with only heartbeats, and the listener
+ * closing the connection; then on a fresh connection, the listener going silent without closing
+ * it, as when it walks out of Bluetooth range. Reports the receiving thread's CPU time in each
+ * phase, and how long each loop took to notice the connection was gone.
+ *
+ * Not a JMH benchmark, since what matters is CPU time across wall-clock phases rather than the
+ * time per call. Run with ./gradlew :benchmark:receiveCpu
+ */
+public class ReceiveLoopCpuHarness {
+    private static final long PHASE_MILLIS = 3000;
+    private static final int UPDATES_PER_SECOND = 20;
+    // Much shorter than the real ones, to keep the run short
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 300;
+    private static final long READ_TIMEOUT_MILLIS = 3 * HEARTBEAT_INTERVAL_MILLIS;
+
+    /**
+     * A display's receive loop, run on a thread of its own until the connection ends or it's
+     * stopped.
+     */
+    private interface ReceiveLoop {
+        void run(Socket socket) throws IOException;
+
+        void stop();
+    }
+
+    /**
+     * The loop as it was: readLine() returns null forever at end of stream, and
+     * isConnected() stays true, so it spins.
+     */
+    private static class PollingLoop implements ReceiveLoop {
+        private volatile boolean mmStopped = false;
+
+        @Override
+        public void run(Socket socket) throws IOException {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while (socket.isConnected() && !mmStopped) {
+                line = reader.readLine();
+                if (line == null) {
+                    continue;
+                }
+                com.nan.transcrybe.TranscriptProtocol.parse(line);
+            }
+        }
+
+        @Override
+        public void stop() {
+            mmStopped = true;
+        }
+    }
+
+    private static class ReaderLoop implements ReceiveLoop {
+        @Override
+        public void run(Socket socket) throws IOException {
+            new TranscriptReader(socket.getInputStream(), socket.getOutputStream(), socket,
+                    new TranscriptReader.Callback() {
+                        @Override
+                        public void onUpdate(TranscriptUpdate update) {
+                        }
+                    }, READ_TIMEOUT_MILLIS).run();
+        }
+
+        @Override
+        public void stop() {
+            // ends by itself
+        }
+    }
+
+    /**
+     * Runs the loop on a thread of its own, and measures it.
+     */
+    private static class Receiver {
+        private final ThreadMXBean mmThreads = ManagementFactory.getThreadMXBean();
+        private final ReceiveLoop mmLoop;
+        private final Thread mmThread;
+        private final Socket mmSocket;
+        private long mmLastCpuNanos;
+        private volatile long mmEndedAt;
+
+        Receiver(ReceiveLoop loop, final Socket socket) {
+            mmLoop = loop;
+            mmSocket = socket;
+            mmThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mmLoop.run(socket);
+                    } catch (IOException e) {
+                        // counts as the end of the connection
+                    }
+                    mmEndedAt = System.nanoTime();
+                }
+            }, "receiver");
+        }
+
+        void start() {
+            mmThread.start();
+            mmLastCpuNanos = 0;
+        }
+
+        /**
+         * @return CPU time used by the loop since the last call, in nanoseconds.
+         */
+        long takeCpuNanos() {
+            final long cpu = mmThreads.getThreadCpuTime(mmThread.getId());
+            if (cpu < 0) {
+                // the thread has finished
+                return 0;
+            }
+            final long used = cpu - mmLastCpuNanos;
+            mmLastCpuNanos = cpu;
+            return used;
+        }
+
+        boolean hasEnded() {
+            return !mmThread.isAlive();
+        }
+
+        long getEndedAt() {
+            return mmEndedAt;
+        }
+
+        void stop() throws IOException, InterruptedException {
+            mmLoop.stop();
+            mmSocket.close();
+            mmThread.join();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported()) {
+            throw new IllegalStateException("Thread CPU time isn't supported on this JVM");
+        }
+        threads.setThreadCpuTimeEnabled(true);
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            System.out.printf("%-8s %-10s %10s %8s%n", "loop", "phase", "cpu (ms)", "core %");
+            measure("polling", new PollingLoop(), server);
+            measure("reader", new ReaderLoop(), server);
+            System.out.println();
+            measureSilentDrop("polling", new PollingLoop(), server);
+            measureSilentDrop("reader", new ReaderLoop(), server);
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void measure(String name, ReceiveLoop loop, ServerSocket server)
+            throws IOException, InterruptedException {
+        Socket display = new Socket(server.getInetAddress(), server.getLocalPort());
+        Socket listener = server.accept();
+        OutputStream out = listener.getOutputStream();
+        Receiver receiver = new Receiver(loop, display);
+        receiver.start();
+
+        sendUpdates(out);
+        report(name, "streaming", receiver.takeCpuNanos());
+        sendHeartbeats(out, PHASE_MILLIS);
+        report(name, "idle", receiver.takeCpuNanos());
+
+        listener.close();
+        final long closedAt = System.nanoTime();
+        Thread.sleep(PHASE_MILLIS);
+        report(name, "after EOF", receiver.takeCpuNanos());
+        reportEnd(name, "EOF", receiver, closedAt);
+        receiver.stop();
+    }
+
+    private static void measureSilentDrop(String name, ReceiveLoop loop, ServerSocket server)
+            throws IOException, InterruptedException {
+        Socket display = new Socket(server.getInetAddress(), server.getLocalPort());
+        Socket listener = server.accept();
+        Receiver receiver = new Receiver(loop, display);
+        receiver.start();
+
+        sendHeartbeats(listener.getOutputStream(), HEARTBEAT_INTERVAL_MILLIS * 2);
+        // stop sending without closing, like a listener that's out of range
+        final long silentAt = System.nanoTime();
+        Thread.sleep(PHASE_MILLIS);
+        reportEnd(name, "silence", receiver, silentAt);
+        receiver.stop();
+        listener.close();
+    }
+
+    /**
+     * Sends interim results at a steady rate for a phase, with a final result every second.
+     */
+    private static void sendUpdates(OutputStream out) throws IOException, InterruptedException {
+        final long intervalMillis = 1000 / UPDATES_PER_SECOND;
+        final String words = "the quick brown fox jumps over the lazy dog ";
+        final long end = System.currentTimeMillis() + PHASE_MILLIS;
+        long utteranceId = 0;
+        int count = 0;
+        while (System.currentTimeMillis() < end) {
+            final boolean isFinal = ++count % UPDATES_PER_SECOND == 0;
+            final String suffix = words.substring(count % words.length());
+            out.write((TranscriptProtocol.frame(utteranceId, 0, suffix, isFinal) + "\n")
+                    .getBytes());
+            out.flush();
+            if (isFinal) {
+                utteranceId++;
+            }
+            Thread.sleep(intervalMillis);
+        }
+    }
+
+    private static void sendHeartbeats(OutputStream out, long millis)
+            throws IOException, InterruptedException {
+        final long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            out.write((TranscriptProtocol.PING + "\n").getBytes());
+            out.flush();
+            Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+        }
+    }
+
+    private static void report(String loop, String phase, long cpuNanos) {
+        final double cpuMillis = cpuNanos / 1e6;
+        System.out.printf("%-8s %-10s %10.1f %8.1f%n", loop, phase, cpuMillis,
+                100 * cpuMillis / PHASE_MILLIS);
+    }
+
+    private static void reportEnd(String loop, String event, Receiver receiver, long since) {
+        if (receiver.hasEnded()) {
+            System.out.printf("%-8s noticed %s after %d ms%n", loop, event,
+                    (receiver.getEndedAt() - since) / 1000000);
+        } else {
+            System.out.printf("%-8s hadn't noticed %s after %d ms%n", loop, event, PHASE_MILLIS);
+        }
+    }
+}
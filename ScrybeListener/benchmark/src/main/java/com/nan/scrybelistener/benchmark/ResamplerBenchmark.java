@@ -0,0 +1,67 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resampling capture to 16kHz, as VoiceRecorder does when the hardware won't record at
+ * 16kHz. One op is one 40ms capture frame, so the recorder keeps up in real time on one core as
+ * long as the score stays above 25 ops/s; anything near that leaves no room for the rest of the
+ * pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int FRAME_MILLIS = 40;
+
+    /**
+     * Hardware rate. VoiceRecorder falls back to these when 16kHz isn't supported.
+     */
+    @Param({"44100", "22050", "11025"})
+    public int inputRate;
+
+    private short[] mPcm;
+    private int mPosition;
+    private short[] mFrame;
+    private short[] mOut;
+    private Resampler mResampler;
+
+    @Setup
+    public void setUp() {
+        final byte[] pcm = PcmFixtures.synthesize(inputRate, 10, 1);
+        mPcm = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(mPcm);
+        mFrame = new short[inputRate * FRAME_MILLIS / 1000];
+        mResampler = new Resampler(inputRate, PcmFixtures.SAMPLE_RATE);
+        mOut = new short[mResampler.getMaxOutput(mFrame.length)];
+    }
+
+    @Benchmark
+    public int resampleFrame() {
+        if (mPosition + mFrame.length > mPcm.length) {
+            mPosition = 0;
+        }
+        System.arraycopy(mPcm, mPosition, mFrame, 0, mFrame.length);
+        mPosition += mFrame.length;
+        return mResampler.process(mFrame, mFrame.length, mOut, 0);
+    }
+}
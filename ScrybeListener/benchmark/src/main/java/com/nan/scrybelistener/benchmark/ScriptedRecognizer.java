@@ -0,0 +1,71 @@
+package com.nan.scrybelistener.benchmark;
+
+/**
+ * Stands in for the speech backend: replays a script as the stream of results the Cloud Speech
+ * API would produce for it, i.e. an interim result per word that grows until the sentence ends
+ * in a final result.
+ */
+public class ScriptedRecognizer {
+    public static final String[] DEFAULT_SCRIPT = {
+            "good morning everyone and thanks for coming",
+            "today we're going to look at how the captions get from the microphone to the glasses",
+            "the first stage is capture which reads audio from the microphone in small frames",
+            "then voice detection decides which frames are worth sending to the recognizer",
+            "results come back as interim guesses that grow until the recognizer is sure",
+            "and finally every result is sent to each of the connected displays",
+    };
+
+    private final String[][] mSentences;
+    private long mUtteranceId = 0;
+    private int mSentence = 0;
+    private int mWords = 0;
+
+    // The most recent result
+    private String mText;
+    private boolean mIsFinal;
+
+    public ScriptedRecognizer(String[] script) {
+        mSentences = new String[script.length][];
+        for (int i = 0; i < script.length; i++) {
+            mSentences[i] = script[i].split(" ");
+        }
+    }
+
+    /**
+     * Produces the next result, starting the script over once it's done.
+     */
+    public void next() {
+        if (mIsFinal) {
+            mUtteranceId++;
+        }
+        final String[] words = mSentences[mSentence];
+        mWords++;
+        mIsFinal = mWords == words.length;
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mWords; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(words[i]);
+        }
+        mText = text.toString();
+
+        if (mIsFinal) {
+            mWords = 0;
+            mSentence = (mSentence + 1) % mSentences.length;
+        }
+    }
+
+    public long getUtteranceId() {
+        return mUtteranceId;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public boolean isFinal() {
+        return mIsFinal;
+    }
+}
@@ -0,0 +1,119 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.nan.scrybelistener.FakeSpeechServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Streaming throughput against {@link FakeSpeechServer}, the way SpeechService streams: a config
+ * request, then one audio request per frame, with streams replaced periodically as if rolling
+ * over. One op is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeechStreamBenchmark {
+    // Frames per stream before it's replaced, about the rollover interval at 40ms frames
+    private static final int FRAMES_PER_STREAM = 1250;
+
+    @Param({"1280"})
+    public int frameSize;
+
+    private FakeSpeechServer mServer;
+    private ManagedChannel mChannel;
+    private SpeechGrpc.SpeechStub mApi;
+    private ByteString mFrame;
+
+    private StreamObserver<StreamingRecognizeRequest> mStream;
+    private int mFramesSent;
+    private final AtomicLong mResponses = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = new FakeSpeechServer(ScriptedRecognizer.DEFAULT_SCRIPT);
+        mServer.setStreamLimitMillis(Integer.MAX_VALUE);
+        mServer.start();
+        mChannel = mServer.newChannel();
+        mApi = SpeechGrpc.newStub(mChannel);
+        mFrame = ByteString.copyFrom(PcmFixtures.load("", 1), 0, frameSize);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        if (mStream != null) {
+            mStream.onCompleted();
+        }
+        mChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        mServer.shutdown();
+    }
+
+    private void openStream() {
+        mFramesSent = 0;
+        mStream = mApi.streamingRecognize(new StreamObserver<StreamingRecognizeResponse>() {
+            @Override
+            public void onNext(StreamingRecognizeResponse response) {
+                mResponses.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        mStream.onNext(StreamingRecognizeRequest.newBuilder()
+                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
+                        .setConfig(RecognitionConfig.newBuilder()
+                                .setLanguageCode("en-US")
+                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                                .setSampleRateHertz(PcmFixtures.SAMPLE_RATE)
+                                .build())
+                        .setInterimResults(true)
+                        .build())
+                .build());
+    }
+
+    @Benchmark
+    public long sendFrame() {
+        if (mStream == null) {
+            openStream();
+        } else if (mFramesSent == FRAMES_PER_STREAM) {
+            mStream.onCompleted();
+            openStream();
+        }
+        mStream.onNext(StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(mFrame)
+                .build());
+        mFramesSent++;
+        return mResponses.get();
+    }
+}
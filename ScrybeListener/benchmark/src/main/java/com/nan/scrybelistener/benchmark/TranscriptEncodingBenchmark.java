@@ -0,0 +1,64 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.TranscriptDeltaEncoder;
+import com.nan.scrybelistener.TranscriptStitcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per result of turning recognizer output into the bytes written to a client, for both
+ * protocol modes, and of stitching results across a stream rollover.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscriptEncodingBenchmark {
+    private ScriptedRecognizer mRecognizer;
+    private TranscriptDeltaEncoder mEncoder;
+    private TranscriptStitcher mStitcher;
+
+    @Setup
+    public void setUp() {
+        mRecognizer = new ScriptedRecognizer(ScriptedRecognizer.DEFAULT_SCRIPT);
+        mEncoder = new TranscriptDeltaEncoder();
+        mStitcher = new TranscriptStitcher();
+    }
+
+    @Benchmark
+    public byte[] fullLine() {
+        mRecognizer.next();
+        return (mRecognizer.getText() + "\n").getBytes();
+    }
+
+    @Benchmark
+    public byte[] deltaFrame() {
+        mRecognizer.next();
+        final String line = mEncoder.encode(mRecognizer.getUtteranceId(), mRecognizer.getText(),
+                mRecognizer.isFinal());
+        return (line + "\n").getBytes();
+    }
+
+    @Benchmark
+    public String stitch() {
+        mRecognizer.next();
+        if (mRecognizer.isFinal()) {
+            // the worst case: every utterance straddles a rollover
+            mStitcher.rollover();
+        }
+        return mStitcher.stitch(mRecognizer.getText(), mRecognizer.isFinal(), true);
+    }
+}
@@ -0,0 +1,97 @@
+package com.nan.scrybelistener.benchmark;
+
+import com.nan.scrybelistener.EnergyVoiceActivityDetector;
+import com.nan.scrybelistener.VoiceActivityDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of {@link EnergyVoiceActivityDetector} against the peak threshold check it
+ * replaced in VoiceRecorder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceActivityBenchmark {
+    // VoiceRecorder's old threshold
+    private static final int SILENCE_THRESHOLD = 1500;
+
+    @Param({"1280"})
+    public int frameSize;
+
+    @Param({""})
+    public String fixture;
+
+    private byte[][] mFrames;
+    private short[][] mSampleFrames;
+    private int mFrame;
+    private VoiceActivityDetector mDetector;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] pcm = PcmFixtures.load(fixture, 30);
+        final int count = pcm.length / frameSize;
+        mFrames = new byte[count][frameSize];
+        mSampleFrames = new short[count][frameSize / 2];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(pcm, i * frameSize, mFrames[i], 0, frameSize);
+            for (int j = 0; j < frameSize / 2; j++) {
+                final int offset = i * frameSize + 2 * j;
+                mSampleFrames[i][j] = (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8));
+            }
+        }
+        mDetector = new EnergyVoiceActivityDetector(PcmFixtures.SAMPLE_RATE);
+    }
+
+    private int nextFrame() {
+        final int frame = mFrame;
+        mFrame = (frame + 1) % mFrames.length;
+        return frame;
+    }
+
+    @Benchmark
+    public boolean energyDetector() {
+        final short[] samples = mSampleFrames[nextFrame()];
+        return mDetector.isVoice(samples, samples.length);
+    }
+
+    @Benchmark
+    public boolean legacyThreshold() {
+        final byte[] frame = mFrames[nextFrame()];
+        return isHearingVoice(frame, frame.length);
+    }
+
+    /**
+     * VoiceRecorder.isHearingVoice as it was before the detector was made pluggable.
+     */
+    private static boolean isHearingVoice(byte[] buffer, int size) {
+        for (int i = 0; i < size - 1; i += 2) {
+            // buffer is 16-bit lil-endian, so convert to big-endian
+            int s = buffer[i + 1];
+            if (s < 0) s = -s;
+            s <<= 8;
+            s += Math.abs(buffer[i]);
+
+            if (s > SILENCE_THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
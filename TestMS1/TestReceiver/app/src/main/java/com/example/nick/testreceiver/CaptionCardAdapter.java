@@ -0,0 +1,99 @@
+package com.example.nick.testreceiver;
+
+import com.google.android.glass.widget.CardBuilder;
+import com.google.android.glass.widget.CardScrollAdapter;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One card per utterance, the last of which is updated in place as results come in.
+ *
+ * Every card is rendered through a single {@link CardBuilder} onto the view the card scroller
+ * recycles, so changing the text of the current card rebinds an existing view rather than
+ * inflating a new hierarchy. Only the most recent {@link #MAX_CARDS} utterances are kept.
+ */
+public class CaptionCardAdapter extends CardScrollAdapter {
+    public static final int MAX_CARDS = 50;
+
+    private final CardBuilder mCard;
+    private final List<String> mTexts = new ArrayList<>();
+
+    public CaptionCardAdapter(Context context, String initialText) {
+        mCard = new CardBuilder(context, CardBuilder.Layout.TEXT);
+        mTexts.add(initialText);
+    }
+
+    /**
+     * Replaces the text of the last card.
+     */
+    public void setCurrentText(String text) {
+        mTexts.set(mTexts.size() - 1, text);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Adds a card after the last one, dropping the oldest if there are too many.
+     * @return Position of the new card.
+     */
+    public int appendCard(String text) {
+        if (mTexts.size() == MAX_CARDS) {
+            mTexts.remove(0);
+        }
+        mTexts.add(text);
+        notifyDataSetChanged();
+        return mTexts.size() - 1;
+    }
+
+    /**
+     * Adds a card just before the last one, for an utterance that finished while we weren't
+     * connected.
+     */
+    public void insertBeforeCurrent(String text) {
+        if (mTexts.size() == MAX_CARDS) {
+            mTexts.remove(0);
+        }
+        mTexts.add(mTexts.size() - 1, text);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mTexts.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mTexts.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return CardBuilder.getViewTypeCount();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return mCard.getItemViewType();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        mCard.setText(mTexts.get(position));
+        return mCard.getView(convertView, parent);
+    }
+
+    @Override
+    public int getPosition(Object item) {
+        return mTexts.indexOf(item);
+    }
+}
@@ -16,32 +16,45 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.UUID;
 
 /**
- * An {@link Activity} showing a tuggable "Hello World!" card.
+ * An {@link Activity} showing received captions as cards.
  * <p>
- * The main content view is composed of a one-card {@link CardScrollView} that provides tugging
- * feedback to the user when swipe gestures are detected.
- * If your Glassware intends to intercept swipe gestures, you should set the content view directly
- * and use a {@link com.google.android.glass.touchpad.GestureDetector}.
+ * The main content view is a {@link CardScrollView} with one card per utterance. The current
+ * utterance's card is updated in place as results come in, and a new card is added when the next
+ * utterance starts, so a caption update costs a rebind rather than a new view hierarchy.
  *
  * @see <a href="https://developers.google.com/glass/develop/gdk/touch">GDK Developer Guide</a>
  */
 public class ReaderActivity extends Activity {
 
     private final String TAG = "ReaderActivity";
+    // Remembers the listener's address, so later launches can skip discovery
+    private static final String PREFS = "ReaderActivity";
+    private static final String PREF_DEVICE_ADDRESS = "device_address";
+    private static final long RECONNECT_INITIAL_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 8000;
+    private static final long RECONNECT_GIVE_UP_MILLIS = 60000;
     private BluetoothDevice mDevice;
-    private View mView;
+    private CardScrollView mCardScroller;
+    private CaptionCardAdapter mAdapter;
+    // Utterance shown on the last card, or NO_UTTERANCE before the first caption
+    private static final long NO_UTTERANCE = Long.MIN_VALUE;
+    private long mUtteranceId = NO_UTTERANCE;
+    // Caption updates applied and the UI thread time spent on them, for render-cost comparisons
+    private long mUpdateCount = 0;
+    private long mUpdateNanos = 0;
     private boolean mIsConnected = false;
+    private ReaderClientThread mReader;
+    private boolean mIsDiscovering = false;
     private final UUID mUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     private final String mServerAddr = "Nick Aiello (SM-P607T)";
     private final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -52,134 +65,267 @@ public class ReaderActivity extends Activity {
             String action = intent.getAction();
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (device.getName().equals(mServerAddr)) {
-                    mDevice = device;
-                    unregisterReceiver(this);
+                if (mServerAddr.equals(device.getName())) {
                     mBluetoothAdapter.cancelDiscovery();
-                    updateView(getString(R.string.listening));
-
-                    ReaderClientThread thread = new ReaderClientThread();
-                    thread.start();
+                    getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                            .putString(PREF_DEVICE_ADDRESS, device.getAddress())
+                            .apply();
+                    startReading(device);
                 }
             }
         }
     };
 
+    /**
+     * Connects to the listener and reads captions, reconnecting with backoff if the connection
+     * drops and asking for the final results missed meanwhile.
+     */
     private class ReaderClientThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final ReconnectBackoff mmBackoff =
+                new ReconnectBackoff(RECONNECT_INITIAL_MILLIS, RECONNECT_MAX_MILLIS);
+        private volatile BluetoothSocket mmSocket;
+        private volatile boolean mmCancelled = false;
+        // Last final utterance received, to resume from after a reconnect
+        private long mmLastFinalId = TranscriptProtocol.NO_UTTERANCE;
 
-        public ReaderClientThread() {
-            BluetoothSocket tmp = null;
-            Log.d(TAG, "creating socket");
-            try {
-                tmp = mDevice.createInsecureRfcommSocketToServiceRecord(mUUID);
-            } catch (IOException e) {
-                Log.e(TAG, "create() failed");
+        @Override
+        public void run() {
+            if (!connect() && !reconnect()) {
+                if (!mmCancelled) {
+                    forgetDeviceUiThread();
+                }
+                return;
+            }
+
+            boolean resuming = false;
+            while (!mmCancelled) {
+                read(resuming);
+                closeSocket();
+                if (mmCancelled || !reconnect()) {
+                    break;
+                }
+                resuming = true;
             }
-            mmSocket = tmp;
+            Log.d(TAG, "reader stopped");
         }
 
-        @Override
-        public void run() {
+        private boolean connect() {
             try {
                 Log.d(TAG, "attempting to connect to " + mDevice.getAddress());
+                mmSocket = mDevice.createInsecureRfcommSocketToServiceRecord(mUUID);
                 mmSocket.connect();
+                Log.d(TAG, "connected!");
+                return true;
             } catch (IOException e) {
+                Log.e(TAG, "connect failed: " + e.getMessage());
+                closeSocket();
+                return false;
+            }
+        }
+
+        private boolean reconnect() {
+            mmBackoff.reset();
+            final long giveUpAt = SystemClock.elapsedRealtime() + RECONNECT_GIVE_UP_MILLIS;
+            while (!mmCancelled && SystemClock.elapsedRealtime() < giveUpAt) {
+                final long delay = mmBackoff.nextDelayMillis();
+                Log.d(TAG, "reconnecting in " + delay + "ms");
                 try {
-                    Log.e(TAG, e.getMessage());
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "help help help help help");
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                if (!mmCancelled && connect()) {
+                    return true;
                 }
             }
+            return false;
+        }
 
+        private void read(boolean resuming) {
+            final BluetoothSocket socket = mmSocket;
+            final TranscriptReader reader;
             try {
-                Log.d(TAG, "connected!");
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(mmSocket.getInputStream()));
-                String line = null;
-                while (mmSocket.isConnected()) {
-                    line = reader.readLine();
-                    Log.d(TAG, line);
-                    updateViewUiThread(line);
+                // Ask for delta frames, like Transcrybe does
+                String hello = TranscriptProtocol.HELLO + "\n";
+                if (resuming) {
+                    hello += TranscriptProtocol.resume(mmLastFinalId) + "\n";
                 }
+                socket.getOutputStream().write(hello.getBytes());
+                reader = new TranscriptReader(socket.getInputStream(), socket.getOutputStream(),
+                        socket, new TranscriptReader.Callback() {
+                            @Override
+                            public void onUpdate(TranscriptUpdate update) {
+                                if (update.isFinal() && update.getUtteranceId() > mmLastFinalId) {
+                                    mmLastFinalId = update.getUtteranceId();
+                                }
+                                updateViewUiThread(update);
+                            }
+                        });
             } catch (IOException e) {
-                Log.e(TAG, "read failed");
+                Log.e(TAG, "hello failed");
+                return;
             }
+
+            TranscriptReader.Result result = reader.run();
+            Log.d(TAG, "read stopped: " + result);
         }
 
-        public void updateViewUiThread(String s) {
-            final String cp = s;
+        /**
+         * Gives up on a listener that couldn't be reached at all, which is most likely a stale
+         * remembered address, and goes back to looking for one.
+         */
+        private void forgetDeviceUiThread() {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    updateView(cp);
+                    if (mReader != ReaderClientThread.this || isFinishing()) {
+                        return;
+                    }
+                    Log.w(TAG, "couldn't reach " + mDevice.getAddress() + ", discovering");
+                    getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                            .remove(PREF_DEVICE_ADDRESS)
+                            .apply();
+                    mReader = null;
+                    mDevice = null;
+                    mAdapter.setCurrentText(getString(R.string.waiting_pair));
+                    startDiscovery();
                 }
             });
         }
 
-        public void cancel() {
+        public void updateViewUiThread(final TranscriptUpdate update) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateView(update);
+                }
+            });
+        }
+
+        private void closeSocket() {
+            final BluetoothSocket socket = mmSocket;
+            if (socket == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() failed");
             }
         }
+
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+            closeSocket();
+        }
     }
 
     @Override
     protected void onCreate(Bundle bundle) {
         super.onCreate(bundle);
 
-        mView = buildView(getString(R.string.waiting_pair));
-        setContentView(mView);
+        mAdapter = new CaptionCardAdapter(this, getString(R.string.waiting_pair));
+        mCardScroller = new CardScrollView(this);
+        mCardScroller.setAdapter(mAdapter);
+        setContentView(mCardScroller);
 
         if (!mBluetoothAdapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, 0);
         }
 
+        // Go straight to the listener we found last time, if there is one
+        String address = getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getString(PREF_DEVICE_ADDRESS, null);
+        if (address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+            startReading(mBluetoothAdapter.getRemoteDevice(address));
+            return;
+        }
+
+        startDiscovery();
+    }
+
+    private void startDiscovery() {
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         registerReceiver(mBroadcastReceiver, filter);
+        mIsDiscovering = true;
 
         mBluetoothAdapter.startDiscovery();
     }
 
+    private void startReading(BluetoothDevice device) {
+        mDevice = device;
+        if (mIsDiscovering) {
+            unregisterReceiver(mBroadcastReceiver);
+            mIsDiscovering = false;
+        }
+        mAdapter.setCurrentText(getString(R.string.listening));
+        mReader = new ReaderClientThread();
+        mReader.start();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        //mCardScroller.activate();
+        mCardScroller.activate();
     }
 
     @Override
     protected void onPause() {
-        //mCardScroller.deactivate();
+        mCardScroller.deactivate();
         super.onPause();
     }
 
     @Override
     protected void onDestroy() {
-        /*if (mListener != null) {
-            mListener.cancel();
-        }*/
+        if (mReader != null) {
+            mReader.cancel();
+        }
         super.onDestroy();
-        unregisterReceiver(mBroadcastReceiver);
+        if (mIsDiscovering) {
+            unregisterReceiver(mBroadcastReceiver);
+        }
+        if (mUpdateCount > 0) {
+            Log.d(TAG, "caption updates: " + mUpdateCount + ", average "
+                    + mUpdateNanos / mUpdateCount / 1000 + "us on the UI thread");
+        }
     }
 
-
-
     /**
-     * Builds a Glass styled "Hello World!" view using the {@link CardBuilder} class.
+     * Applies a received update: a new utterance gets a card of its own, and further results
+     * for it replace the text of that card.
      */
-    private View buildView(String s) {
-        CardBuilder card = new CardBuilder(this, CardBuilder.Layout.TEXT);
-        card.setText(s);
-        return card.getView();
-    }
+    private void updateView(TranscriptUpdate update) {
+        final long start = System.nanoTime();
+        final boolean atEnd = mCardScroller.getSelectedItemPosition() == mAdapter.getCount() - 1;
+
+        final boolean replayed = update.isFinal()
+                && mUtteranceId != NO_UTTERANCE
+                && update.getUtteranceId() != TranscriptUpdate.LINE_MODE_UTTERANCE
+                && update.getUtteranceId() < mUtteranceId;
+        if (replayed) {
+            // replayed after a reconnect: it finished before the one we're showing
+            mAdapter.insertBeforeCurrent(update.getSuffix());
+        } else if (mUtteranceId == NO_UTTERANCE) {
+            // the first caption replaces the status card
+            mUtteranceId = update.getUtteranceId();
+            mAdapter.setCurrentText(update.getSuffix());
+        } else if (update.getUtteranceId() != mUtteranceId) {
+            mUtteranceId = update.getUtteranceId();
+            final int position = mAdapter.appendCard(update.getSuffix());
+            if (atEnd) {
+                // follow along unless the user has scrolled back
+                mCardScroller.setSelection(position);
+            }
+        } else {
+            final String current = (String) mAdapter.getItem(mAdapter.getCount() - 1);
+            final int stable = Math.min(update.getStableLength(), current.length());
+            mAdapter.setCurrentText(current.substring(0, stable) + update.getSuffix());
+        }
 
-    private void updateView(String s) {
-        mView = buildView(s);
-        setContentView(mView);
+        mUpdateCount++;
+        mUpdateNanos += System.nanoTime() - start;
     }
 
 }
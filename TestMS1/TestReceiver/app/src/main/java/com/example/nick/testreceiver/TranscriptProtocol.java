@@ -0,0 +1,77 @@
+package com.example.nick.testreceiver;
+
+/**
+ * Wire format for transcript updates received from a Scrybe listener.
+ *
+ * Everything is sent as newline-terminated lines. A client that sends {@link #HELLO} when it
+ * connects is switched to delta mode, and gets frames of the form:
+ * <pre>
+ *   RS utteranceId US stableLength US (f|i) US suffix
+ * </pre>
+ * where RS and US are the ASCII record and unit separators. Lines that don't start with RS come
+ * from a listener that doesn't speak delta mode (or haven't caught up with our hello yet), and
+ * hold the full text to display.
+ *
+ * A client reconnecting after a dropout follows its hello with
+ * <pre>
+ *   RS resume US lastUtteranceId
+ * </pre>
+ * and is sent the final results it missed, which have older ids than the utterance in progress.
+ *
+ * A delta mode listener that has nothing to send for {@link #HEARTBEAT_INTERVAL_MILLIS} sends a
+ * {@link #PING} instead, which the client answers with a {@link #PONG}.
+ *
+ * Keep in sync with the copies in ScrybeListener and Transcrybe.
+ */
+public final class TranscriptProtocol {
+    public static final char FRAME_START = '\u001E';
+    public static final char FIELD_SEPARATOR = '\u001F';
+    public static final String HELLO = FRAME_START + "delta";
+    public static final String FINAL = "f";
+    public static final String RESUME = FRAME_START + "resume" + FIELD_SEPARATOR;
+    // Utterance id to resume from if no final result was ever received
+    public static final long NO_UTTERANCE = -1;
+    public static final String PING = FRAME_START + "ping";
+    public static final String PONG = FRAME_START + "pong";
+    // Longest a delta mode listener goes without sending anything
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 2000;
+
+    private TranscriptProtocol() {
+    }
+
+    /**
+     * @return The line asking to be sent the final results after the given utterance.
+     */
+    public static String resume(long lastUtteranceId) {
+        return RESUME + lastUtteranceId;
+    }
+
+    /**
+     * @return Whether a received line is a heartbeat rather than an update.
+     */
+    public static boolean isPing(String line) {
+        return PING.equals(line);
+    }
+
+    /**
+     * Parses a received line.
+     * @return The update, or null if the line is a malformed frame.
+     */
+    public static TranscriptUpdate parse(String line) {
+        if (line.isEmpty() || line.charAt(0) != FRAME_START) {
+            return TranscriptUpdate.fullText(line);
+        }
+
+        // the suffix is last, so anything after the third separator belongs to it
+        final String[] fields = line.substring(1).split(String.valueOf(FIELD_SEPARATOR), 4);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new TranscriptUpdate(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                    fields[3], FINAL.equals(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.nan.transcrybe;
+
+/**
+ * Breaks the time from a word being spoken to it being shown down into stages, from traced
+ * results as they're displayed:
+ * <ul>
+ *   <li>capture: from the listener reading the audio from its mic to sending it to the API</li>
+ *   <li>recognition: from there to the API returning a result for it</li>
+ *   <li>dispatch: from there to the result being queued for us</li>
+ *   <li>send queue: waiting behind other frames to be sent</li>
+ *   <li>link: the trip over Bluetooth or TCP</li>
+ *   <li>display: from receiving the result to the frame it was drawn in</li>
+ * </ul>
+ * along with the total. The link and total cross clocks, so they're only counted for results
+ * received once the clock offset was known.
+ */
+public class CaptionLatencyReport {
+    private final LatencyHistogram mCapture = new LatencyHistogram("capture");
+    private final LatencyHistogram mRecognition = new LatencyHistogram("recognition");
+    private final LatencyHistogram mDispatch = new LatencyHistogram("dispatch");
+    private final LatencyHistogram mSendQueue = new LatencyHistogram("send queue");
+    private final LatencyHistogram mLink = new LatencyHistogram("link");
+    private final LatencyHistogram mDisplay = new LatencyHistogram("display");
+    private final LatencyHistogram mTotal = new LatencyHistogram("total");
+    private final LatencyHistogram[] mStages =
+            {mCapture, mRecognition, mDispatch, mSendQueue, mLink, mDisplay, mTotal};
+
+    /**
+     * @param displayedAt When the result was drawn, by
+     *                    {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    public void add(CaptionTrace trace, long displayedAt) {
+        mCapture.add(trace.getSentToApiAt() - trace.getCapturedAt());
+        mRecognition.add(trace.getRecognizedAt() - trace.getSentToApiAt());
+        mDispatch.add(trace.getQueuedAt() - trace.getRecognizedAt());
+        mSendQueue.add(trace.getSentAt() - trace.getQueuedAt());
+        mDisplay.add(displayedAt - trace.getReceivedAt());
+        if (trace.hasClockOffset()) {
+            mLink.add(trace.getReceivedAt() - trace.toLocalTime(trace.getSentAt()));
+            mTotal.add(displayedAt - trace.toLocalTime(trace.getCapturedAt()));
+        }
+    }
+
+    public LatencyHistogram[] getStages() {
+        return mStages.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder("Caption latency:");
+        for (LatencyHistogram stage : mStages) {
+            report.append("\n  ").append(stage);
+        }
+        return report.toString();
+    }
+}
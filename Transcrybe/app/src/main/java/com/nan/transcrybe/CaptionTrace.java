@@ -0,0 +1,86 @@
+package com.nan.transcrybe;
+
+/**
+ * When a traced result passed each stage on its way from the listener's mic to us. The listener's
+ * times are on its clock, and are put on ours with the clock offset known when the result was
+ * received, if there was one yet.
+ */
+public class CaptionTrace {
+    private final long mFrameId;
+    private final long mCapturedAt;
+    private final long mSentToApiAt;
+    private final long mRecognizedAt;
+    private final long mQueuedAt;
+    private final long mSentAt;
+    private long mReceivedAt;
+    private long mClockOffset = ClockOffset.UNKNOWN;
+
+    /**
+     * Times are on the listener's clock.
+     * @param frameId Sequence number of the newest audio frame sent before the result.
+     * @param capturedAt When the frame was read from the mic.
+     * @param sentToApiAt When the frame was sent to the speech API.
+     * @param recognizedAt When the result came back.
+     * @param queuedAt When it was queued for us.
+     * @param sentAt When it was sent to us.
+     */
+    public CaptionTrace(long frameId, long capturedAt, long sentToApiAt, long recognizedAt,
+                        long queuedAt, long sentAt) {
+        mFrameId = frameId;
+        mCapturedAt = capturedAt;
+        mSentToApiAt = sentToApiAt;
+        mRecognizedAt = recognizedAt;
+        mQueuedAt = queuedAt;
+        mSentAt = sentAt;
+    }
+
+    /**
+     * @param receivedAt When the result was received, by
+     *                   {@link android.os.SystemClock#elapsedRealtime()}.
+     * @param clockOffset The listener's clock minus ours, or {@link ClockOffset#UNKNOWN}.
+     */
+    public void setReceived(long receivedAt, long clockOffset) {
+        mReceivedAt = receivedAt;
+        mClockOffset = clockOffset;
+    }
+
+    public long getFrameId() {
+        return mFrameId;
+    }
+
+    public long getCapturedAt() {
+        return mCapturedAt;
+    }
+
+    public long getSentToApiAt() {
+        return mSentToApiAt;
+    }
+
+    public long getRecognizedAt() {
+        return mRecognizedAt;
+    }
+
+    public long getQueuedAt() {
+        return mQueuedAt;
+    }
+
+    public long getSentAt() {
+        return mSentAt;
+    }
+
+    public long getReceivedAt() {
+        return mReceivedAt;
+    }
+
+    public boolean hasClockOffset() {
+        return mClockOffset != ClockOffset.UNKNOWN;
+    }
+
+    /**
+     * @return A time on the listener's clock, on ours. Only meaningful if
+     *         {@link #hasClockOffset()}.
+     */
+    public long toLocalTime(long listenerTime) {
+        return listenerTime - mClockOffset;
+    }
+}
@@ -0,0 +1,65 @@
+package com.nan.transcrybe;
+
+/**
+ * Estimates how far the listener's clock is ahead of ours from clock requests and their replies.
+ *
+ * The listener's time in a reply is taken to fall halfway through the round trip, so the
+ * estimate is off by at most half the round trip. Of the most recent samples, the one with the
+ * shortest round trip is used, since a slow trip is usually slow one way only. Only looking at
+ * recent samples lets the estimate follow the clocks as they drift apart.
+ */
+public class ClockOffset {
+    public static final long UNKNOWN = Long.MIN_VALUE;
+    // Samples to choose from; with a request per heartbeat answer, about a minute's worth
+    private static final int WINDOW = 32;
+
+    // Ring of the latest samples
+    private final long[] mOffsets = new long[WINDOW];
+    private final long[] mRoundTrips = new long[WINDOW];
+    private int mNext = 0;
+    private int mCount = 0;
+
+    private long mOffset = UNKNOWN;
+    private long mRoundTripMillis = Long.MAX_VALUE;
+
+    /**
+     * @param requestedAt When we sent the request, on our clock.
+     * @param listenerTime The listener's time in the reply.
+     * @param repliedAt When we received the reply, on our clock.
+     */
+    public void addSample(long requestedAt, long listenerTime, long repliedAt) {
+        final long roundTrip = repliedAt - requestedAt;
+        if (roundTrip < 0) {
+            return;
+        }
+        mOffsets[mNext] = listenerTime - (requestedAt + roundTrip / 2);
+        mRoundTrips[mNext] = roundTrip;
+        mNext = (mNext + 1) % WINDOW;
+        mCount = Math.min(mCount + 1, WINDOW);
+
+        // oldest first, so the newest of equally good samples wins
+        final int oldest = mCount < WINDOW ? 0 : mNext;
+        mRoundTripMillis = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            final int j = (oldest + i) % WINDOW;
+            if (mRoundTrips[j] <= mRoundTripMillis) {
+                mRoundTripMillis = mRoundTrips[j];
+                mOffset = mOffsets[j];
+            }
+        }
+    }
+
+    /**
+     * @return The listener's clock minus ours, or {@link #UNKNOWN} before the first reply.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return Round trip of the sample the offset currently comes from.
+     */
+    public long getRoundTripMillis() {
+        return mRoundTripMillis;
+    }
+}
@@ -0,0 +1,71 @@
+package com.nan.transcrybe;
+
+/**
+ * Distribution of a latency in milliseconds, in buckets that double in width, so it takes the
+ * same small amount of memory however many samples it's given. Percentiles are accurate to
+ * within a factor of two, which is plenty to tell a stage that takes 20ms from one that takes
+ * 200ms.
+ */
+public class LatencyHistogram {
+    // Bucket 0 holds 0ms, and bucket i holds [2^(i-1), 2^i)ms
+    private static final int BUCKETS = 32;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mMaxMillis = 0;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * @param millis The latency. Negative values, from clock estimates being slightly off,
+     *               count as 0.
+     */
+    public synchronized void add(long millis) {
+        millis = Math.max(0, millis);
+        mCounts[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis))]++;
+        mCount++;
+        mMaxMillis = Math.max(mMaxMillis, millis);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The latency that many percent of samples are at or below, rounded up to the end
+     *         of its bucket, or 0 if there are no samples.
+     */
+    public synchronized long getPercentileMillis(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(mMaxMillis, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return mMaxMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " p50 " + getPercentileMillis(50) + "ms, p90 " + getPercentileMillis(90)
+                + "ms, p99 " + getPercentileMillis(99) + "ms, max " + mMaxMillis + "ms ("
+                + mCount + ")";
+    }
+}
@@ -0,0 +1,65 @@
+package com.nan.transcrybe;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * A {@link TranscriptTransport} to a listener on a paired Bluetooth device. The device is known
+ * up front, so reconnecting never needs another discovery.
+ */
+public class RfcommTranscriptTransport implements TranscriptTransport {
+    private static final String TAG = "RfcommTransport";
+
+    private final BluetoothDevice mDevice;
+    private final UUID mUuid;
+    private volatile BluetoothSocket mSocket;
+
+    public RfcommTranscriptTransport(BluetoothDevice device, UUID uuid) {
+        mDevice = device;
+        mUuid = uuid;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // discovery slows connecting to a crawl
+        BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+        final BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(mUuid);
+        mSocket = socket;
+        socket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        final BluetoothSocket socket = mSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "error closing socket");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+}
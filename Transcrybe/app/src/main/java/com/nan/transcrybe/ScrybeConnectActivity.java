@@ -7,6 +7,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
@@ -17,6 +18,8 @@ import android.widget.TextView;
 
 import com.google.android.glass.view.MenuUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -27,6 +30,9 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class ScrybeConnectActivity extends Activity implements View.OnClickListener {
 
     private static final String TAG = "ScrybeConnect";
+    // Remembers the last listener connected to, so it can be offered again without discovery
+    private static final String PREFS = "ScrybeConnect";
+    private static final String PREF_LAST_DEVICE = "last_device_address";
     private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
     private BluetoothListener mBluetoothListener = new BluetoothListener();
 
@@ -128,6 +134,9 @@ public class ScrybeConnectActivity extends Activity implements View.OnClickListe
     public boolean onOptionsItemSelected(MenuItem item) {
         BluetoothDevice device = mDeviceCache[item.getItemId()];
         Log.d(TAG, "Selected " + device.getName() + " at " + device.getAddress());
+        getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putString(PREF_LAST_DEVICE, device.getAddress())
+                .apply();
 
         Intent intent = new Intent(getBaseContext(), TranscriptionActivity.class);
         intent.putExtra(getString(R.string.EXTRA_BLUETOOTH_DEVICE), device);
@@ -141,12 +150,16 @@ public class ScrybeConnectActivity extends Activity implements View.OnClickListe
     public boolean onPrepareOptionsMenu(Menu menu) {
         int iDevice = 0;
         menu.clear();
-        mDeviceCache = mBluetoothListener.getDevices();
+        mDeviceCache = getMenuDevices();
+        BluetoothDevice lastDevice = getLastDevice();
         for (BluetoothDevice device : mDeviceCache) {
             String name = device.getName();
             if (name == null) {
                 name = "Unknown Device";
             }
+            if (device.equals(lastDevice)) {
+                name = getString(R.string.last_used_device, name);
+            }
             MenuItem item = menu.add(Menu.NONE, iDevice, iDevice, name);
             MenuUtils.setDescription(item, R.string.tap_to_connect);
             iDevice++;
@@ -154,4 +167,34 @@ public class ScrybeConnectActivity extends Activity implements View.OnClickListe
         return true;
     }
 
+    /**
+     * @return The last device connected to, first, then any others discovered so far.
+     */
+    private BluetoothDevice[] getMenuDevices() {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        BluetoothDevice lastDevice = getLastDevice();
+        if (lastDevice != null) {
+            devices.add(lastDevice);
+        }
+        for (BluetoothDevice device : mBluetoothListener.getDevices()) {
+            if (!device.equals(lastDevice)) {
+                devices.add(device);
+            }
+        }
+        return devices.toArray(new BluetoothDevice[devices.size()]);
+    }
+
+    /**
+     * @return The last device connected to, or null if there isn't one. Looked up by address,
+     * so it's available straight away without waiting for discovery to find it.
+     */
+    private BluetoothDevice getLastDevice() {
+        SharedPreferences prefs = getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        String address = prefs.getString(PREF_LAST_DEVICE, null);
+        if (address == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        return mBluetoothAdapter.getRemoteDevice(address);
+    }
+
 }
@@ -0,0 +1,64 @@
+package com.nan.transcrybe;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@link TranscriptTransport} to a listener on the local network.
+ */
+public class TcpTranscriptTransport implements TranscriptTransport {
+    private static final String TAG = "TcpTransport";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    // A fresh socket for each connection, since a closed one can't be reused
+    private volatile Socket mSocket;
+
+    public TcpTranscriptTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        final Socket socket = new Socket();
+        mSocket = socket;
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MILLIS);
+        // results are small and should go out as soon as they're written
+        socket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        final Socket socket = mSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "error closing socket");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,180 @@
+package com.nan.transcrybe;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Folds transcript updates into the text they describe as they arrive, and hands the result to
+ * the UI at most once per display frame.
+ *
+ * Interim results can arrive far faster than the display refreshes. Rather than posting a
+ * layout for each one, updates are applied to a pending copy of the utterance on the thread
+ * that receives them, and a single {@link Choreographer} callback shows whatever the latest
+ * state is when the next frame is drawn. Updates superseded before then are counted as dropped,
+ * but an utterance that ends before the frame is still passed on in full.
+ *
+ * Final results replayed after a reconnect have older ids than the utterance in progress. They're
+ * passed on as finished utterances without disturbing it.
+ *
+ * The trace of the latest update shown, if it was traced, is passed on with the text.
+ */
+public class TranscriptCoalescer {
+    /**
+     * Receives the transcript on the UI thread.
+     */
+    public interface Target {
+        /**
+         * @param utteranceId Id of the utterance the text belongs to.
+         * @param text The utterance's full text as of this frame.
+         * @param trace The trace of the latest update to the text, or null.
+         */
+        void onTranscriptChanged(long utteranceId, String text, CaptionTrace trace);
+
+        /**
+         * Called before {@link #onTranscriptChanged(long, String, CaptionTrace)} for each
+         * utterance that was replaced by a new one since the last frame.
+         * @param text The utterance's final text.
+         */
+        void onUtteranceFinished(long utteranceId, String text);
+    }
+
+    private final Choreographer mChoreographer;
+    private final Target mTarget;
+    private final Object mLock = new Object();
+
+    // Pending state, guarded by mLock
+    private long mUtteranceId;
+    private final StringBuilder mText = new StringBuilder();
+    private CaptionTrace mTrace;
+    private boolean mHasUtterance = false;
+    private boolean mDirty = false;
+    private boolean mScheduled = false;
+    // Utterances replaced since the last frame, and their ids. Swapped with the frame's lists.
+    private List<String> mFinished = new ArrayList<>();
+    private List<Long> mFinishedIds = new ArrayList<>();
+    private List<String> mFrameFinished = new ArrayList<>();
+    private List<Long> mFrameFinishedIds = new ArrayList<>();
+
+    private long mUpdatesReceived = 0;
+    private long mUpdatesApplied = 0;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            final long utteranceId;
+            final String text;
+            final CaptionTrace trace;
+            final List<String> finished;
+            final List<Long> finishedIds;
+            synchronized (mLock) {
+                mScheduled = false;
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                mUpdatesApplied++;
+                utteranceId = mUtteranceId;
+                text = mText.toString();
+                trace = mTrace;
+                mTrace = null;
+
+                finished = mFinished;
+                finishedIds = mFinishedIds;
+                mFinished = mFrameFinished;
+                mFinishedIds = mFrameFinishedIds;
+                mFrameFinished = finished;
+                mFrameFinishedIds = finishedIds;
+            }
+            for (int i = 0; i < finished.size(); i++) {
+                mTarget.onUtteranceFinished(finishedIds.get(i), finished.get(i));
+            }
+            finished.clear();
+            finishedIds.clear();
+            mTarget.onTranscriptChanged(utteranceId, text, trace);
+        }
+    };
+
+    /**
+     * Must be created on the UI thread, whose frames updates are delivered on.
+     */
+    public TranscriptCoalescer(Target target) {
+        mChoreographer = Choreographer.getInstance();
+        mTarget = target;
+    }
+
+    /**
+     * Applies an update to the pending transcript and makes sure it's shown on the next frame.
+     * May be called from any thread.
+     */
+    public void post(TranscriptUpdate update) {
+        synchronized (mLock) {
+            mUpdatesReceived++;
+            if (mHasUtterance && isReplay(update)) {
+                // replays start a new utterance each, so the suffix is the whole text
+                mFinished.add(update.getSuffix());
+                mFinishedIds.add(update.getUtteranceId());
+            } else {
+                if (!mHasUtterance || update.getUtteranceId() != mUtteranceId) {
+                    // a new utterance replaces whatever was pending before
+                    if (mHasUtterance) {
+                        mFinished.add(mText.toString());
+                        mFinishedIds.add(mUtteranceId);
+                    }
+                    mHasUtterance = true;
+                    mUtteranceId = update.getUtteranceId();
+                    mText.setLength(0);
+                } else {
+                    mText.setLength(Math.min(update.getStableLength(), mText.length()));
+                }
+                mText.append(update.getSuffix());
+                mTrace = update.getTrace();
+            }
+            mDirty = true;
+
+            if (!mScheduled) {
+                mScheduled = true;
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    private boolean isReplay(TranscriptUpdate update) {
+        return update.isFinal()
+                && update.getUtteranceId() != TranscriptUpdate.LINE_MODE_UTTERANCE
+                && mUtteranceId != TranscriptUpdate.LINE_MODE_UTTERANCE
+                && update.getUtteranceId() < mUtteranceId;
+    }
+
+    /**
+     * Stops any pending update from being delivered.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mScheduled = false;
+            mDirty = false;
+            mFinished.clear();
+            mFinishedIds.clear();
+        }
+    }
+
+    /**
+     * @return Number of updates received.
+     */
+    public long getUpdatesReceived() {
+        synchronized (mLock) {
+            return mUpdatesReceived;
+        }
+    }
+
+    /**
+     * @return Number of updates that were superseded before they could be shown.
+     */
+    public long getDroppedUpdates() {
+        synchronized (mLock) {
+            return mUpdatesReceived - mUpdatesApplied - (mDirty ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.nan.transcrybe;
+
+/**
+ * Wire format for transcript updates received from a Scrybe listener.
+ *
+ * Everything is sent as newline-terminated lines. A client that sends {@link #HELLO} when it
+ * connects is switched to delta mode, and gets frames of the form:
+ * <pre>
+ *   RS utteranceId US stableLength US (f|i) US suffix
+ * </pre>
+ * where RS and US are the ASCII record and unit separators. Lines that don't start with RS come
+ * from a listener that doesn't speak delta mode (or haven't caught up with our hello yet), and
+ * hold the full text to display.
+ *
+ * A client reconnecting after a dropout follows its hello with
+ * <pre>
+ *   RS resume US lastUtteranceId
+ * </pre>
+ * and is sent the final results it missed, which have older ids than the utterance in progress.
+ *
+ * A delta mode listener that has nothing to send for {@link #HEARTBEAT_INTERVAL_MILLIS} sends a
+ * {@link #PING} instead, which the client answers with a {@link #PONG}.
+ *
+ * A client tracing caption latency follows its hello with {@link #TRACE}, and traced results are
+ * then preceded by
+ * <pre>
+ *   RS trace US frameId US capturedAt US sentToApiAt US recognizedAt US queuedAt US sentAt
+ * </pre>
+ * with times on the listener's clock. The client can send {@link #clockRequest(long)} with its
+ * own time, and gets the same line back with the listener's time appended.
+ *
+ * Keep in sync with the copies in ScrybeListener and TestReceiver.
+ */
+public final class TranscriptProtocol {
+    public static final char FRAME_START = '\u001E';
+    public static final char FIELD_SEPARATOR = '\u001F';
+    public static final String HELLO = FRAME_START + "delta";
+    public static final String FINAL = "f";
+    public static final String RESUME = FRAME_START + "resume" + FIELD_SEPARATOR;
+    // Utterance id to resume from if no final result was ever received
+    public static final long NO_UTTERANCE = -1;
+    public static final String PING = FRAME_START + "ping";
+    public static final String PONG = FRAME_START + "pong";
+    // Longest a delta mode listener goes without sending anything
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 2000;
+    public static final String TRACE = FRAME_START + "trace";
+    public static final String CLOCK = FRAME_START + "clock" + FIELD_SEPARATOR;
+
+    private TranscriptProtocol() {
+    }
+
+    /**
+     * @return The line asking to be sent the final results after the given utterance.
+     */
+    public static String resume(long lastUtteranceId) {
+        return RESUME + lastUtteranceId;
+    }
+
+    /**
+     * @return Whether a received line is a heartbeat rather than an update.
+     */
+    public static boolean isPing(String line) {
+        return PING.equals(line);
+    }
+
+    /**
+     * @return The line asking for the listener's time, with ours to be sent back.
+     */
+    public static String clockRequest(long time) {
+        return CLOCK + time;
+    }
+
+    /**
+     * @return Whether a received line is a clock reply rather than an update.
+     */
+    public static boolean isClockReply(String line) {
+        return line.startsWith(CLOCK);
+    }
+
+    /**
+     * @return Our time from the request and the listener's time, or null if the reply is
+     *         malformed.
+     */
+    public static long[] parseClockReply(String line) {
+        final String[] fields =
+                line.substring(CLOCK.length()).split(String.valueOf(FIELD_SEPARATOR));
+        if (fields.length != 2) {
+            return null;
+        }
+        try {
+            return new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether a received line traces the result that follows it.
+     */
+    public static boolean isTrace(String line) {
+        return line.startsWith(TRACE + FIELD_SEPARATOR);
+    }
+
+    /**
+     * @return The trace, or null if it's malformed.
+     */
+    public static CaptionTrace parseTrace(String line) {
+        final String[] fields =
+                line.substring(TRACE.length() + 1).split(String.valueOf(FIELD_SEPARATOR));
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new CaptionTrace(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a received line.
+     * @return The update, or null if the line is a malformed frame.
+     */
+    public static TranscriptUpdate parse(String line) {
+        if (line.isEmpty() || line.charAt(0) != FRAME_START) {
+            return TranscriptUpdate.fullText(line);
+        }
+
+        // the suffix is last, so anything after the third separator belongs to it
+        final String[] fields = line.substring(1).split(String.valueOf(FIELD_SEPARATOR), 4);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new TranscriptUpdate(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                    fields[3], FINAL.equals(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.nan.transcrybe;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads frames from a listener connection and hands each update on as it arrives.
+ *
+ * {@link #run()} sleeps in the stream between frames rather than polling it, and returns as soon
+ * as the connection ends: at end of stream, on a read error, or when the listener has gone quiet
+ * for longer than the read timeout. Bluetooth sockets can't time out a read, so the timeout is
+ * kept by a shared watchdog thread that closes the connection, which ends the blocked read.
+ *
+ * The timeout only starts once the listener has sent a heartbeat. Older listeners never do, and
+ * can say nothing at all for as long as nobody is speaking.
+ *
+ * With {@link #enableTracing()}, traces are attached to the updates they precede, along with the
+ * listener's clock offset. The offset is estimated from clock requests sent when reading starts,
+ * and with each answer to a heartbeat so it keeps up with the clocks drifting.
+ *
+ * Keep in sync with the copy in TestReceiver, which leaves out tracing.
+ */
+public class TranscriptReader {
+    private static final String TAG = "TranscriptReader";
+    // A listener that misses this many heartbeats in a row is gone
+    private static final int MISSED_HEARTBEATS = 3;
+    public static final long READ_TIMEOUT_MILLIS =
+            MISSED_HEARTBEATS * TranscriptProtocol.HEARTBEAT_INTERVAL_MILLIS;
+    // Clock requests sent when tracing starts, to get a good offset before the first result
+    private static final int INITIAL_CLOCK_REQUESTS = 3;
+
+    /**
+     * Receives updates on the reading thread.
+     */
+    public interface Callback {
+        void onUpdate(TranscriptUpdate update);
+    }
+
+    /**
+     * Why reading stopped.
+     */
+    public enum Result {
+        END_OF_STREAM,
+        READ_ERROR,
+        TIMED_OUT,
+    }
+
+    private static ScheduledExecutorService sWatchdog;
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final Closeable mConnection;
+    private final Callback mCallback;
+    private final long mTimeoutMillis;
+
+    private volatile long mLastReceivedAt;
+    private volatile boolean mHeardHeartbeat = false;
+    private volatile boolean mTimedOut = false;
+    private long mUpdates = 0;
+    private long mHeartbeats = 0;
+
+    // On the reading thread
+    private boolean mTracing = false;
+    private final ClockOffset mClockOffset = new ClockOffset();
+    private CaptionTrace mPendingTrace;
+
+    private final Runnable mCheckTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mHeardHeartbeat && !mTimedOut
+                    && SystemClock.elapsedRealtime() - mLastReceivedAt > mTimeoutMillis) {
+                Log.w(TAG, "Nothing received for " + mTimeoutMillis + "ms");
+                mTimedOut = true;
+                try {
+                    mConnection.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() failed");
+                }
+            }
+        }
+    };
+
+    /**
+     * @param in Stream to read frames from.
+     * @param out Stream to answer heartbeats on.
+     * @param connection Closed if the read times out.
+     * @param callback Receives each update.
+     */
+    public TranscriptReader(InputStream in, OutputStream out, Closeable connection,
+                            Callback callback) {
+        this(in, out, connection, callback, READ_TIMEOUT_MILLIS);
+    }
+
+    public TranscriptReader(InputStream in, OutputStream out, Closeable connection,
+                            Callback callback, long readTimeoutMillis) {
+        mIn = in;
+        mOut = out;
+        mConnection = connection;
+        mCallback = callback;
+        mTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Attaches latency traces to updates. The listener must have been asked to send them with
+     * {@link TranscriptProtocol#TRACE}. Call before {@link #run()}.
+     */
+    public void enableTracing() {
+        mTracing = true;
+    }
+
+    /**
+     * Reads until the connection ends. The connection is left open, unless it timed out.
+     * @return Why reading stopped.
+     */
+    public Result run() {
+        mLastReceivedAt = SystemClock.elapsedRealtime();
+        final long period = Math.max(1, mTimeoutMillis / MISSED_HEARTBEATS);
+        final ScheduledFuture<?> watchdog = getWatchdog().scheduleWithFixedDelay(mCheckTimeout,
+                period, period, TimeUnit.MILLISECONDS);
+        try {
+            if (mTracing) {
+                for (int i = 0; i < INITIAL_CLOCK_REQUESTS; i++) {
+                    sendClockRequest();
+                }
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(mIn));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mLastReceivedAt = SystemClock.elapsedRealtime();
+                onLine(line);
+            }
+            return mTimedOut ? Result.TIMED_OUT : Result.END_OF_STREAM;
+        } catch (IOException e) {
+            return mTimedOut ? Result.TIMED_OUT : Result.READ_ERROR;
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    private void onLine(String line) throws IOException {
+        if (TranscriptProtocol.isPing(line)) {
+            mHeardHeartbeat = true;
+            mHeartbeats++;
+            mOut.write((TranscriptProtocol.PONG + "\n").getBytes());
+            if (mTracing) {
+                sendClockRequest();
+            }
+            return;
+        }
+        if (mTracing && onTracingLine(line)) {
+            return;
+        }
+
+        Log.v(TAG, "recv: " + line);
+        TranscriptUpdate update = TranscriptProtocol.parse(line);
+        if (update != null) {
+            mUpdates++;
+            update.setTrace(mPendingTrace);
+            mPendingTrace = null;
+            mCallback.onUpdate(update);
+        } else {
+            Log.w(TAG, "Malformed frame");
+        }
+    }
+
+    private void sendClockRequest() throws IOException {
+        mOut.write((TranscriptProtocol.clockRequest(SystemClock.elapsedRealtime()) + "\n")
+                .getBytes());
+    }
+
+    /**
+     * Handles clock replies and traces.
+     * @return Whether the line was one.
+     */
+    private boolean onTracingLine(String line) {
+        if (TranscriptProtocol.isClockReply(line)) {
+            final long[] times = TranscriptProtocol.parseClockReply(line);
+            if (times != null) {
+                mClockOffset.addSample(times[0], times[1], mLastReceivedAt);
+            }
+            return true;
+        }
+        if (TranscriptProtocol.isTrace(line)) {
+            mPendingTrace = TranscriptProtocol.parseTrace(line);
+            if (mPendingTrace != null) {
+                mPendingTrace.setReceived(mLastReceivedAt, mClockOffset.getOffset());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of updates received. Only meaningful once {@link #run()} has returned.
+     */
+    public long getUpdateCount() {
+        return mUpdates;
+    }
+
+    /**
+     * @return Number of heartbeats received. Only meaningful once {@link #run()} has returned.
+     */
+    public long getHeartbeatCount() {
+        return mHeartbeats;
+    }
+
+    private static synchronized ScheduledExecutorService getWatchdog() {
+        if (sWatchdog == null) {
+            sWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + " watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWatchdog;
+    }
+}
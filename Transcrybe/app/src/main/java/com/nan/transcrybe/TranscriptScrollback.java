@@ -0,0 +1,210 @@
+package com.nan.transcrybe;
+
+import android.text.Editable;
+
+/**
+ * Bounded history of a session's transcript: a ring of finished utterances, capped by both count
+ * and characters, plus the utterance still being recognized.
+ *
+ * Views show a window of the most recent lines with {@link #render(Editable)}, which edits the
+ * displayed text incrementally: committing a line appends it and drops the oldest line from the
+ * top of the window, and a new interim result only replaces the characters that changed. So both
+ * memory and layout cost stay the same however long the session runs.
+ *
+ * Not thread-safe; use from the UI thread. Keep in sync with the copy in ScrybeListener.
+ */
+public class TranscriptScrollback {
+    private static final char LINE_SEPARATOR = '\n';
+
+    // Finished utterances, oldest at mFirst
+    private final String[] mLines;
+    private final int mMaxChars;
+    private int mFirst = 0;
+    private int mCount = 0;
+    private int mChars = 0;
+    private long mCommitted = 0;
+    private long mEvicted = 0;
+    private String mInterim = "";
+
+    // What the last render left in the view
+    private final int mWindowLines;
+    private final int[] mShownLengths;
+    private int mShownFirst = 0;
+    private int mShownCount = 0;
+    // Characters of finished utterances shown; the interim text follows them
+    private int mShownChars = 0;
+    private long mShownCommitted = 0;
+    private boolean mShownValid = false;
+
+    /**
+     * @param maxLines Most finished utterances to keep.
+     * @param maxChars Most characters of finished utterances to keep.
+     * @param windowLines Most finished utterances to show, from 1 to maxLines.
+     */
+    public TranscriptScrollback(int maxLines, int maxChars, int windowLines) {
+        mLines = new String[maxLines];
+        mMaxChars = maxChars;
+        mWindowLines = Math.max(1, Math.min(windowLines, maxLines));
+        mShownLengths = new int[mWindowLines];
+    }
+
+    /**
+     * Adds a finished utterance, evicting the oldest ones if over budget. Doesn't touch the
+     * interim text.
+     */
+    public void commit(String line) {
+        if (mCount == mLines.length) {
+            evictOldest();
+        }
+        mLines[(mFirst + mCount) % mLines.length] = line;
+        mCount++;
+        mChars += line.length();
+        mCommitted++;
+        // always keep the newest line, however long
+        while (mChars > mMaxChars && mCount > 1) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Sets the text of the utterance still being recognized, shown after the finished ones.
+     */
+    public void setInterim(String text) {
+        mInterim = text;
+    }
+
+    public String getInterim() {
+        return mInterim;
+    }
+
+    /**
+     * @return Number of finished utterances kept.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @param index 0 for the oldest finished utterance kept.
+     */
+    public String get(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mCount);
+        }
+        return mLines[(mFirst + index) % mLines.length];
+    }
+
+    /**
+     * @return Number of characters of finished utterances kept.
+     */
+    public int getCharCount() {
+        return mChars;
+    }
+
+    /**
+     * @return Number of finished utterances dropped to stay within budget.
+     */
+    public long getEvictedCount() {
+        return mEvicted;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mLines[(mFirst + i) % mLines.length] = null;
+        }
+        mFirst = 0;
+        mCount = 0;
+        mChars = 0;
+        mInterim = "";
+        mShownValid = false;
+    }
+
+    /**
+     * Forces the next {@link #render(Editable)} to rewrite the text from scratch, for when the
+     * view's text was changed by something else.
+     */
+    public void invalidate() {
+        mShownValid = false;
+    }
+
+    /**
+     * Brings text previously rendered to with this method up to date: the last few finished
+     * utterances, one per line, followed by the interim text.
+     */
+    public void render(Editable text) {
+        final long newLines = mCommitted - mShownCommitted;
+        if (!mShownValid || newLines > mWindowLines || newLines > mCount) {
+            rebuild(text);
+            return;
+        }
+
+        if (newLines > 0) {
+            text.delete(mShownChars, text.length());
+            for (int i = (int) (mCount - newLines); i < mCount; i++) {
+                final String line = get(i);
+                text.append(line).append(LINE_SEPARATOR);
+                pushShown(line.length() + 1, text);
+            }
+            // lines evicted to stay within budget go from the view too
+            while (mShownCount > mCount) {
+                dropShown(text);
+            }
+            mShownCommitted = mCommitted;
+        }
+
+        // only replace what changed in the interim text
+        final int interimStart = mShownChars;
+        final int shown = text.length() - interimStart;
+        final int max = Math.min(shown, mInterim.length());
+        int same = 0;
+        while (same < max && text.charAt(interimStart + same) == mInterim.charAt(same)) {
+            same++;
+        }
+        text.replace(interimStart + same, text.length(), mInterim, same, mInterim.length());
+    }
+
+    private void rebuild(Editable text) {
+        text.clear();
+        mShownFirst = 0;
+        mShownCount = 0;
+        mShownChars = 0;
+        for (int i = Math.max(0, mCount - mWindowLines); i < mCount; i++) {
+            final String line = get(i);
+            text.append(line).append(LINE_SEPARATOR);
+            pushShown(line.length() + 1, text);
+        }
+        text.append(mInterim);
+        mShownCommitted = mCommitted;
+        mShownValid = true;
+    }
+
+    /**
+     * Records a line added to the window, scrolling the oldest one off the top if it's full.
+     */
+    private void pushShown(int length, Editable text) {
+        if (mShownCount == mWindowLines) {
+            dropShown(text);
+        }
+        mShownLengths[(mShownFirst + mShownCount) % mWindowLines] = length;
+        mShownCount++;
+        mShownChars += length;
+    }
+
+    /**
+     * Removes the oldest line from the top of the window.
+     */
+    private void dropShown(Editable text) {
+        text.delete(0, mShownLengths[mShownFirst]);
+        mShownChars -= mShownLengths[mShownFirst];
+        mShownFirst = (mShownFirst + 1) % mWindowLines;
+        mShownCount--;
+    }
+
+    private void evictOldest() {
+        mChars -= mLines[mFirst].length();
+        mLines[mFirst] = null;
+        mFirst = (mFirst + 1) % mLines.length;
+        mCount--;
+        mEvicted++;
+    }
+}
@@ -0,0 +1,34 @@
+package com.nan.transcrybe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of connecting to a Scrybe listener, e.g. Bluetooth RFCOMM or TCP. The listener speaks the
+ * same line protocol over all of them.
+ */
+public interface TranscriptTransport extends Closeable {
+
+    /**
+     * Connects to the listener. Blocks until connected.
+     * @throws IOException If the connection can't be made.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Closes the connection, ending any read in progress. Safe to call from any thread.
+     */
+    @Override
+    void close();
+
+    /**
+     * @return A short description of the listener for logs.
+     */
+    String getName();
+}
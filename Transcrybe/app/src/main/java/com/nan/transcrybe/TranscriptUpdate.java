@@ -0,0 +1,57 @@
+package com.nan.transcrybe;
+
+/**
+ * A change to the utterance being displayed: keep the first {@link #getStableLength()}
+ * characters and replace the rest with {@link #getSuffix()}.
+ */
+public class TranscriptUpdate {
+    // Utterance id used for updates from listeners that only send full lines of text
+    public static final long LINE_MODE_UTTERANCE = -1;
+
+    private final long mUtteranceId;
+    private final int mStableLength;
+    private final String mSuffix;
+    private final boolean mIsFinal;
+    private CaptionTrace mTrace;
+
+    public TranscriptUpdate(long utteranceId, int stableLength, String suffix, boolean isFinal) {
+        mUtteranceId = utteranceId;
+        mStableLength = stableLength;
+        mSuffix = suffix;
+        mIsFinal = isFinal;
+    }
+
+    /**
+     * @return An update that replaces everything displayed with the given text.
+     */
+    public static TranscriptUpdate fullText(String text) {
+        return new TranscriptUpdate(LINE_MODE_UTTERANCE, 0, text, false);
+    }
+
+    public long getUtteranceId() {
+        return mUtteranceId;
+    }
+
+    public int getStableLength() {
+        return mStableLength;
+    }
+
+    public String getSuffix() {
+        return mSuffix;
+    }
+
+    public boolean isFinal() {
+        return mIsFinal;
+    }
+
+    /**
+     * @return When the update passed each stage on its way here, if it was traced, or null.
+     */
+    public CaptionTrace getTrace() {
+        return mTrace;
+    }
+
+    public void setTrace(CaptionTrace trace) {
+        mTrace = trace;
+    }
+}
@@ -4,32 +4,53 @@ import com.google.android.glass.widget.Slider;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.Layout;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.Buffer;
 import java.util.UUID;
 
 /**
- * An {@link Activity} to connect to a Bluetooth transcribe host and begin receiving text.
+ * An {@link Activity} to connect to a transcribe host, over Bluetooth or TCP, and begin receiving
+ * text.
  */
 public class TranscriptionActivity extends Activity {
     private static final String TAG = "TranscriptionActivity";
     private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // Port the listener accepts TCP connections on
+    private static final int DEFAULT_TCP_PORT = 4568;
+    // How much of the transcript to keep, and how many utterances of it to show
+    private static final int SCROLLBACK_LINES = 200;
+    private static final int SCROLLBACK_CHARS = 32 * 1024;
+    private static final int TRANSCRIPT_WINDOW_LINES = 8;
+    // Reconnect attempts after a dropout back off from the first delay to the max, and stop
+    // once the listener has been gone this long
+    private static final long RECONNECT_INITIAL_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 8000;
+    private static final long RECONNECT_GIVE_UP_MILLIS = 60000;
+    // Whether to trace each caption's latency from the listener's mic to the display, and log
+    // a breakdown by stage when we're done
+    private static final boolean TRACE_LATENCY = false;
 
     private Slider.Indeterminate mProgressSlider;
     private TextView mTranscriptionView;
 
     private TranscriptionListenerThread mListener;
+    // Applies received updates to the view at most once per frame
+    private TranscriptCoalescer mCoalescer;
+    private final CaptionLatencyReport mLatencyReport = new CaptionLatencyReport();
     private boolean mIsEmpty = true;
+    private final TranscriptScrollback mTranscript =
+            new TranscriptScrollback(SCROLLBACK_LINES, SCROLLBACK_CHARS, TRANSCRIPT_WINDOW_LINES);
 
     @Override
     protected void onCreate(Bundle bundle) {
@@ -41,10 +62,34 @@ public class TranscriptionActivity extends Activity {
         mProgressSlider = Slider.from(view).startIndeterminate();
         mTranscriptionView = (TextView) findViewById(R.id.transcription_text);
         mTranscriptionView.setMovementMethod(new ScrollingMovementMethod());
+        mCoalescer = new TranscriptCoalescer(new TranscriptCoalescer.Target() {
+            @Override
+            public void onTranscriptChanged(long utteranceId, String text, CaptionTrace trace) {
+                onReceive(text);
+                if (trace != null) {
+                    mLatencyReport.add(trace, SystemClock.elapsedRealtime());
+                }
+            }
 
-        // Start the Bluetooth listener and attempt to connect
-        BluetoothDevice device = getIntent().getExtras().getParcelable(getString(R.string.EXTRA_BLUETOOTH_DEVICE));
-        mListener = new TranscriptionListenerThread(device);
+            @Override
+            public void onUtteranceFinished(long utteranceId, String text) {
+                mTranscript.commit(text);
+            }
+        });
+
+        // Start the listener and attempt to connect, over TCP if we were given a host
+        Bundle extras = getIntent().getExtras();
+        String host = extras.getString(getString(R.string.EXTRA_TCP_HOST));
+        TranscriptTransport transport;
+        if (host != null) {
+            transport = new TcpTranscriptTransport(host,
+                    extras.getInt(getString(R.string.EXTRA_TCP_PORT), DEFAULT_TCP_PORT));
+        } else {
+            BluetoothDevice device =
+                    extras.getParcelable(getString(R.string.EXTRA_BLUETOOTH_DEVICE));
+            transport = new RfcommTranscriptTransport(device, BT_UUID);
+        }
+        mListener = new TranscriptionListenerThread(transport);
         mListener.start();
     }
 
@@ -54,6 +99,27 @@ public class TranscriptionActivity extends Activity {
         mProgressSlider.hide();
     }
 
+    @Override
+    protected void onDestroy() {
+        mListener.cancel();
+        mCoalescer.cancel();
+        if (TRACE_LATENCY) {
+            Log.d(TAG, mLatencyReport.toString());
+        }
+        super.onDestroy();
+    }
+
+    private void onConnectionLost() {
+        // keep showing the transcript while we try to get it back
+        Log.w(TAG, "Connection lost, reconnecting");
+        mProgressSlider.show();
+    }
+
+    private void onReconnected() {
+        Log.d(TAG, "Reconnected");
+        mProgressSlider.hide();
+    }
+
     private void onConnectFail() {
         Log.e(TAG, "Connection failed.");
         finish();
@@ -61,43 +127,72 @@ public class TranscriptionActivity extends Activity {
 
     private void onDisconnected() {
         Log.e(TAG, "Disconnected");
+        mCoalescer.cancel();
+        Log.d(TAG, "updates received: " + mCoalescer.getUpdatesReceived()
+                + ", dropped: " + mCoalescer.getDroppedUpdates());
         finish();
     }
 
-    private void onReceive(String line) {
-        mTranscriptionView.setText(line);
+    /**
+     * Shows the latest text of the current utterance below the last few finished ones. The
+     * displayed text is edited in place, so a growing interim result only costs the characters
+     * that changed.
+     */
+    private void onReceive(String update) {
+        if (mIsEmpty) {
+            // replace the "listening..." text
+            mIsEmpty = false;
+            mTranscriptionView.setText("", TextView.BufferType.EDITABLE);
+            mTranscript.invalidate();
+        }
+        mTranscript.setInterim(update);
+        mTranscript.render((Editable) mTranscriptionView.getText());
+        scrollToEnd();
+    }
+
+    /**
+     * Keeps the newest text in view once the window is taller than the screen.
+     */
+    private void scrollToEnd() {
+        Layout layout = mTranscriptionView.getLayout();
+        if (layout == null) {
+            return;
+        }
+        int bottom = layout.getLineTop(mTranscriptionView.getLineCount())
+                + mTranscriptionView.getCompoundPaddingTop()
+                + mTranscriptionView.getCompoundPaddingBottom();
+        mTranscriptionView.scrollTo(0, Math.max(0, bottom - mTranscriptionView.getHeight()));
     }
 
+    /**
+     * Connects and feeds received updates to the coalescer. If the connection drops, it
+     * reconnects with backoff and asks the listener for the final results it missed.
+     */
     private class TranscriptionListenerThread extends Thread {
-        private BluetoothDevice mmBluetoothDevice;
+        private final TranscriptTransport mmTransport;
+        private final ReconnectBackoff mmBackoff =
+                new ReconnectBackoff(RECONNECT_INITIAL_MILLIS, RECONNECT_MAX_MILLIS);
+        // Last final utterance received, to resume from after a reconnect
+        private long mmLastFinalId = TranscriptProtocol.NO_UTTERANCE;
+        private volatile boolean mmCancelled = false;
 
-        public TranscriptionListenerThread(BluetoothDevice device) {
-            mmBluetoothDevice = device;
-            Log.d(TAG, "Bluetooth listener created for " + device.getName());
+        public TranscriptionListenerThread(TranscriptTransport transport) {
+            mmTransport = transport;
+            Log.d(TAG, "Listener created for " + transport.getName());
         }
 
-        private void onReceive(final String line) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    TranscriptionActivity.this.onReceive(line);
-                }
-            });
+        private void onReceive(TranscriptUpdate update) {
+            if (update.isFinal() && update.getUtteranceId() > mmLastFinalId) {
+                mmLastFinalId = update.getUtteranceId();
+            }
+            // coalesced with any other updates that arrive before the next frame
+            mCoalescer.post(update);
         }
 
-        // TODO: Refactor this to make it shorter
         @Override
         public void run() {
-            BluetoothSocket socket = null;
-            try {
-                socket = mmBluetoothDevice.createRfcommSocketToServiceRecord(BT_UUID);
-                socket.connect();
-            } catch (IOException e) {
-                Log.e(TAG, "Connection to SPP service failed");
-            }
-
-            if (socket == null) {
-                // run onConnectFail handler
+            if (!connect()) {
+                Log.e(TAG, "Connection to " + mmTransport.getName() + " failed");
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -107,7 +202,6 @@ public class TranscriptionActivity extends Activity {
                 return;
             }
 
-            // Run onConnect handler
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -116,28 +210,118 @@ public class TranscriptionActivity extends Activity {
             });
             Log.d(TAG, "Device connection successful.");
 
-            try {
-                BufferedReader reader =
-                        new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String text;
-
-                while (socket.isConnected()) {
-                    text = reader.readLine();
-                    if (text != null) {
-                        Log.v(TAG, "recv: " + text);
-                        onReceive(text);
+            boolean resuming = false;
+            while (true) {
+                receive(resuming);
+                mmTransport.close();
+                if (mmCancelled) {
+                    return;
+                }
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onConnectionLost();
                     }
+                });
+                if (!reconnect()) {
+                    break;
                 }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReconnected();
+                    }
+                });
+                resuming = true;
+            }
+
+            if (!mmCancelled) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDisconnected();
+                    }
+                });
+            }
+        }
+
+        private boolean connect() {
+            try {
+                mmTransport.connect();
+                return true;
             } catch (IOException e) {
-                Log.e(TAG, "Bad read");
+                mmTransport.close();
+                return false;
             }
+        }
 
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onDisconnected();
+        /**
+         * Keeps trying to connect again, backing off between attempts.
+         * @return Whether we're connected, or false if we gave up or were cancelled.
+         */
+        private boolean reconnect() {
+            mmBackoff.reset();
+            final long giveUpAt = SystemClock.elapsedRealtime() + RECONNECT_GIVE_UP_MILLIS;
+            while (!mmCancelled && SystemClock.elapsedRealtime() < giveUpAt) {
+                final long delay = mmBackoff.nextDelayMillis();
+                Log.d(TAG, "Reconnecting to " + mmTransport.getName() + " in " + delay + "ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return false;
                 }
-            });
+                if (!mmCancelled && connect()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Says hello, asking to resume if this is a reconnect, then reads updates until the
+         * connection is lost or goes quiet.
+         */
+        private void receive(boolean resuming) {
+            final TranscriptReader reader;
+            try {
+                // Ask for delta frames; older listeners will just keep sending full lines
+                String hello = TranscriptProtocol.HELLO + "\n";
+                if (resuming) {
+                    hello += TranscriptProtocol.resume(mmLastFinalId) + "\n";
+                }
+                if (TRACE_LATENCY) {
+                    hello += TranscriptProtocol.TRACE + "\n";
+                }
+                OutputStream out = mmTransport.getOutputStream();
+                out.write(hello.getBytes());
+                reader = new TranscriptReader(mmTransport.getInputStream(), out, mmTransport,
+                        new TranscriptReader.Callback() {
+                            @Override
+                            public void onUpdate(TranscriptUpdate update) {
+                                onReceive(update);
+                            }
+                        });
+                if (TRACE_LATENCY) {
+                    reader.enableTracing();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to send hello");
+                return;
+            }
+
+            TranscriptReader.Result result = reader.run();
+            Log.d(TAG, "Stopped reading (" + result + ") after " + reader.getUpdateCount()
+                    + " updates, " + reader.getHeartbeatCount() + " heartbeats");
+        }
+
+        /**
+         * Stops the thread, whether it's connected or waiting to reconnect.
+         */
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+            mmTransport.close();
         }
     }
 